@@ -0,0 +1,96 @@
+/*  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.aries.jpa.container.itest;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.aries.jpa.container.itest.entities.Car;
+import org.apache.aries.jpa.itest.AbstractJPAItest;
+import org.eclipse.persistence.internal.weaving.PersistenceWeaved;
+import org.junit.Test;
+import org.ops4j.pax.exam.Configuration;
+import org.ops4j.pax.exam.Option;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the time to restart a persistence bundle until its EntityManagerFactory is
+ * available with and without the temporary EntityManagerFactory used to register the
+ * EclipseLink weaving transformer. The classes are already loaded after the first run
+ * so this measures the bootstrap cost only. The result is logged as the timing depends on
+ * the machine.
+ */
+public class EclipseLinkStartupTimeTest extends AbstractJPAItest {
+    private static final String FORCE_DUMMY_EMF = "org.apache.aries.jpa.weaving.dummyEmf";
+    private static final String TRANSFORMER_PROVIDER = "org.apache.aries.jpa.container.weaving.ClassTransformerProvider";
+    private static final String ECLIPSELINK_PROVIDER = "org.eclipse.persistence.jpa.PersistenceProvider";
+    private static final Logger LOG = LoggerFactory.getLogger(EclipseLinkStartupTimeTest.class);
+    private static final int WARMUP = 3;
+    private static final int RUNS = 10;
+
+    @Configuration
+    public Option[] configuration() {
+        return new Option[] {
+            baseOptions(), //
+            ariesJpa21(), //
+            jta12Bundles(), //
+            eclipseLink(), //
+            derbyDSF(), //
+            testBundle()
+        };
+    }
+
+    @Test
+    public void testStartupTime() throws Exception {
+        ServiceReference<?>[] refs = bundleContext.getServiceReferences(TRANSFORMER_PROVIDER,
+            "(javax.persistence.provider=" + ECLIPSELINK_PROVIDER + ")");
+        assertNotNull("No ClassTransformerProvider registered for EclipseLink", refs);
+        // The test bundle was started without the temporary EntityManagerFactory
+        assertTrue("Not woven by the transformer of the ClassTransformerProvider",
+                   Arrays.asList(Car.class.getInterfaces()).contains(PersistenceWeaved.class));
+
+        Bundle testBundle = getBundleByName(TEST_BUNDLE_NAME);
+        try {
+            long dummy = measure(testBundle, true);
+            long transformerProvider = measure(testBundle, false);
+            LOG.info("Average start of persistence bundle: {} ms with temporary EntityManagerFactory, "
+                + "{} ms with ClassTransformerProvider", dummy, transformerProvider);
+        } finally {
+            System.clearProperty(FORCE_DUMMY_EMF);
+        }
+    }
+
+    private long measure(Bundle testBundle, boolean forceDummy) throws Exception {
+        System.setProperty(FORCE_DUMMY_EMF, String.valueOf(forceDummy));
+        long total = 0;
+        for (int c = 0; c < WARMUP + RUNS; c++) {
+            testBundle.stop();
+            long start = System.nanoTime();
+            testBundle.start();
+            assertFalse(getEMF(TEST_UNIT).getMetamodel().getEntities().isEmpty());
+            if (c >= WARMUP) {
+                total += System.nanoTime() - start;
+            }
+        }
+        return total / RUNS / 1000000;
+    }
+}
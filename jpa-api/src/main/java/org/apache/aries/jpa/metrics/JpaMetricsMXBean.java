@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.metrics;
+
+import java.util.Map;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * Statistics of the JpaTemplate and EmSupplier services of one persistence unit.
+ *
+ * Registered as OSGi service with the property osgi.unit.name and in the platform
+ * MBeanServer as org.apache.aries.jpa:type=JpaMetrics,name=&lt;unit name&gt;.
+ * Maps are keyed by TransactionType name unless noted otherwise. Times are in microseconds.
+ */
+@ProviderType
+public interface JpaMetricsMXBean {
+    String getUnitName();
+
+    Map<String, Long> getTransactionsBegun();
+
+    Map<String, Long> getTransactionsCommitted();
+
+    Map<String, Long> getTransactionsRolledBack();
+
+    /**
+     * @return number of rollbacks keyed by exception class name
+     */
+    Map<String, Long> getRollbackCauses();
+
+    long getCalls();
+
+    long getFailedCalls();
+
+    double getCallTimeMean();
+
+    long getCallTimeMedian();
+
+    long getCallTime99thPercentile();
+
+    long getCallTimeMax();
+
+    Map<String, Long> getCallTime99thPercentileByType();
+
+    long getEntityManagersCreated();
+
+    long getEntityManagersClosed();
+
+    int getOpenEntityManagers();
+
+    void reset();
+}
@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.template;
+
+import java.util.concurrent.Future;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * Runs JpaTemplate code on an executor that is bounded per persistence unit.
+ *
+ * The code runs in its own coordination and transaction on the worker thread. It does
+ * not take part in a transaction of the calling thread. When the executor queue is
+ * full a RejectedExecutionException is thrown.
+ *
+ * The variants with an AsyncCallback report completion without blocking on the Future.
+ * The callback is not called if the call is rejected or cancelled before it started.
+ */
+@ProviderType
+public interface AsyncJpaTemplate {
+    <R> Future<R> txExprAsync(TransactionType type, EmFunction<R> code);
+    Future<?> txAsync(TransactionType type, EmConsumer code);
+
+    <R> Future<R> txExprAsync(EmFunction<R> code);
+    Future<?> txAsync(EmConsumer code);
+
+    <R> Future<R> txExprAsync(TransactionType type, EmFunction<R> code, AsyncCallback<? super R> callback);
+    Future<?> txAsync(TransactionType type, EmConsumer code, AsyncCallback<? super Void> callback);
+}
@@ -18,11 +18,42 @@
  */
 package org.apache.aries.jpa.template;
 
+import javax.persistence.TypedQuery;
 
+import org.osgi.annotation.versioning.ProviderType;
+
+@ProviderType
 public interface JpaTemplate {
     <R> R txExpr(TransactionType type, EmFunction<R> code);
     void tx(TransactionType type, EmConsumer code);
 
     <R> R txExpr(EmFunction<R> code);
     void tx(EmConsumer code);
+
+    /**
+     * Calls code for each item in a single transaction. After every chunkSize items the
+     * EntityManager is flushed and cleared so the persistence context does not grow with
+     * the number of items. Where the provider supports it chunkSize is also used as JDBC
+     * batch size.
+     * <p>
+     * Inside another JpaTemplate call of the same persistence unit the EntityManager and so
+     * the persistence context are shared with the caller. Clearing it also detaches the
+     * entities the caller loaded or persisted before. The caller has to flush its changes
+     * before and must not use its managed entities afterwards without reloading or merging them.
+     */
+    <T> void txBatch(TransactionType type, Iterable<T> items, int chunkSize, EmItemConsumer<? super T> code);
+    <T> void txBatch(Iterable<T> items, int chunkSize, EmItemConsumer<? super T> code);
+
+    /**
+     * Runs the query created by queryCode in a transaction and passes each result to code
+     * as it is read, using the scrolling support of the provider where available. After every
+     * chunkSize results the EntityManager is flushed and cleared, so changes code made to the
+     * processed entities are written and the entities are detached. The results are closed when
+     * all rows were consumed or code throws.
+     * <p>
+     * When called from within another JpaTemplate call of the unit the clearing affects the
+     * shared persistence context of the caller as described for txBatch.
+     */
+    <T> void txStream(TransactionType type, EmFunction<TypedQuery<T>> queryCode, int chunkSize, EmItemConsumer<? super T> code);
+    <T> void txStream(EmFunction<TypedQuery<T>> queryCode, int chunkSize, EmItemConsumer<? super T> code);
 }
@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.template;
+
+import java.util.List;
+
+import org.osgi.annotation.versioning.ConsumerType;
+
+/**
+ * Chooses the shard of a sharded persistence unit for a shard key.
+ *
+ * Register an implementation as a service with the osgi.unit.name property of the
+ * persistence unit to replace the default, which uses the hash code of the key modulo
+ * the number of configured shards.
+ */
+@ConsumerType
+public interface ShardRouter {
+    /**
+     * @param shardKey key supplied by the caller
+     * @param shardIds ids of all shards configured in org.apache.aries.jpa.shard.ids in ascending
+     *        order, whether currently available or not
+     * @return one of shardIds
+     */
+    String route(Object shardKey, List<String> shardIds);
+}
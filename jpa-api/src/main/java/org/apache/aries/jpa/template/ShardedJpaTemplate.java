@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.template;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.aries.jpa.supplier.EmSupplier;
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * Gives access to the shards of a persistence unit whose data is split over several databases.
+ * Each shard has its own EntityManagerFactory for the same unit definition.
+ *
+ * The methods running on all shards use the bounded executor of the persistence unit and run
+ * one transaction per shard. These transactions are not atomic across shards. If code fails on
+ * a shard the first failure is thrown after all shards completed. Called from a thread of that
+ * executor they run the shards one after the other. If the executor rejects a shard the shards
+ * already started complete before the RejectedExecutionException is thrown.
+ */
+@ProviderType
+public interface ShardedJpaTemplate {
+    /**
+     * @return ids of the currently available shards in ascending order
+     */
+    List<String> getShardIds();
+
+    /**
+     * @return template for the shard the ShardRouter chooses for shardKey
+     * @throws IllegalStateException if no shard ids are configured or the chosen shard is not available
+     */
+    JpaTemplate forKey(Object shardKey);
+
+    /**
+     * @return template for the shard with the given id
+     * @throws IllegalArgumentException if the shard is not available
+     */
+    JpaTemplate forShard(String shardId);
+
+    /**
+     * @return supplier of the EntityManager for the shard the ShardRouter chooses for shardKey
+     * @throws IllegalStateException if no shard ids are configured or the chosen shard is not available
+     */
+    EmSupplier emSupplier(Object shardKey);
+
+    /**
+     * Runs code on all shards in parallel.
+     * 
+     * @return the results in the order of getShardIds()
+     */
+    <R> List<R> txExprAll(TransactionType type, EmFunction<R> code);
+
+    /**
+     * Runs a query on all shards in parallel and concatenates the results in shard order
+     */
+    <T> List<T> queryAll(TransactionType type, EmFunction<? extends Collection<T>> code);
+
+    /**
+     * Runs a query on all shards in parallel and merges the results using order
+     */
+    <T> List<T> queryAll(TransactionType type, EmFunction<? extends Collection<T>> code, Comparator<? super T> order);
+}
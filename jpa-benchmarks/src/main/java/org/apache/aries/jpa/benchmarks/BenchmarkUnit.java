@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.benchmarks;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Shared in-memory Derby persistence unit. One entity with id {@link #ENTITY_ID}
+ * is inserted so the find benchmarks always hit a row.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkUnit {
+    public static final String UNIT_NAME = "benchmark";
+    public static final Integer ENTITY_ID = 1;
+
+    // Keep a strong reference so the level is not lost when the logger is collected
+    private static final Logger HIBERNATE_LOGGER = Logger.getLogger("org.hibernate");
+
+    EntityManagerFactory emf;
+
+    @Setup
+    public void setup() {
+        // joinTransaction on a RESOURCE_LOCAL EntityManager logs a warning on every XA call
+        HIBERNATE_LOGGER.setLevel(Level.SEVERE);
+        emf = Persistence.createEntityManagerFactory(UNIT_NAME);
+        EntityManager em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            em.persist(new BenchmarkEntity(ENTITY_ID, "benchmark"));
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        emf.close();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+
+import org.apache.aries.jpa.support.impl.EMSupplierImpl;
+import org.apache.aries.jpa.support.osgi.impl.EMFTracker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.service.coordinator.Coordination;
+
+/**
+ * Compares calls through the EntityManager service proxy created by
+ * {@link EMFTracker#createProxy} with direct calls on the bound EntityManager.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmProxyBenchmark {
+    private EMSupplierImpl emSupplier;
+    private EntityManager proxy;
+    private EntityManager direct;
+    private Coordination coordination;
+
+    @Setup
+    public void setup(BenchmarkUnit unit) {
+        LocalCoordinator coordinator = new LocalCoordinator();
+        emSupplier = new EMSupplierImpl(BenchmarkUnit.UNIT_NAME, unit.emf, coordinator);
+        proxy = EMFTracker.createProxy(emSupplier);
+        coordination = coordinator.begin("benchmark", 0);
+        direct = emSupplier.get();
+    }
+
+    @TearDown
+    public void tearDown() {
+        coordination.end();
+        emSupplier.setShutdownWait(0, TimeUnit.SECONDS);
+        emSupplier.close();
+    }
+
+    @Benchmark
+    public boolean proxyIsOpen() {
+        return proxy.isOpen();
+    }
+
+    @Benchmark
+    public boolean directIsOpen() {
+        return direct.isOpen();
+    }
+
+    @Benchmark
+    public BenchmarkEntity proxyFind() {
+        return proxy.find(BenchmarkEntity.class, BenchmarkUnit.ENTITY_ID);
+    }
+
+    @Benchmark
+    public BenchmarkEntity directFind() {
+        return direct.find(BenchmarkEntity.class, BenchmarkUnit.ENTITY_ID);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+
+import org.apache.aries.jpa.support.impl.EMSupplierImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.service.coordinator.Coordination;
+
+/**
+ * Measures {@link EMSupplierImpl#get()}, both for repeated calls inside one
+ * coordination and for the first call in a fresh coordination.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmSupplierBenchmark {
+
+    @State(Scope.Thread)
+    public static class Supplier {
+        LocalCoordinator coordinator;
+        EMSupplierImpl emSupplier;
+
+        @Setup
+        public void setup(BenchmarkUnit unit) {
+            coordinator = new LocalCoordinator();
+            emSupplier = new EMSupplierImpl(BenchmarkUnit.UNIT_NAME, unit.emf, coordinator);
+        }
+
+        @TearDown
+        public void tearDown() {
+            emSupplier.setShutdownWait(0, TimeUnit.SECONDS);
+            emSupplier.close();
+        }
+    }
+
+    /**
+     * Keeps an interceptor and a template coordination open for the whole trial
+     * so the EntityManager stays bound.
+     */
+    @State(Scope.Thread)
+    public static class BoundSupplier {
+        LocalCoordinator coordinator;
+        EMSupplierImpl emSupplier;
+        private Coordination outer;
+        private Coordination inner;
+
+        @Setup
+        public void setup(BenchmarkUnit unit) {
+            coordinator = new LocalCoordinator();
+            emSupplier = new EMSupplierImpl(BenchmarkUnit.UNIT_NAME, unit.emf, coordinator);
+            outer = coordinator.begin("outer", 0);
+            inner = coordinator.begin("inner", 0);
+            emSupplier.get();
+        }
+
+        @TearDown
+        public void tearDown() {
+            inner.end();
+            outer.end();
+            emSupplier.setShutdownWait(0, TimeUnit.SECONDS);
+            emSupplier.close();
+        }
+    }
+
+    /**
+     * Steady state: the EntityManager is already bound to the coordination.
+     */
+    @Benchmark
+    public EntityManager getBound(BoundSupplier state) {
+        return state.emSupplier.get();
+    }
+
+    /**
+     * Fresh coordination: binds, creates and on end closes the EntityManager.
+     */
+    @Benchmark
+    public EntityManager getInNewCoordination(Supplier state) {
+        Coordination coordination = state.coordinator.begin("benchmark", 0);
+        try {
+            return state.emSupplier.get();
+        } finally {
+            coordination.end();
+        }
+    }
+}
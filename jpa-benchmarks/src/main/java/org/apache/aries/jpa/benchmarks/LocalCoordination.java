@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.service.coordinator.Coordination;
+import org.osgi.service.coordinator.CoordinationException;
+import org.osgi.service.coordinator.Participant;
+
+/**
+ * Coordination created by {@link LocalCoordinator}. Participants are notified
+ * in registration order when the coordination ends or fails.
+ */
+public class LocalCoordination implements Coordination {
+    private final LocalCoordinator coordinator;
+    private final long id;
+    private final String name;
+    private final List<Participant> participants = new ArrayList<Participant>();
+    private final Map<Class<?>, Object> variables = new HashMap<Class<?>, Object>();
+    private Coordination enclosing;
+    private Throwable failure;
+    private boolean terminated;
+
+    LocalCoordination(LocalCoordinator coordinator, long id, String name) {
+        this.coordinator = coordinator;
+        this.id = id;
+        this.name = name;
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void end() {
+        if (terminated) {
+            throw new CoordinationException("Coordination already terminated", this, CoordinationException.ALREADY_ENDED);
+        }
+        terminated = true;
+        coordinator.remove(this);
+        for (Participant participant : participants) {
+            try {
+                if (failure == null) {
+                    participant.ended(this);
+                } else {
+                    participant.failed(this);
+                }
+            } catch (Exception e) {
+                throw new CoordinationException("Participant failed", this, CoordinationException.PARTIALLY_ENDED, e);
+            }
+        }
+    }
+
+    @Override
+    public boolean fail(Throwable cause) {
+        if (terminated) {
+            return false;
+        }
+        failure = cause;
+        return true;
+    }
+
+    @Override
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return terminated;
+    }
+
+    @Override
+    public void addParticipant(Participant participant) {
+        if (!participants.contains(participant)) {
+            participants.add(participant);
+        }
+    }
+
+    @Override
+    public List<Participant> getParticipants() {
+        return new ArrayList<Participant>(participants);
+    }
+
+    @Override
+    public Map<Class<?>, Object> getVariables() {
+        return variables;
+    }
+
+    @Override
+    public long extendTimeout(long timeMillis) {
+        return 0;
+    }
+
+    @Override
+    public void join(long timeMillis) throws InterruptedException {
+        // Coordinations are always ended by the thread that began them
+    }
+
+    @Override
+    public Coordination push() {
+        coordinator.push(this);
+        return this;
+    }
+
+    @Override
+    public Thread getThread() {
+        return Thread.currentThread();
+    }
+
+    @Override
+    public Bundle getBundle() {
+        return null;
+    }
+
+    @Override
+    public Coordination getEnclosingCoordination() {
+        return enclosing;
+    }
+
+    void setEnclosing(Coordination enclosing) {
+        this.enclosing = enclosing;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.benchmarks;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+
+import org.osgi.service.coordinator.Coordination;
+import org.osgi.service.coordinator.Coordinator;
+import org.osgi.service.coordinator.Participant;
+
+/**
+ * Minimal Coordinator stand-in for running the templates outside of OSGi.
+ *
+ * Each benchmark thread owns its own instance, so the coordination stack is
+ * not synchronized.
+ */
+public class LocalCoordinator implements Coordinator {
+    private final Deque<LocalCoordination> stack = new ArrayDeque<LocalCoordination>();
+    private long nextId;
+
+    @Override
+    public Coordination create(String name, long timeMillis) {
+        return new LocalCoordination(this, ++nextId, name);
+    }
+
+    @Override
+    public Coordination begin(String name, long timeMillis) {
+        LocalCoordination coordination = new LocalCoordination(this, ++nextId, name);
+        coordination.push();
+        return coordination;
+    }
+
+    @Override
+    public Coordination peek() {
+        return stack.peek();
+    }
+
+    @Override
+    public Coordination pop() {
+        LocalCoordination coordination = stack.poll();
+        if (coordination != null) {
+            coordination.setEnclosing(null);
+        }
+        return coordination;
+    }
+
+    void push(LocalCoordination coordination) {
+        coordination.setEnclosing(stack.peek());
+        stack.push(coordination);
+    }
+
+    void remove(LocalCoordination coordination) {
+        if (stack.peek() == coordination) {
+            pop();
+        } else {
+            stack.remove(coordination);
+        }
+    }
+
+    @Override
+    public boolean fail(Throwable cause) {
+        Coordination coordination = peek();
+        return coordination != null && coordination.fail(cause);
+    }
+
+    @Override
+    public boolean addParticipant(Participant participant) {
+        Coordination coordination = peek();
+        if (coordination == null) {
+            return false;
+        }
+        coordination.addParticipant(participant);
+        return true;
+    }
+
+    @Override
+    public Collection<Coordination> getCoordinations() {
+        return Collections.<Coordination>unmodifiableCollection(stack);
+    }
+
+    @Override
+    public Coordination getCoordination(long id) {
+        for (Coordination coordination : stack) {
+            if (coordination.getId() == id) {
+                return coordination;
+            }
+        }
+        return null;
+    }
+}
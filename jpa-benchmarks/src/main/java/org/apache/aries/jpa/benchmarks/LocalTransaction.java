@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.xa.XAResource;
+
+/**
+ * Transaction of the {@link LocalTransactionManager}. Resources are not enlisted,
+ * only synchronizations are called on completion.
+ */
+public class LocalTransaction implements Transaction {
+    private int status = Status.STATUS_ACTIVE;
+    private List<Synchronization> synchronizations;
+
+    @Override
+    public void commit() throws RollbackException, SystemException {
+        if (status == Status.STATUS_MARKED_ROLLBACK) {
+            rollback();
+            throw new RollbackException("Transaction was marked for rollback");
+        }
+        beforeCompletion();
+        status = Status.STATUS_COMMITTED;
+        afterCompletion();
+    }
+
+    @Override
+    public void rollback() throws SystemException {
+        status = Status.STATUS_ROLLEDBACK;
+        afterCompletion();
+    }
+
+    @Override
+    public boolean delistResource(XAResource xaRes, int flag) throws SystemException {
+        return true;
+    }
+
+    @Override
+    public boolean enlistResource(XAResource xaRes) throws RollbackException, SystemException {
+        return true;
+    }
+
+    @Override
+    public int getStatus() throws SystemException {
+        return status;
+    }
+
+    @Override
+    public void registerSynchronization(Synchronization sync) throws RollbackException, SystemException {
+        if (synchronizations == null) {
+            synchronizations = new ArrayList<Synchronization>();
+        }
+        synchronizations.add(sync);
+    }
+
+    @Override
+    public void setRollbackOnly() throws SystemException {
+        status = Status.STATUS_MARKED_ROLLBACK;
+    }
+
+    private void beforeCompletion() {
+        if (synchronizations != null) {
+            for (Synchronization sync : synchronizations) {
+                sync.beforeCompletion();
+            }
+        }
+    }
+
+    private void afterCompletion() {
+        if (synchronizations != null) {
+            for (Synchronization sync : synchronizations) {
+                sync.afterCompletion(status);
+            }
+        }
+    }
+}
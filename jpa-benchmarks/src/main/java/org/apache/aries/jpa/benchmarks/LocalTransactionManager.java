@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.benchmarks;
+
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+/**
+ * TransactionManager stand-in that only tracks transaction state so the
+ * XAJpaTemplate overhead can be measured without a real JTA implementation.
+ *
+ * Each benchmark thread owns its own instance, so the state is not synchronized.
+ */
+public class LocalTransactionManager implements TransactionManager {
+    private LocalTransaction current;
+
+    @Override
+    public void begin() throws NotSupportedException, SystemException {
+        if (current != null) {
+            throw new NotSupportedException("Nested transactions are not supported");
+        }
+        current = new LocalTransaction();
+    }
+
+    @Override
+    public void commit() throws RollbackException, SystemException {
+        LocalTransaction tx = requireTransaction();
+        current = null;
+        tx.commit();
+    }
+
+    @Override
+    public void rollback() throws SystemException {
+        LocalTransaction tx = requireTransaction();
+        current = null;
+        tx.rollback();
+    }
+
+    @Override
+    public int getStatus() throws SystemException {
+        return current == null ? Status.STATUS_NO_TRANSACTION : current.getStatus();
+    }
+
+    @Override
+    public Transaction getTransaction() throws SystemException {
+        return current;
+    }
+
+    @Override
+    public void resume(Transaction tx) throws InvalidTransactionException, SystemException {
+        if (current != null) {
+            throw new IllegalStateException("Transaction already associated with thread");
+        }
+        if (tx != null && !(tx instanceof LocalTransaction)) {
+            throw new InvalidTransactionException("Unknown transaction " + tx);
+        }
+        current = (LocalTransaction)tx;
+    }
+
+    @Override
+    public Transaction suspend() throws SystemException {
+        LocalTransaction tx = current;
+        current = null;
+        return tx;
+    }
+
+    @Override
+    public void setRollbackOnly() throws SystemException {
+        requireTransaction().setRollbackOnly();
+    }
+
+    @Override
+    public void setTransactionTimeout(int seconds) throws SystemException {
+        // Timeouts are not enforced
+    }
+
+    private LocalTransaction requireTransaction() {
+        if (current == null) {
+            throw new IllegalStateException("No transaction associated with thread");
+        }
+        return current;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+
+import org.apache.aries.jpa.support.impl.EMSupplierImpl;
+import org.apache.aries.jpa.support.impl.XAJpaTemplate;
+import org.apache.aries.jpa.template.EmFunction;
+import org.apache.aries.jpa.template.TransactionType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link XAJpaTemplate#txExpr(TransactionType, EmFunction)} for every
+ * TransactionType that can run without an enclosing transaction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XAJpaTemplateBenchmark {
+    private static final EmFunction<Object> NOOP = new EmFunction<Object>() {
+        @Override
+        public Object apply(EntityManager em) {
+            return em;
+        }
+    };
+
+    private static final EmFunction<BenchmarkEntity> FIND = new EmFunction<BenchmarkEntity>() {
+        @Override
+        public BenchmarkEntity apply(EntityManager em) {
+            return em.find(BenchmarkEntity.class, BenchmarkUnit.ENTITY_ID);
+        }
+    };
+
+    @Param({"Required", "RequiresNew", "Supports", "NotSupported", "Never"})
+    TransactionType type;
+
+    private EMSupplierImpl emSupplier;
+    private XAJpaTemplate template;
+
+    @Setup
+    public void setup(BenchmarkUnit unit) {
+        LocalCoordinator coordinator = new LocalCoordinator();
+        emSupplier = new EMSupplierImpl(BenchmarkUnit.UNIT_NAME, unit.emf, coordinator);
+        template = new XAJpaTemplate(emSupplier, new LocalTransactionManager(), coordinator);
+    }
+
+    @TearDown
+    public void tearDown() {
+        emSupplier.setShutdownWait(0, TimeUnit.SECONDS);
+        emSupplier.close();
+    }
+
+    /**
+     * Framework overhead only: the function does not touch the EntityManager.
+     */
+    @Benchmark
+    public Object txExprNoop() {
+        return template.txExpr(type, NOOP);
+    }
+
+    @Benchmark
+    public BenchmarkEntity txExprFind() {
+        return template.txExpr(type, FIND);
+    }
+}
@@ -58,6 +58,7 @@ public class Activator implements BundleActivator, BundleListener {
     public static final String ECLIPSELINK_JPA_PROVIDER_CLASS_NAME = "org.eclipse.persistence.jpa.PersistenceProvider";
     private static final Logger LOG = LoggerFactory.getLogger(Activator.class);
     private final ConcurrentMap<Bundle, ServiceRegistration<?>> registeredProviders = new ConcurrentHashMap<Bundle, ServiceRegistration<?>>();
+    private final ConcurrentMap<Bundle, ServiceRegistration<?>> registeredTransformerProviders = new ConcurrentHashMap<Bundle, ServiceRegistration<?>>();
     
     private BundleContext context;
     
@@ -80,6 +81,9 @@ public class Activator implements BundleActivator, BundleListener {
         for (ServiceRegistration<?> reg : registeredProviders.values()) {
           reg.unregister();
         }
+        for (ServiceRegistration<?> reg : registeredTransformerProviders.values()) {
+          reg.unregister();
+        }
       }
     
     @Override
@@ -91,6 +95,10 @@ public class Activator implements BundleActivator, BundleListener {
             if (reg != null) {
                 reg.unregister();
             }
+            ServiceRegistration<?> transformerReg = registeredTransformerProviders.remove(event.getBundle());
+            if (transformerReg != null) {
+                transformerReg.unregister();
+            }
         }
     }
     
@@ -107,6 +115,9 @@ public class Activator implements BundleActivator, BundleListener {
             return;
         }
 
+        // Must be available before the provider so the container does not fall back to a temporary EMF
+        registerTransformerProvider(b);
+
         LOG.debug("Adding new EclipseLink provider for bundle {}", b);
         PersistenceProvider proxiedProvider = new EclipseLinkPersistenceProvider(provider, b);
         
@@ -121,6 +132,18 @@ public class Activator implements BundleActivator, BundleListener {
         }
     }
 
+    private void registerTransformerProvider(Bundle b) {
+        try {
+            ServiceRegistration<?> reg = EclipseLinkTransformerProvider.register(context, b);
+            ServiceRegistration<?> old = registeredTransformerProviders.putIfAbsent(b, reg);
+            if (old != null) {
+                reg.unregister();
+            }
+        } catch (NoClassDefFoundError e) {
+            LOG.debug("Aries JPA container weaving SPI not available. EclipseLink transformers will be created by the container", e);
+        }
+    }
+
     @SuppressWarnings("unchecked")
     private static PersistenceProvider createEclipselinkProvider(Bundle b) {
         try {
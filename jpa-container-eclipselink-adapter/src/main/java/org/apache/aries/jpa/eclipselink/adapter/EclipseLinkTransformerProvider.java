@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.eclipselink.adapter;
+
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+import javax.persistence.spi.ClassTransformer;
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import org.apache.aries.jpa.container.weaving.ClassTransformerProvider;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Obtains the EclipseLink weaving transformer from the predeploy phase of EclipseLink
+ * instead of creating a full EntityManagerFactory.
+ * 
+ * This class must only be loaded if the Aries JPA container weaving SPI is available.
+ */
+final class EclipseLinkTransformerProvider implements ClassTransformerProvider {
+    private static final String SETUP_CLASS = "org.eclipse.persistence.internal.jpa.EntityManagerSetupImpl";
+    private static final Logger LOG = LoggerFactory.getLogger(EclipseLinkTransformerProvider.class);
+
+    private final Bundle eclipseLinkBundle;
+
+    EclipseLinkTransformerProvider(Bundle eclipseLinkBundle) {
+        this.eclipseLinkBundle = eclipseLinkBundle;
+    }
+
+    static ServiceRegistration<?> register(BundleContext context, Bundle eclipseLinkBundle) {
+        Dictionary<String, Object> props = new Hashtable<String, Object>(); // NOSONAR
+        props.put("javax.persistence.provider", Activator.ECLIPSELINK_JPA_PROVIDER_CLASS_NAME);
+        return context.registerService(ClassTransformerProvider.class, 
+                                       new EclipseLinkTransformerProvider(eclipseLinkBundle), props);
+    }
+
+    @Override
+    public boolean addTransformers(PersistenceUnitInfo punit, Map<String, Object> props) {
+        Map<String, Object> predeployProps = new HashMap<String, Object>(props);
+        PersistenceUnitInfo proxied = new PersistenceUnitProxyWithTargetServer(punit, eclipseLinkBundle, predeployProps);
+        try {
+            Class<?> setupClass = eclipseLinkBundle.loadClass(SETUP_CLASS);
+            String name = punit.getPersistenceUnitRootUrl() + "_" + punit.getPersistenceUnitName() + "_transformer";
+            Object setup = setupClass.getConstructor(String.class, String.class).newInstance(name, name);
+            ClassTransformer transformer = (ClassTransformer)setupClass
+                .getMethod("predeploy", PersistenceUnitInfo.class, Map.class)
+                .invoke(setup, proxied, predeployProps);
+            if (transformer != null) {
+                punit.addTransformer(transformer);
+            }
+            return true;
+        } catch (Exception e) {
+            LOG.debug("Unable to predeploy persistence unit " + punit.getPersistenceUnitName(), e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.eclipselink.adapter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.instrument.IllegalClassFormatException;
+import java.net.URL;
+import java.security.ProtectionDomain;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.spi.ClassTransformer;
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+public class EclipseLinkTransformerProviderTest {
+    private static final String SETUP_CLASS = "org.eclipse.persistence.internal.jpa.EntityManagerSetupImpl";
+
+    private Bundle eclipseLinkBundle;
+    private PersistenceUnitInfo punit;
+
+    @Before
+    public void setup() throws Exception {
+        FakeSetup.reset();
+        eclipseLinkBundle = mock(Bundle.class);
+        doReturn(FakeSetup.class).when(eclipseLinkBundle).loadClass(SETUP_CLASS);
+        punit = mock(PersistenceUnitInfo.class);
+        when(punit.getPersistenceUnitName()).thenReturn("test");
+        when(punit.getPersistenceUnitRootUrl()).thenReturn(new URL("file:/bundle/"));
+    }
+
+    @Test
+    public void testPredeployTransformerIsAdded() {
+        FakeSetup.transformer = new NoopTransformer();
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put("eclipselink.weaving", "true");
+
+        assertTrue(createProvider().addTransformers(punit, props));
+
+        verify(punit).addTransformer(FakeSetup.transformer);
+        assertEquals("file:/bundle/_test_transformer", FakeSetup.sessionName);
+        assertEquals("true", FakeSetup.props.get("eclipselink.weaving"));
+        // EclipseLink must see the unit through the class loader of the adapter
+        assertSame(PersistenceUnitProxyWithTargetServer.class, FakeSetup.punit.getClass());
+    }
+
+    @Test
+    public void testNoTransformerNeeded() {
+        assertTrue(createProvider().addTransformers(punit, Collections.<String, Object>emptyMap()));
+        verify(punit, never()).addTransformer(any(ClassTransformer.class));
+    }
+
+    @Test
+    public void testPredeployFailureFallsBack() {
+        FakeSetup.failure = new IllegalStateException("predeploy");
+        assertFalse(createProvider().addTransformers(punit, Collections.<String, Object>emptyMap()));
+        verify(punit, never()).addTransformer(any(ClassTransformer.class));
+    }
+
+    @Test
+    public void testEclipseLinkWithoutSetupClassFallsBack() throws Exception {
+        when(eclipseLinkBundle.loadClass(SETUP_CLASS)).thenThrow(new ClassNotFoundException(SETUP_CLASS));
+        assertFalse(createProvider().addTransformers(punit, Collections.<String, Object>emptyMap()));
+    }
+
+    private EclipseLinkTransformerProvider createProvider() {
+        return new EclipseLinkTransformerProvider(eclipseLinkBundle);
+    }
+
+    /**
+     * Stands in for EntityManagerSetupImpl which is loaded reflectively from the EclipseLink bundle
+     */
+    public static class FakeSetup {
+        static ClassTransformer transformer;
+        static RuntimeException failure;
+        static String sessionName;
+        static PersistenceUnitInfo punit;
+        static Map<?, ?> props;
+
+        public FakeSetup(String puName, String sessionName) {
+            FakeSetup.sessionName = sessionName;
+        }
+
+        static void reset() {
+            transformer = null;
+            failure = null;
+            sessionName = null;
+            punit = null;
+            props = null;
+        }
+
+        public ClassTransformer predeploy(PersistenceUnitInfo info, Map<?, ?> predeployProps) {
+            punit = info;
+            props = predeployProps;
+            if (failure != null) {
+                throw failure;
+            }
+            return transformer;
+        }
+    }
+
+    private static class NoopTransformer implements ClassTransformer {
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                                ProtectionDomain protectionDomain, byte[] classfileBuffer)
+            throws IllegalClassFormatException {
+            return null;
+        }
+    }
+}
@@ -18,28 +18,66 @@
  */
 package org.apache.aries.jpa.container.impl;
 
+import java.io.File;
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.aries.jpa.container.parser.impl.PersistenceUnitCache;
+import org.apache.aries.jpa.container.weaving.impl.JPAWeavingHook;
 import org.apache.aries.jpa.container.weaving.impl.TransformerRegistry;
 import org.apache.aries.jpa.container.weaving.impl.TransformerRegistrySingleton;
+import org.apache.aries.jpa.container.weaving.impl.WovenClassCache;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
 import org.osgi.framework.Constants;
 import org.osgi.framework.hooks.weaving.WeavingHook;
 import org.osgi.framework.wiring.BundleWiring;
 import org.osgi.util.tracker.BundleTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class Activator implements BundleActivator {
+    /**
+     * Framework property with the number of threads used to parse persistence bundles.
+     * Persistence bundles are parsed on the framework event thread if unset or below 2.
+     */
+    static final String PARALLELISM = "org.apache.aries.jpa.container.parallelism";
+
+    /**
+     * Framework property to disable the cache of parsed persistence units by setting it to false.
+     */
+    static final String CACHE = "org.apache.aries.jpa.container.cache";
+
+    /**
+     * Framework property to enable the cache of woven classes by setting it to true.
+     */
+    static final String WEAVING_CACHE = "org.apache.aries.jpa.weaving.cache";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Activator.class);
 
     private BundleTracker<Bundle> persistenceBundleManager;
+    private ExecutorService executor;
 
     @Override
     public void start(BundleContext context) throws Exception {
-        registerWeavingHook(context, TransformerRegistrySingleton.get());
+        TransformerRegistry tr = TransformerRegistrySingleton.get();
+        if (tr instanceof JPAWeavingHook) {
+            ((JPAWeavingHook)tr).setCache(createWovenClassCache(context));
+        }
+        registerWeavingHook(context, tr);
 
-        PersistenceBundleTracker customizer = new PersistenceBundleTracker(context.getBundle().adapt(BundleWiring.class));
+        executor = createExecutor(context);
+        PersistenceBundleTracker customizer = new PersistenceBundleTracker(context.getBundle().adapt(BundleWiring.class), executor,
+                                                                           createCache(context));
         persistenceBundleManager = new BundleTracker<Bundle>(context, Bundle.STARTING | Bundle.ACTIVE, customizer);
         persistenceBundleManager.open();
     }
@@ -55,9 +93,83 @@ public class Activator implements BundleActivator {
         context.registerService(WeavingHook.class.getName(), tr, props);
     }
 
+    private static PersistenceUnitCache createCache(BundleContext context) {
+        if ("false".equals(context.getProperty(CACHE))) {
+            return null;
+        }
+        File dir = context.getDataFile("punits");
+        if (dir == null) {
+            LOGGER.debug("No persistent storage available. Persistence units will not be cached");
+            return null;
+        }
+        return new PersistenceUnitCache(dir, context.getBundle());
+    }
+
+    /**
+     * Removes the cached classes of uninstalled bundles and of replaced bundle versions
+     * now and whenever a bundle is uninstalled or updated.
+     */
+    private static WovenClassCache createWovenClassCache(final BundleContext context) {
+        if (!"true".equals(context.getProperty(WEAVING_CACHE))) {
+            return null;
+        }
+        File dir = context.getDataFile("woven");
+        if (dir == null) {
+            LOGGER.warn("No persistent storage available. Woven classes will not be cached");
+            return null;
+        }
+        final WovenClassCache cache = new WovenClassCache(dir);
+        cache.prune(context.getBundles());
+        context.addBundleListener(new BundleListener() {
+            @Override
+            public void bundleChanged(BundleEvent event) {
+                if (event.getType() == BundleEvent.UNINSTALLED || event.getType() == BundleEvent.UPDATED) {
+                    cache.prune(context.getBundles());
+                }
+            }
+        });
+        return cache;
+    }
+
+    private static ExecutorService createExecutor(BundleContext context) {
+        String parallelismSt = context.getProperty(PARALLELISM);
+        if (parallelismSt == null) {
+            return null;
+        }
+        int parallelism;
+        try {
+            parallelism = Integer.parseInt(parallelismSt.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid value {} for {}. Parsing persistence bundles serially", parallelismSt, PARALLELISM);
+            return null;
+        }
+        if (parallelism < 2) {
+            return null;
+        }
+        LOGGER.info("Parsing persistence bundles with {} threads", parallelism);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<Runnable>(), new ScannerThreadFactory());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
     @Override
     public void stop(BundleContext context) throws Exception {
         persistenceBundleManager.close();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private static final class ScannerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Aries JPA persistence bundle parser " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 
 }
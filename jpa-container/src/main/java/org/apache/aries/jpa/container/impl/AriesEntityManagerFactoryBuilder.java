@@ -19,14 +19,18 @@
 package org.apache.aries.jpa.container.impl;
 
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.Collections;
 import java.util.Dictionary;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.spi.PersistenceProvider;
@@ -35,6 +39,8 @@ import javax.persistence.spi.PersistenceUnitTransactionType;
 import javax.sql.DataSource;
 
 import org.apache.aries.jpa.container.parser.impl.PersistenceUnit;
+import org.apache.aries.jpa.container.pool.impl.ConnectionPool;
+import org.apache.aries.jpa.container.pool.impl.PoolConfig;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -62,6 +68,51 @@ public class AriesEntityManagerFactoryBuilder implements EntityManagerFactoryBui
 	private static final String JAVAX_PERSISTENCE_DATASOURCE = "javax.persistence.dataSource";
 	private static final String JAVAX_PERSISTENCE_NON_JTA_DATASOURCE = "javax.persistence.nonJtaDataSource";
 	private static final String JAVAX_PERSISTENCE_TX_TYPE = "javax.persistence.transactionType";
+	/**
+	 * Persistence unit or configuration property that defers creating the provider
+	 * EntityManagerFactory until the published service is first used
+	 */
+	static final String LAZY = "org.apache.aries.jpa.lazy";
+	/**
+	 * Persistence unit or configuration property. If true a changed configuration or DataSource
+	 * replaces the EntityManagerFactory behind the published service instead of unregistering it
+	 */
+	static final String SWAP = "org.apache.aries.jpa.swap";
+	/**
+	 * Milliseconds to wait for the EntityManagers of a replaced EntityManagerFactory before it is closed
+	 */
+	static final String SWAP_DRAIN_TIMEOUT = "org.apache.aries.jpa.swap.drainTimeout";
+	private static final long DEFAULT_DRAIN_TIMEOUT = 60000;
+	/**
+	 * Persistence unit or configuration property with the name of read replica DataSources in
+	 * the same format as the jta-data-source. Each matching DataSource service is published as
+	 * an additional EntityManagerFactory with the service property REPLICA
+	 */
+	static final String REPLICA_DATA_SOURCE = "org.apache.aries.jpa.replica.dataSource";
+	/**
+	 * Service property that marks the EntityManagerFactory of a read replica
+	 */
+	static final String REPLICA = "org.apache.aries.jpa.replica";
+	/**
+	 * Persistence unit or configuration property with the name of shard DataSources in the same
+	 * format as the jta-data-source. Each matching DataSource service is published as an additional
+	 * EntityManagerFactory with the service property SHARD
+	 */
+	static final String SHARD_DATA_SOURCE = "org.apache.aries.jpa.shard.dataSource";
+	/**
+	 * Service property with the id of the shard. On the DataSource it sets the id, which
+	 * defaults to the osgi.jndi.service.name of the DataSource
+	 */
+	static final String SHARD = "org.apache.aries.jpa.shard";
+	/**
+	 * Service property with the unit name of a replica or shard EntityManagerFactory. Members are
+	 * published without osgi.unit.name so that only consumers aware of replicas and shards bind to them
+	 */
+	static final String MEMBER_UNIT_NAME = "org.apache.aries.jpa.member.unitName";
+	/**
+	 * EclipseLink caches sessions by this name, so every member needs its own
+	 */
+	private static final String SESSION_NAME = "eclipselink.session-name";
 
 
 	private boolean closed;
@@ -77,12 +128,25 @@ public class AriesEntityManagerFactoryBuilder implements EntityManagerFactoryBui
 	private EntityManagerFactory emf;
 	private ServiceRegistration<EntityManagerFactory> reg;
 	private ServiceRegistration<?> configReg;
+	private ManagedEMF managedEMF;
 	private Object activeConnectionProvider;
 	private Map<String, Object> activeProps;
 	private ServiceTracker<?,?> tracker;
+	private ConnectionPool pool;
+	private SwappableEntityManagerFactory swappable;
+	private DefaultPropertiesEntityManagerFactory hotDefaults;
+	private ReplicaTracker replicaTracker;
+	private ReplicaTracker shardTracker;
+	private final Map<ServiceRegistration<EntityManagerFactory>, Member> members = 
+			new HashMap<ServiceRegistration<EntityManagerFactory>, Member>();
+	/**
+	 * Set in swap mode if the DataSource was replaced so the next create does not reuse the current EMF
+	 */
+	private boolean dataSourceReplaced;
 
 	private boolean complete;
 
+	private final EmfMetrics metrics;
 
 
 	public AriesEntityManagerFactoryBuilder(BundleContext containerContext, PersistenceProvider provider, Bundle providerBundle, PersistenceUnit persistenceUnit) {
@@ -99,6 +163,8 @@ public class AriesEntityManagerFactoryBuilder implements EntityManagerFactoryBui
 			 this.tracker.open();
 		}
 		registerManagedService(containerContext, persistenceUnit);
+		this.metrics = new EmfMetrics(persistenceUnit.getPersistenceUnitName());
+		metrics.register(containerContext);
 	}
 	
     private ServiceTracker<?, ?> createDataSourceTracker(PersistenceProvider provider) {
@@ -172,15 +238,31 @@ public class AriesEntityManagerFactoryBuilder implements EntityManagerFactoryBui
 		
 		Map<String, Object> processedProperties = processProperties(props);
 		
+		ConnectionPool currentPool;
 		synchronized (this) {
-			if(processedProperties.equals(activeProps) && emf != null) {
+			currentPool = pool;
+		}
+		if (currentPool != null) {
+			currentPool.configure(new PoolConfig(processedProperties));
+		}
+		
+		synchronized (this) {
+			if(processedProperties.equals(activeProps) && emf != null && !dataSourceReplaced) {
 				return emf;
 			}
 		}
 		
-		closeEMF();
-		
-		final EntityManagerFactory toUse = createAndPublishEMF(processedProperties);
+		EntityManagerFactory current = applyHotProperties(processedProperties);
+		if (current == null) {
+			current = swapEMF(processedProperties);
+		}
+		final EntityManagerFactory toUse;
+		if (current != null) {
+			toUse = current;
+		} else {
+			closeEMF();
+			toUse = createAndPublishEMF(processedProperties);
+		}
 		
 		return (EntityManagerFactory) Proxy.newProxyInstance(getClass().getClassLoader(), 
 				new Class<?>[] {EntityManagerFactory.class}, new InvocationHandler() {
@@ -277,18 +359,27 @@ public class AriesEntityManagerFactoryBuilder implements EntityManagerFactoryBui
 	private void registerManagedService(BundleContext containerContext, PersistenceUnitInfo persistenceUnit) {
 		Dictionary<String, Object> configuration = new Hashtable<String, Object>(); // NOSONAR
 		configuration.put(Constants.SERVICE_PID, JPA_CONFIGURATION_PREFIX + persistenceUnit.getPersistenceUnitName());
-		configReg = containerContext.registerService(ManagedService.class, 
-				new ManagedEMF(this, persistenceUnit.getPersistenceUnitName()), configuration);
+		managedEMF = new ManagedEMF(this, persistenceUnit.getPersistenceUnitName());
+		configReg = containerContext.registerService(ManagedService.class, managedEMF, configuration);
 	}
 
 	public void closeEMF() {
 		
 		EntityManagerFactory emf;
 		ServiceRegistration<EntityManagerFactory> emfReg;
+		ReplicaTracker replicasToClose;
+		ReplicaTracker shardsToClose;
 		
 		synchronized (this) {
 			emf = this.emf;
+			replicasToClose = replicaTracker;
+			replicaTracker = null;
+			shardsToClose = shardTracker;
+			shardTracker = null;
 			this.emf = null;
+			swappable = null;
+			hotDefaults = null;
+			dataSourceReplaced = false;
 			
 			emfReg = this.reg;
 			this.reg = null;
@@ -301,12 +392,20 @@ public class AriesEntityManagerFactoryBuilder implements EntityManagerFactoryBui
 				LOGGER.debug("Exception on unregister", e);
 			}
 		}
+		if (replicasToClose != null) {
+			replicasToClose.close();
+		}
+		if (shardsToClose != null) {
+			shardsToClose.close();
+		}
 		if (emf != null && emf.isOpen()) {
+			long start = System.nanoTime();
 			try {
 				emf.close();
 			} catch (Exception e) {
 				LOGGER.warn("Error closing EntityManagerFactory for " + getPUName(), e);
 			}
+			metrics.emfClosed(System.nanoTime() - start);
 		}
 	}
 
@@ -325,6 +424,7 @@ public class AriesEntityManagerFactoryBuilder implements EntityManagerFactoryBui
 			} catch (Exception e) {
 				LOGGER.debug("Exception on unregister", e);
 			}
+			managedEMF.close();
 		}
 		
 		if (toClose != null) {
@@ -332,9 +432,24 @@ public class AriesEntityManagerFactoryBuilder implements EntityManagerFactoryBui
 		}
 		
 		closeEMF();
+		closePool();
+		metrics.unregister();
+	}
+
+	private void closePool() {
+		ConnectionPool toClose = takePool();
+		if (toClose != null) {
+			toClose.close();
+		}
 	}
 
-	private EntityManagerFactory createAndPublishEMF(Map<String, Object> overrides) {
+	private synchronized ConnectionPool takePool() {
+		ConnectionPool current = pool;
+		pool = null;
+		return current;
+	}
+
+	private EntityManagerFactory createAndPublishEMF(final Map<String, Object> overrides) {
 		
 		boolean makeTracker;
 		String dbDriver;
@@ -368,11 +483,18 @@ public class AriesEntityManagerFactoryBuilder implements EntityManagerFactoryBui
 			}
 		}
 		
-		final EntityManagerFactory tmp = provider.createContainerEntityManagerFactory(persistenceUnit, overrides);
+		EntityManagerFactory target = newEMF(overrides);
+		SwappableEntityManagerFactory newSwappable = isEnabled(SWAP, overrides) 
+				? new SwappableEntityManagerFactory(getPUName(), target, getDrainTimeout(overrides)) : null;
+		DefaultPropertiesEntityManagerFactory newDefaults = new DefaultPropertiesEntityManagerFactory(
+				newSwappable != null ? newSwappable.getProxy() : target);
+		final EntityManagerFactory tmp = newDefaults.getProxy();
 		boolean register = false;
 		synchronized (this) {
 			if(emf == null) {
 				emf = tmp;
+				swappable = newSwappable;
+				hotDefaults = newDefaults;
 				activeProps = overrides;
 				register = true;
 			}
@@ -406,6 +528,8 @@ public class AriesEntityManagerFactoryBuilder implements EntityManagerFactoryBui
 			
 			if(!register) {
 				tmpReg.unregister();
+			} else {
+				openMemberTrackers(overrides);
 			}
 		} else {
 			tmp.close();
@@ -416,6 +540,330 @@ public class AriesEntityManagerFactoryBuilder implements EntityManagerFactoryBui
 		return tmp;
 	}
 
+	private void openMemberTrackers(Map<String, Object> overrides) {
+		Object replicaName = getProperty(REPLICA_DATA_SOURCE, overrides);
+		if (replicaName != null) {
+			ReplicaTracker newTracker = new ReplicaTracker(containerContext, this, replicaName.toString());
+			synchronized (this) {
+				if (replicaTracker != null || reg == null) {
+					newTracker = null;
+				} else {
+					replicaTracker = newTracker;
+				}
+			}
+			if (newTracker != null) {
+				newTracker.open();
+			}
+		}
+		Object shardName = getProperty(SHARD_DATA_SOURCE, overrides);
+		if (shardName != null) {
+			ReplicaTracker newTracker = new ShardTracker(containerContext, this, shardName.toString());
+			synchronized (this) {
+				if (shardTracker != null || reg == null) {
+					return;
+				}
+				shardTracker = newTracker;
+			}
+			newTracker.open();
+		}
+	}
+
+	/**
+	 * Publishes an additional EntityManagerFactory of the unit that uses ds. It gets the hot
+	 * properties of the unit and is swapped together with the primary EntityManagerFactory.
+	 * 
+	 * @param memberProps service properties marking the role of the EntityManagerFactory
+	 */
+	ServiceRegistration<EntityManagerFactory> publishMember(DataSource ds, Dictionary<String, Object> memberProps) {
+		volatile Map<String, Object> props;
+		synchronized (this) {
+			if (activeProps == null) {
+				throw new IllegalStateException("The persistence unit " + getPUName() + " is not active");
+			}
+			props = activeProps;
+		}
+		EntityManagerFactory target = createMemberEMF(ds, memberProps, props);
+		final Member member = new Member(ds, memberProps, props, target, isEnabled(SWAP, props) 
+				? new SwappableEntityManagerFactory(getPUName(), target, getDrainTimeout(props)) : null);
+		ServiceRegistration<EntityManagerFactory> memberReg = bundle.getBundleContext().registerService(
+				EntityManagerFactory.class, 
+				(EntityManagerFactory) Proxy.newProxyInstance(getClass().getClassLoader(), 
+						new Class<?>[] {EntityManagerFactory.class}, 
+						new InvocationHandler() {
+							
+							@Override
+							public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+								if("close".equals(method.getName())) {
+									// Ignore close as per the spec
+									return null;
+								}
+								try {
+									return method.invoke(member.defaults.getProxy(), args);
+								} catch (InvocationTargetException e) {
+									throw e.getCause();
+								}
+							}
+						}), createMemberProperties(props, memberProps));
+		boolean stale;
+		synchronized (this) {
+			members.put(memberReg, member);
+			// The unit may have changed while the member was built
+			stale = activeProps != props;
+		}
+		if (stale) {
+			updateMembers(Collections.singletonMap(memberReg, member));
+		}
+		return memberReg;
+	}
+
+	private EntityManagerFactory createMemberEMF(DataSource ds, Dictionary<String, Object> memberProps, 
+			Map<String, Object> unitProps) {
+		Map<String, Object> props = new HashMap<String, Object>(unitProps);
+		props.put(SESSION_NAME, getMemberSessionName(props, memberProps));
+		long start = System.nanoTime();
+		final EntityManagerFactory member;
+		try {
+			member = provider.createContainerEntityManagerFactory(ReplicaTracker.replicaUnit(persistenceUnit, ds), props);
+		} catch (RuntimeException e) {
+			metrics.emfCreateFailed();
+			throw e;
+		}
+		metrics.emfCreated(System.nanoTime() - start);
+		return member;
+	}
+
+	private Dictionary<String, Object> createMemberProperties(Map<String, Object> props, 
+			Dictionary<String, Object> memberProps) {
+		Dictionary<String, Object> serviceProps = createBuilderProperties(props);
+		serviceProps.remove(JPA_UNIT_NAME);
+		serviceProps.put(MEMBER_UNIT_NAME, getPUName());
+		for (Enumeration<String> keys = memberProps.keys(); keys.hasMoreElements();) {
+			String key = keys.nextElement();
+			serviceProps.put(key, memberProps.get(key));
+		}
+		return serviceProps;
+	}
+
+	/**
+	 * Brings the given members up to date with the active properties of the unit. Changed hot
+	 * properties are passed to new EntityManagers, other changes swap the member to a new
+	 * EntityManagerFactory.
+	 */
+	private void updateMembers(Map<ServiceRegistration<EntityManagerFactory>, Member> toUpdate) {
+		for (Entry<ServiceRegistration<EntityManagerFactory>, Member> entry : toUpdate.entrySet()) {
+			ServiceRegistration<EntityManagerFactory> memberReg = entry.getKey();
+			Member member = entry.getValue();
+			Map<String, Object> props;
+			synchronized (this) {
+				if (members.get(memberReg) != member || activeProps == null) {
+					continue;
+				}
+				props = activeProps;
+			}
+			if (member.swappable != null && !HotProperties.onlyHotChanged(member.props, props)) {
+				EntityManagerFactory newEmf;
+				try {
+					newEmf = createMemberEMF(member.ds, member.memberProps, props);
+				} catch (RuntimeException e) {
+					LOGGER.warn("Could not swap additional EntityManagerFactory of " + getPUName() 
+							+ ". Keeping the current one", e);
+					continue;
+				}
+				synchronized (this) {
+					if (members.get(memberReg) != member) {
+						newEmf.close();
+						continue;
+					}
+					member.props = props;
+					member.defaults.setDefaults(Collections.<String, Object>emptyMap());
+				}
+				member.swappable.swap(newEmf);
+			} else {
+				synchronized (this) {
+					if (members.get(memberReg) != member) {
+						continue;
+					}
+					member.defaults.setDefaults(HotProperties.select(props));
+				}
+			}
+			try {
+				memberReg.setProperties(createMemberProperties(props, member.memberProps));
+			} catch (IllegalStateException e) {
+				LOGGER.debug("EntityManagerFactory service already unregistered", e);
+			}
+		}
+	}
+
+	private synchronized Map<ServiceRegistration<EntityManagerFactory>, Member> getMembers() {
+		return new HashMap<ServiceRegistration<EntityManagerFactory>, Member>(members);
+	}
+
+	private String getMemberSessionName(Map<String, Object> props, Dictionary<String, Object> memberProps) {
+		Object base = props.get(SESSION_NAME);
+		if (base == null) {
+			base = bundle.getSymbolicName() + "_" + getPUName();
+		}
+		Object shardId = memberProps.get(SHARD);
+		if (shardId != null) {
+			return base + ".shard." + shardId;
+		}
+		return base + ".replica." + memberProps.get(REPLICA + ".dataSource.id");
+	}
+
+	void closeMember(ServiceRegistration<EntityManagerFactory> memberReg) {
+		EntityManagerFactory member;
+		synchronized (this) {
+			Member removed = members.remove(memberReg);
+			member = removed != null ? removed.getCloseable() : null;
+		}
+		try {
+			memberReg.unregister();
+		} catch (Exception e) {
+			LOGGER.debug("Exception on unregister", e);
+		}
+		if (member != null && member.isOpen()) {
+			long start = System.nanoTime();
+			try {
+				member.close();
+			} catch (Exception e) {
+				LOGGER.warn("Error closing additional EntityManagerFactory for " + getPUName(), e);
+			}
+			metrics.emfClosed(System.nanoTime() - start);
+		}
+	}
+
+	private EntityManagerFactory newEMF(final Map<String, Object> overrides) {
+		return isEnabled(LAZY, overrides) 
+				? LazyEntityManagerFactory.create(getPUName(), new Callable<EntityManagerFactory>() {
+					@Override
+					public EntityManagerFactory call() {
+						return createProviderEMF(overrides);
+					}
+				})
+				: createProviderEMF(overrides);
+	}
+
+	/**
+	 * Applies a configuration that only changes hot properties by passing them to the
+	 * createEntityManager calls of the published EntityManagerFactory.
+	 * 
+	 * @return the published EntityManagerFactory or null if it needs to be rebuilt
+	 */
+	private EntityManagerFactory applyHotProperties(Map<String, Object> overrides) {
+		ServiceRegistration<EntityManagerFactory> currentReg;
+		EntityManagerFactory published;
+		synchronized (this) {
+			if (emf == null || hotDefaults == null || activeProps == null || dataSourceReplaced
+					|| !HotProperties.onlyHotChanged(activeProps, overrides)) {
+				return null;
+			}
+			activeProps = overrides;
+			hotDefaults.setDefaults(HotProperties.select(overrides));
+			currentReg = reg;
+			published = emf;
+		}
+		updateMembers(getMembers());
+		LOGGER.info("Applied changed properties of persistence unit {} to new EntityManagers", getPUName());
+		if (currentReg != null) {
+			try {
+				currentReg.setProperties(createBuilderProperties(overrides));
+			} catch (IllegalStateException e) {
+				LOGGER.debug("EntityManagerFactory service already unregistered", e);
+			}
+		}
+		return published;
+	}
+
+	/**
+	 * Builds a new EntityManagerFactory while the published one keeps serving requests and then
+	 * switches the published service to it.
+	 * 
+	 * @return the published EntityManagerFactory or null if the unit is not in swap mode
+	 */
+	private EntityManagerFactory swapEMF(Map<String, Object> overrides) {
+		SwappableEntityManagerFactory current;
+		synchronized (this) {
+			current = swappable;
+			if (current == null || !complete) {
+				return null;
+			}
+		}
+		if (!isEnabled(SWAP, overrides)) {
+			return null;
+		}
+		EntityManagerFactory newEmf = newEMF(overrides);
+		ServiceRegistration<EntityManagerFactory> currentReg;
+		EntityManagerFactory published;
+		synchronized (this) {
+			if (swappable != current) {
+				// Closed or replaced concurrently
+				newEmf.close();
+				return null;
+			}
+			activeProps = overrides;
+			dataSourceReplaced = false;
+			currentReg = reg;
+			published = emf;
+			// The new EntityManagerFactory was created with the current hot properties
+			hotDefaults.setDefaults(Collections.<String, Object>emptyMap());
+		}
+		current.swap(newEmf);
+		updateMembers(getMembers());
+		LOGGER.info("Switched persistence unit {} to a new EntityManagerFactory", getPUName());
+		if (currentReg != null) {
+			try {
+				currentReg.setProperties(createBuilderProperties(overrides));
+			} catch (IllegalStateException e) {
+				LOGGER.debug("EntityManagerFactory service already unregistered", e);
+			}
+		}
+		return published;
+	}
+
+	/**
+	 * @return true if the published EntityManagerFactory is replaced without unregistering it
+	 */
+	synchronized boolean swapsOnUpdate() {
+		return swappable != null;
+	}
+
+	private EntityManagerFactory createProviderEMF(Map<String, Object> overrides) {
+		long start = System.nanoTime();
+		final EntityManagerFactory tmp;
+		try {
+			persistenceUnit.setProviderProperties(overrides);
+			tmp = provider.createContainerEntityManagerFactory(persistenceUnit, overrides);
+		} catch (RuntimeException e) {
+			metrics.emfCreateFailed();
+			throw e;
+		}
+		metrics.emfCreated(System.nanoTime() - start);
+		return tmp;
+	}
+
+	private boolean isEnabled(String key, Map<String, Object> overrides) {
+		Object value = getProperty(key, overrides);
+		return value != null && Boolean.parseBoolean(value.toString().trim());
+	}
+
+	private Object getProperty(String key, Map<String, Object> overrides) {
+		Object value = overrides.get(key);
+		return value != null ? value : persistenceUnit.getProperties().getProperty(key);
+	}
+
+	private long getDrainTimeout(Map<String, Object> overrides) {
+		Object value = getProperty(SWAP_DRAIN_TIMEOUT, overrides);
+		if (value == null) {
+			return DEFAULT_DRAIN_TIMEOUT;
+		}
+		try {
+			return Long.parseLong(value.toString().trim());
+		} catch (NumberFormatException e) {
+			LOGGER.warn("Invalid value {} for {}. Using {}", value, SWAP_DRAIN_TIMEOUT, DEFAULT_DRAIN_TIMEOUT);
+			return DEFAULT_DRAIN_TIMEOUT;
+		}
+	}
+
 	private Dictionary<String, Object> createBuilderProperties(Map<String, Object> config) {
 		Dictionary<String, Object> props = new Hashtable<String, Object>(); // NOSONAR
 		
@@ -472,6 +920,11 @@ public class AriesEntityManagerFactoryBuilder implements EntityManagerFactoryBui
 			}
 			
 			DataSource ds = DSFTracker.createDataSource(dsf, props, persistenceUnit.getName());
+			if (ds instanceof ConnectionPool) {
+				synchronized (this) {
+					pool = (ConnectionPool) ds;
+				}
+			}
 			dataSourceReady(ds, props);
 		}
 	}
@@ -485,13 +938,23 @@ public class AriesEntityManagerFactoryBuilder implements EntityManagerFactoryBui
 			}
 		}
 		
+		ConnectionPool oldPool = null;
 		if(destroy) {
-			closeEMF();
+			if(replacement != null && replaceDataSource()) {
+				oldPool = takePool();
+			} else {
+				closeEMF();
+				closePool();
+			}
 		}
 		
 		if(replacement != null) {
 			foundDSF(replacement);
 		}
+		
+		if(oldPool != null) {
+			closeAfterDrain(oldPool);
+		}
 	}
 
 	public void foundDS(DataSource ds) {
@@ -520,7 +983,7 @@ public class AriesEntityManagerFactoryBuilder implements EntityManagerFactoryBui
 			}
 		}
 		
-		if(destroy) {
+		if(destroy && !(replacement != null && replaceDataSource())) {
 			closeEMF();
 		}
 		
@@ -529,6 +992,38 @@ public class AriesEntityManagerFactoryBuilder implements EntityManagerFactoryBui
 		}
 	}
 
+	/**
+	 * @return true if the EMF is kept until the one using the replacement DataSource is ready
+	 */
+	private synchronized boolean replaceDataSource() {
+		if (swappable == null) {
+			return false;
+		}
+		dataSourceReplaced = true;
+		return true;
+	}
+
+	/**
+	 * The old pool is still used by the EntityManagers of the replaced EMF
+	 */
+	private void closeAfterDrain(final ConnectionPool oldPool) {
+		SwappableEntityManagerFactory current;
+		synchronized (this) {
+			current = swappable;
+		}
+		Runnable closeTask = new Runnable() {
+			@Override
+			public void run() {
+				oldPool.close();
+			}
+		};
+		if (current != null) {
+			current.afterDrain(closeTask);
+		} else {
+			closeTask.run();
+		}
+	}
+
 	private void dataSourceReady(DataSource ds, Map<String, Object> props) {
 		if (persistenceUnit.getTransactionType() == PersistenceUnitTransactionType.JTA) {
 			props.put(JAVAX_PERSISTENCE_JTA_DATASOURCE, ds);
@@ -537,4 +1032,33 @@ public class AriesEntityManagerFactoryBuilder implements EntityManagerFactoryBui
 		}
 		createEntityManagerFactory(props);
 	}
+
+	/**
+	 * A replica or shard EntityManagerFactory of the unit
+	 */
+	private static final class Member {
+		final DataSource ds;
+		final Dictionary<String, Object> memberProps;
+		final EntityManagerFactory target;
+		final SwappableEntityManagerFactory swappable;
+		final DefaultPropertiesEntityManagerFactory defaults;
+		/**
+		 * Unit properties the current EntityManagerFactory was created with
+		 */
+		volatile Map<String, Object> props;
+
+		Member(DataSource ds, Dictionary<String, Object> memberProps, Map<String, Object> props,
+				EntityManagerFactory target, SwappableEntityManagerFactory swappable) {
+			this.ds = ds;
+			this.memberProps = memberProps;
+			this.props = props;
+			this.target = target;
+			this.swappable = swappable;
+			this.defaults = new DefaultPropertiesEntityManagerFactory(swappable != null ? swappable.getProxy() : target);
+		}
+
+		EntityManagerFactory getCloseable() {
+			return swappable != null ? swappable.getProxy() : target;
+		}
+	}
 }
@@ -25,6 +25,8 @@ import java.util.Properties;
 import javax.sql.DataSource;
 
 import org.apache.aries.jpa.container.parser.impl.PersistenceUnit;
+import org.apache.aries.jpa.container.pool.impl.ConnectionPool;
+import org.apache.aries.jpa.container.pool.impl.PoolConfig;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Filter;
 import org.osgi.framework.InvalidSyntaxException;
@@ -95,6 +97,9 @@ public class DSFTracker extends ServiceTracker<DataSourceFactory, DataSourceFact
             put(props, DataSourceFactory.JDBC_URL, punitProps, JDBC_URL);
             put(props, DataSourceFactory.JDBC_USER, punitProps, JDBC_USER);
             put(props, DataSourceFactory.JDBC_PASSWORD, punitProps, JDBC_PASSWORD);
+            if (PoolConfig.isEnabled(punitProps)) {
+                return ConnectionPool.create(dsf, props, new PoolConfig(punitProps), punitName);
+            }
             return dsf.createDataSource(props);
         } catch (SQLException e) {
             String msg = "Error creating DataSource for persistence unit " + punitName + ". " + e.getMessage();
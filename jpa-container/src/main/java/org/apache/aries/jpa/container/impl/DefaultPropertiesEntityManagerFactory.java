@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * EntityManagerFactory that passes default properties to every createEntityManager call.
+ * Properties given by the caller take precedence. Without defaults the calls are passed
+ * through unchanged.
+ */
+final class DefaultPropertiesEntityManagerFactory implements InvocationHandler {
+	private static final String CREATE_ENTITY_MANAGER = "createEntityManager";
+
+	private final EntityManagerFactory delegate;
+	private final EntityManagerFactory proxy;
+	private volatile Map<String, Object> defaults = Collections.emptyMap();
+
+	DefaultPropertiesEntityManagerFactory(EntityManagerFactory delegate) {
+		this.delegate = delegate;
+		this.proxy = (EntityManagerFactory) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] {EntityManagerFactory.class}, this);
+	}
+
+	EntityManagerFactory getProxy() {
+		return proxy;
+	}
+
+	void setDefaults(Map<String, Object> defaults) {
+		this.defaults = Collections.unmodifiableMap(new HashMap<String, Object>(defaults));
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			return invokeObjectMethod(proxy, method.getName(), args);
+		}
+		Map<String, Object> currentDefaults = defaults;
+		try {
+			if (!currentDefaults.isEmpty() && CREATE_ENTITY_MANAGER.equals(method.getName())) {
+				return createEntityManager(method, args, currentDefaults);
+			}
+			return method.invoke(delegate, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private Object invokeObjectMethod(Object proxy, String name, Object[] args) {
+		if ("equals".equals(name)) {
+			return proxy == args[0];
+		} else if ("hashCode".equals(name)) {
+			return System.identityHashCode(proxy);
+		}
+		return "EntityManagerFactory for " + delegate;
+	}
+
+	/**
+	 * Calls the variant of createEntityManager with a Map parameter. This also covers
+	 * createEntityManager(SynchronizationType) of JPA 2.1 without depending on its API.
+	 */
+	@SuppressWarnings("unchecked")
+	private Object createEntityManager(Method method, Object[] args, Map<String, Object> currentDefaults)
+			throws IllegalAccessException, InvocationTargetException, NoSuchMethodException {
+		Class<?>[] types = method.getParameterTypes();
+		Map<String, Object> props = new HashMap<String, Object>(currentDefaults);
+		if (types.length > 0 && types[types.length - 1] == Map.class) {
+			Map<String, Object> callerProps = (Map<String, Object>) args[types.length - 1];
+			if (callerProps != null) {
+				props.putAll(callerProps);
+			}
+			Object[] newArgs = args.clone();
+			newArgs[types.length - 1] = props;
+			return method.invoke(delegate, newArgs);
+		}
+		Class<?>[] mapTypes = new Class<?>[types.length + 1];
+		System.arraycopy(types, 0, mapTypes, 0, types.length);
+		mapTypes[types.length] = Map.class;
+		Object[] mapArgs = new Object[types.length + 1];
+		if (args != null) {
+			System.arraycopy(args, 0, mapArgs, 0, args.length);
+		}
+		mapArgs[types.length] = props;
+		return EntityManagerFactory.class.getMethod(CREATE_ENTITY_MANAGER, mapTypes).invoke(delegate, mapArgs);
+	}
+}
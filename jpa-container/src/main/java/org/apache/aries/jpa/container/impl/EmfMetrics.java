@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.apache.aries.jpa.container.metrics.EntityManagerFactoryMetricsMXBean;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.jpa.EntityManagerFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records creation and close of the EntityManagerFactory of a persistence unit.
+ */
+public class EmfMetrics implements EntityManagerFactoryMetricsMXBean {
+	private static final Logger LOGGER = LoggerFactory.getLogger(EmfMetrics.class);
+
+	private final String unitName;
+	private long created;
+	private long createFailures;
+	private long closed;
+	private long lastCreateNanos;
+	private long maxCreateNanos;
+	private long totalCreateNanos;
+	private long lastCloseNanos;
+	private boolean active;
+
+	private ServiceRegistration<?> reg;
+	private ObjectName objectName;
+
+	public EmfMetrics(String unitName) {
+		this.unitName = unitName;
+	}
+
+	public synchronized void emfCreated(long nanos) {
+		created++;
+		active = true;
+		lastCreateNanos = nanos;
+		maxCreateNanos = Math.max(maxCreateNanos, nanos);
+		totalCreateNanos += nanos;
+	}
+
+	public synchronized void emfCreateFailed() {
+		createFailures++;
+	}
+
+	public synchronized void emfClosed(long nanos) {
+		closed++;
+		active = false;
+		lastCloseNanos = nanos;
+	}
+
+	@Override
+	public String getUnitName() {
+		return unitName;
+	}
+
+	@Override
+	public synchronized boolean isActive() {
+		return active;
+	}
+
+	@Override
+	public synchronized long getCreated() {
+		return created;
+	}
+
+	@Override
+	public synchronized long getCreateFailures() {
+		return createFailures;
+	}
+
+	@Override
+	public synchronized long getClosed() {
+		return closed;
+	}
+
+	@Override
+	public synchronized long getLastCreateTime() {
+		return toMillis(lastCreateNanos);
+	}
+
+	@Override
+	public synchronized long getMaxCreateTime() {
+		return toMillis(maxCreateNanos);
+	}
+
+	@Override
+	public synchronized long getTotalCreateTime() {
+		return toMillis(totalCreateNanos);
+	}
+
+	@Override
+	public synchronized long getLastCloseTime() {
+		return toMillis(lastCloseNanos);
+	}
+
+	private static long toMillis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	/**
+	 * Publishes the metrics as OSGi service and MBean. Failures are only logged as metrics are optional.
+	 */
+	public synchronized void register(BundleContext context) {
+		Dictionary<String, Object> props = new Hashtable<String, Object>(); // NOSONAR
+		props.put(EntityManagerFactoryBuilder.JPA_UNIT_NAME, unitName);
+		try {
+			reg = context.registerService(EntityManagerFactoryMetricsMXBean.class.getName(), this, props);
+		} catch (Exception e) {
+			LOGGER.debug("Unable to register metrics service for persistence unit " + unitName, e);
+		}
+		try {
+			ObjectName name = new ObjectName("org.apache.aries.jpa:type=EntityManagerFactoryMetrics,name="
+					+ ObjectName.quote(unitName));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			objectName = name;
+		} catch (Exception e) {
+			LOGGER.debug("Unable to register metrics MBean for persistence unit " + unitName, e);
+		}
+	}
+
+	public synchronized void unregister() {
+		if (reg != null) {
+			try {
+				reg.unregister();
+			} catch (Exception e) {
+				LOGGER.debug("Exception on unregister", e);
+			}
+			reg = null;
+		}
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (Exception e) {
+				LOGGER.debug("Exception on MBean unregister", e);
+			}
+			objectName = null;
+		}
+	}
+}
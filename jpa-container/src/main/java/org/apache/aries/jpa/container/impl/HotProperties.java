@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.aries.jpa.container.pool.impl.PoolConfig;
+
+/**
+ * Classifies persistence unit properties into the ones that need a new EntityManagerFactory
+ * and the hot ones that can be passed to createEntityManager(Map) instead. Connection pool
+ * settings that are applied to the running pool need neither.
+ */
+final class HotProperties {
+	/**
+	 * Persistence unit or configuration property with a comma separated list of further
+	 * properties to treat as hot. Only EntityManager level properties of the provider qualify
+	 */
+	static final String HOT_PROPERTIES = "org.apache.aries.jpa.hotProperties";
+
+	/**
+	 * Properties the JPA specification and the common providers accept per EntityManager
+	 */
+	private static final Set<String> DEFAULT_HOT = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			"javax.persistence.query.timeout",
+			"javax.persistence.lock.timeout",
+			"javax.persistence.cache.retrieveMode",
+			"javax.persistence.cache.storeMode",
+			"org.hibernate.flushMode",
+			"eclipselink.persistence-context.flush-mode",
+			"eclipselink.flush-clear.cache",
+			"eclipselink.jdbc.exclusive-connection.mode",
+			"openjpa.FetchBatchSize",
+			"openjpa.LockTimeout",
+			"openjpa.QueryTimeout")));
+
+	private HotProperties() {
+	}
+
+	static Set<String> getHotKeys(Map<String, Object> props) {
+		Object extra = props.get(HOT_PROPERTIES);
+		if (extra == null) {
+			return DEFAULT_HOT;
+		}
+		Set<String> keys = new HashSet<String>(DEFAULT_HOT);
+		for (String key : extra.toString().split(",")) {
+			if (key.trim().length() > 0) {
+				keys.add(key.trim());
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Hot properties can be added or changed but not removed as the EntityManagerFactory
+	 * was created with the old value.
+	 * 
+	 * @return true if the only differences are hot properties
+	 */
+	static boolean onlyHotChanged(Map<String, Object> active, Map<String, Object> updated) {
+		Set<String> hot = getHotKeys(updated);
+		if (!hot.equals(getHotKeys(active))) {
+			return false;
+		}
+		for (Entry<String, Object> entry : active.entrySet()) {
+			if (PoolConfig.isLive(entry.getKey())) {
+				continue;
+			}
+			if (!updated.containsKey(entry.getKey())) {
+				return false;
+			}
+			if (!hot.contains(entry.getKey()) && !eq(entry.getValue(), updated.get(entry.getKey()))) {
+				return false;
+			}
+		}
+		for (String key : updated.keySet()) {
+			if (!active.containsKey(key) && !hot.contains(key) && !PoolConfig.isLive(key)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the hot properties of props
+	 */
+	static Map<String, Object> select(Map<String, Object> props) {
+		Set<String> hot = getHotKeys(props);
+		Map<String, Object> selected = new HashMap<String, Object>();
+		for (Entry<String, Object> entry : props.entrySet()) {
+			if (hot.contains(entry.getKey()) && entry.getValue() != null) {
+				selected.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return selected;
+	}
+
+	private static boolean eq(Object o1, Object o2) {
+		return o1 == null ? o2 == null : o1.equals(o2);
+	}
+}
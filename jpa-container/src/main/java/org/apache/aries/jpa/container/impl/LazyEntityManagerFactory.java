@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * EntityManagerFactory that creates the provider EntityManagerFactory on the first call.
+ * Concurrent first calls wait for a single creation. If the creation fails the
+ * exception is thrown to the caller and the next call tries again.
+ * 
+ * isOpen and close do not trigger the creation.
+ */
+final class LazyEntityManagerFactory implements InvocationHandler {
+	private static final Logger LOGGER = LoggerFactory.getLogger(LazyEntityManagerFactory.class);
+
+	private final String unitName;
+	private final Callable<EntityManagerFactory> factory;
+	private volatile EntityManagerFactory delegate;
+	private boolean closed;
+
+	private LazyEntityManagerFactory(String unitName, Callable<EntityManagerFactory> factory) {
+		this.unitName = unitName;
+		this.factory = factory;
+	}
+
+	static EntityManagerFactory create(String unitName, Callable<EntityManagerFactory> factory) {
+		return (EntityManagerFactory) Proxy.newProxyInstance(LazyEntityManagerFactory.class.getClassLoader(),
+				new Class<?>[] {EntityManagerFactory.class}, new LazyEntityManagerFactory(unitName, factory));
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		if (method.getDeclaringClass() == Object.class) {
+			return invokeObjectMethod(proxy, name, args);
+		}
+		if ("isOpen".equals(name) && delegate == null) {
+			synchronized (this) {
+				if (delegate == null) {
+					return !closed;
+				}
+			}
+		}
+		if ("close".equals(name) && closeUncreated()) {
+			return null;
+		}
+		try {
+			return method.invoke(getDelegate(), args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private Object invokeObjectMethod(Object proxy, String name, Object[] args) {
+		if ("equals".equals(name)) {
+			return proxy == args[0];
+		} else if ("hashCode".equals(name)) {
+			return System.identityHashCode(proxy);
+		}
+		return "Lazy EntityManagerFactory for " + unitName;
+	}
+
+	/**
+	 * @return true if the factory was closed before the provider EntityManagerFactory was created
+	 */
+	private synchronized boolean closeUncreated() {
+		if (delegate == null) {
+			closed = true;
+			return true;
+		}
+		return false;
+	}
+
+	private EntityManagerFactory getDelegate() throws Exception {
+		EntityManagerFactory emf = delegate;
+		if (emf != null) {
+			return emf;
+		}
+		synchronized (this) {
+			if (delegate == null) {
+				if (closed) {
+					throw new IllegalStateException("The EntityManagerFactory for " + unitName + " is closed");
+				}
+				LOGGER.info("Creating EntityManagerFactory for persistence unit {} on first use", unitName);
+				delegate = factory.call();
+			}
+			return delegate;
+		}
+	}
+}
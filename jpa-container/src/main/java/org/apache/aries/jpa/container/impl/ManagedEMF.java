@@ -22,6 +22,10 @@ import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.osgi.service.cm.ConfigurationException;
@@ -33,9 +37,24 @@ import org.slf4j.LoggerFactory;
  * Creates an EntityManagerFactory(EMF) for a persistence unit and publishes it
  * as a service. Custom properties can be configured by supplying a config admin
  * configuriation named like the JPA_CONFIGURATION_PREFIX.persistence unit name.
+ * 
+ * If the configuration contains a QUIET_PERIOD updates are applied on a separate thread
+ * once no further update arrived for the quiet period but at the latest MAX_DELAY after
+ * the first pending update. Only the latest configuration is applied. Both settings only
+ * control the update and are not passed on to the EntityManagerFactory.
  */
 public class ManagedEMF implements ManagedService {
 
+	/**
+	 * Milliseconds without further updates before a configuration is applied. 0 applies
+	 * updates synchronously
+	 */
+	static final String QUIET_PERIOD = "org.apache.aries.jpa.config.quietPeriod";
+	/**
+	 * Maximum milliseconds an update is delayed. Defaults to five times the quiet period
+	 */
+	static final String MAX_DELAY = "org.apache.aries.jpa.config.maxDelay";
+
 	private static final Logger LOGGER = LoggerFactory.getLogger(ManagedEMF.class);
 
 	private final AriesEntityManagerFactoryBuilder builder;
@@ -44,6 +63,14 @@ public class ManagedEMF implements ManagedService {
 	
 	private final AtomicBoolean configured = new AtomicBoolean(false);
 
+	private long quietPeriod;
+	private long maxDelay;
+	private ScheduledThreadPoolExecutor executor;
+	private ScheduledFuture<?> scheduled;
+	private Dictionary<String, ?> pending;
+	private long firstPending;
+	private boolean closed;
+
 	public ManagedEMF(AriesEntityManagerFactoryBuilder builder, String name) {
 		this.builder = builder;
 		this.pUnitName = name;
@@ -51,13 +78,105 @@ public class ManagedEMF implements ManagedService {
 
 	@Override
 	public void updated(Dictionary<String, ?> properties) throws ConfigurationException {
-		
+		synchronized (this) {
+			if (properties != null) {
+				quietPeriod = getLong(properties, QUIET_PERIOD, 0);
+				maxDelay = getLong(properties, MAX_DELAY, 5 * quietPeriod);
+			}
+			if (quietPeriod > 0) {
+				schedule(properties);
+				return;
+			}
+			cancelPending();
+		}
+		apply(properties);
+	}
+
+	private void schedule(Dictionary<String, ?> properties) {
+		if (closed) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (scheduled == null) {
+			firstPending = now;
+		} else {
+			scheduled.cancel(false);
+		}
+		pending = properties;
+		long delay = Math.max(0, Math.min(quietPeriod, firstPending + maxDelay - now));
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("Applying the configuration of persistence unit {} in {} ms", pUnitName, delay);
+		}
+		scheduled = getExecutor().schedule(new Runnable() {
+			@Override
+			public void run() {
+				applyPending();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private ScheduledThreadPoolExecutor getExecutor() {
+		if (executor == null) {
+			executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Aries JPA configuration of " + pUnitName);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	private void cancelPending() {
+		if (scheduled != null) {
+			scheduled.cancel(false);
+			scheduled = null;
+			pending = null;
+		}
+	}
+
+	private void applyPending() {
+		Dictionary<String, ?> properties;
+		synchronized (this) {
+			if (scheduled == null) {
+				return;
+			}
+			scheduled = null;
+			properties = pending;
+			pending = null;
+		}
+		try {
+			apply(properties);
+		} catch (Exception e) {
+			LOGGER.error("Error applying the configuration of persistence unit " + pUnitName, e);
+		}
+	}
+
+	/**
+	 * Discards pending updates and stops the update thread
+	 */
+	public synchronized void close() {
+		closed = true;
+		cancelPending();
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	private void apply(Dictionary<String, ?> properties) {
 		if(properties == null) {
 			if(configured.getAndSet(false)) {
 				if (LOGGER.isDebugEnabled()) {
 					LOGGER.debug("The configuration has been deleted for persistence unit {}. Destroying the EMF", pUnitName);
 				}
-				builder.closeEMF();
+				if (!builder.swapsOnUpdate()) {
+					builder.closeEMF();
+				}
 			} else {
 				if (LOGGER.isDebugEnabled()) {
 					LOGGER.debug("Ignoring the unset configuration for persistence unit {}", pUnitName);
@@ -76,11 +195,26 @@ public class ManagedEMF implements ManagedService {
 		configured.set(true);
 	}
 
+	private long getLong(Dictionary<String, ?> properties, String key, long defaultValue) {
+		Object value = properties.get(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.toString().trim());
+		} catch (NumberFormatException e) {
+			LOGGER.warn("Invalid value {} for {} of persistence unit {}", value, key, pUnitName);
+			return defaultValue;
+		}
+	}
+
 	private Map<String, Object> asMap(Dictionary<String, ?> dict) {
 		Map<String, Object> map = new HashMap<String, Object>(); // NOSONAR
 		for (Enumeration<String> e = dict.keys(); e.hasMoreElements();) {
 			String key = e.nextElement();
-			map.put(key, dict.get(key));
+			if (!QUIET_PERIOD.equals(key) && !MAX_DELAY.equals(key)) {
+				map.put(key, dict.get(key));
+			}
 		}
 		return map;
 	}
@@ -19,13 +19,20 @@
 
 package org.apache.aries.jpa.container.impl;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.aries.jpa.container.parser.impl.PersistenceUnit;
+import org.apache.aries.jpa.container.parser.impl.PersistenceUnitCache;
 import org.apache.aries.jpa.container.parser.impl.PersistenceUnitParser;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleEvent;
@@ -40,6 +47,12 @@ import org.slf4j.LoggerFactory;
 /**
  * Looks for bundles containing a persistence.xml. For each persistence unit
  * found a PersistenceProviderTracker is installed that tracks matching providers.
+ * 
+ * If an executor is given the persistence descriptors of the bundles that are already active
+ * when the tracker is opened are parsed and scanned for annotated classes in parallel. Their
+ * PersistenceProviderTrackers are still opened in the order the bundles were added. Bundles
+ * that are starting are processed on the calling thread, so their ClassTransformers are
+ * registered before the bundle can load its entity classes.
  */
 public class PersistenceBundleTracker implements BundleTrackerCustomizer<Bundle> {
 	
@@ -56,9 +69,23 @@ public class PersistenceBundleTracker implements BundleTrackerCustomizer<Bundle>
     private final Map<Bundle, Collection<PersistenceProviderTracker>> trackers;
     private final Map<Integer, String> typeMap;
     private final BundleWiring wiring;
+    private final ExecutorService executor;
+    private final Deque<PendingBundle> pending;
+    private final PersistenceUnitCache cache;
 
     public PersistenceBundleTracker(BundleWiring bundleWiring) {
+        this(bundleWiring, null, null);
+    }
+
+    /**
+     * @param executor for parsing persistence bundles or null to parse them on the calling thread
+     * @param cache for parsed persistence units or null to always parse them
+     */
+    public PersistenceBundleTracker(BundleWiring bundleWiring, ExecutorService executor, PersistenceUnitCache cache) {
         wiring = bundleWiring;
+        this.executor = executor;
+        this.cache = cache;
+        this.pending = new ArrayDeque<PendingBundle>();
 		trackers = new HashMap<Bundle, Collection<PersistenceProviderTracker>>();
         this.typeMap = new HashMap<Integer, String>();
         this.typeMap.put(BundleEvent.INSTALLED, "INSTALLED");
@@ -94,12 +121,23 @@ public class PersistenceBundleTracker implements BundleTrackerCustomizer<Bundle>
             // TODO No idea why we are called at all in this state
             return bundle;
         }
-        if (getTrackers(bundle).isEmpty()) {
-            findPersistenceUnits(bundle, event);
+        if (getTrackers(bundle).isEmpty() && !isPending(bundle)) {
+            if (executor != null && isInitialScanOfActive(bundle, event)) {
+                scheduleParsing(bundle, event);
+            } else {
+                findPersistenceUnits(bundle, event);
+            }
         }
         return bundle;
     }
 
+    /**
+     * An active bundle may already have loaded its classes, so weaving it is best effort anyway
+     */
+    private static boolean isInitialScanOfActive(Bundle bundle, BundleEvent event) {
+        return event == null && bundle.getState() == Bundle.ACTIVE;
+    }
+
     private boolean incompatibleExtender(Bundle bundle) {
     	
 		List<BundleWire> requiredWires = bundle.adapt(BundleWiring.class)
@@ -196,6 +234,10 @@ public class PersistenceBundleTracker implements BundleTrackerCustomizer<Bundle>
 
 	@Override
     public synchronized void removedBundle(Bundle bundle, BundleEvent event, Bundle object) {
+        if (cancelPending(bundle)) {
+            LOGGER.info("Cancelled processing of persistence units for " + bundle.getSymbolicName() + " " + getType(event));
+            registerParsed();
+        }
         Collection<PersistenceProviderTracker> providerTrackers = trackers.remove(bundle);
         if (providerTrackers == null || providerTrackers.isEmpty()) {
             return;
@@ -208,8 +250,84 @@ public class PersistenceBundleTracker implements BundleTrackerCustomizer<Bundle>
     }
 
     private void findPersistenceUnits(Bundle bundle, BundleEvent event) {
-        for (PersistenceUnit punit : PersistenceUnitParser.getPersistenceUnits(bundle)) {
+        registerPersistenceUnits(bundle, parsePersistenceUnits(bundle), event);
+    }
+
+    private Collection<PersistenceUnit> parsePersistenceUnits(Bundle bundle) {
+        if (cache != null) {
+            Collection<PersistenceUnit> cached = cache.load(bundle);
+            if (cached != null) {
+                LOGGER.debug("Using cached persistence units for bundle {}", bundle.getSymbolicName());
+                return cached;
+            }
+        }
+        Collection<PersistenceUnit> punits = PersistenceUnitParser.getPersistenceUnits(bundle);
+        for (PersistenceUnit punit : punits) {
             punit.addAnnotated();
+        }
+        if (cache != null) {
+            cache.store(bundle, punits);
+        }
+        return punits;
+    }
+
+    private void scheduleParsing(Bundle bundle, BundleEvent event) {
+        if (bundle.getHeaders().get(PersistenceUnitParser.PERSISTENCE_UNIT_HEADER) == null) {
+            // Nothing to parse so no need to involve the executor
+            return;
+        }
+        final PendingBundle pendingBundle = new PendingBundle(bundle, event);
+        pending.add(pendingBundle);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pendingBundle.parse();
+                    registerParsed();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Executor rejected parsing of bundle " + bundle.getSymbolicName() + ". Parsing it directly", e);
+            pendingBundle.parse();
+            registerParsed();
+        }
+    }
+
+    /**
+     * Registers the persistence units of parsed bundles in the order the bundles were added.
+     * Stops at the first bundle that is still being parsed.
+     */
+    private synchronized void registerParsed() {
+        while (!pending.isEmpty() && pending.peek().parsed) {
+            PendingBundle pendingBundle = pending.poll();
+            registerPersistenceUnits(pendingBundle.bundle, pendingBundle.punits, pendingBundle.event);
+        }
+    }
+
+    private boolean isPending(Bundle bundle) {
+        for (PendingBundle pendingBundle : pending) {
+            if (pendingBundle.bundle.equals(bundle)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean cancelPending(Bundle bundle) {
+        Iterator<PendingBundle> it = pending.iterator();
+        while (it.hasNext()) {
+            PendingBundle pendingBundle = it.next();
+            if (pendingBundle.bundle.equals(bundle)) {
+                pendingBundle.cancelled = true;
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void registerPersistenceUnits(Bundle bundle, Collection<PersistenceUnit> punits, BundleEvent event) {
+        for (PersistenceUnit punit : punits) {
             trackProvider(bundle, punit);
         }
         if (!getTrackers(bundle).isEmpty()) {
@@ -253,4 +371,29 @@ public class PersistenceBundleTracker implements BundleTrackerCustomizer<Bundle>
         return providerTrackers;
     }
 
+    private final class PendingBundle {
+        final Bundle bundle;
+        final BundleEvent event;
+        volatile Collection<PersistenceUnit> punits = Collections.emptyList();
+        volatile boolean parsed;
+        volatile boolean cancelled;
+
+        PendingBundle(Bundle bundle, BundleEvent event) {
+            this.bundle = bundle;
+            this.event = event;
+        }
+
+        void parse() {
+            try {
+                if (!cancelled) {
+                    punits = parsePersistenceUnits(bundle);
+                }
+            } catch (Exception e) {
+                LOGGER.error("Error processing persistence units of bundle " + bundle.getSymbolicName(), e);
+            } finally {
+                parsed = true;
+            }
+        }
+    }
+
 }
@@ -18,14 +18,20 @@
  */
 package org.apache.aries.jpa.container.impl;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
+import java.util.Map;
 
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.spi.PersistenceProvider;
 import javax.sql.DataSource;
 
 import org.apache.aries.jpa.container.parser.impl.PersistenceUnit;
+import org.apache.aries.jpa.container.parser.impl.StaticWeaving;
+import org.apache.aries.jpa.container.weaving.ClassTransformerProvider;
 import org.apache.aries.jpa.container.weaving.impl.DummyDataSource;
+import org.apache.aries.jpa.container.weaving.impl.HibernateTransformerProvider;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Filter;
 import org.osgi.framework.InvalidSyntaxException;
@@ -43,6 +49,16 @@ import org.slf4j.LoggerFactory;
  */
 public class PersistenceProviderTracker extends ServiceTracker<PersistenceProvider, StoredPerProvider> {
     private static final String JAVAX_PERSISTENCE_PROVIDER = "javax.persistence.provider";
+    /**
+     * Persistence unit or framework property that forces the temporary EntityManagerFactory
+     * even if a ClassTransformerProvider is available
+     */
+    static final String FORCE_DUMMY_EMF = "org.apache.aries.jpa.weaving.dummyEmf";
+    /**
+     * Persistence unit or framework property. If set to false every class of the persistence bundle
+     * is offered to the weaving transformers instead of only the managed classes
+     */
+    static final String WEAVING_FILTER = "org.apache.aries.jpa.weaving.filter";
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PersistenceProviderTracker.class);
 
@@ -73,17 +89,19 @@ public class PersistenceProviderTracker extends ServiceTracker<PersistenceProvid
 
     @Override
     public StoredPerProvider addingService(ServiceReference<PersistenceProvider> reference) {
+        PersistenceProvider provider = context.getService(reference);
         String providerName = (String)reference.getProperty(JAVAX_PERSISTENCE_PROVIDER);
+        if (providerName == null) {
+            providerName = provider.getClass().getName();
+        }
         // FIXME should be set when creating the EMF was successful
         if (punit.getPersistenceProviderClassName() == null) {
             punit.setProviderClassName(providerName);
         }
         StoredPerProvider stored = new StoredPerProvider();
         LOGGER.info("Found provider for " + punit.getPersistenceUnitName() + " " + punit.getPersistenceProviderClassName());
-        
-        PersistenceProvider provider = context.getService(reference);
 
-        createAndCloseDummyEMF(provider);
+        addTransformers(provider);
 
         stored.builder = new AriesEntityManagerFactoryBuilder(context, provider, reference.getBundle(), punit);
         Dictionary<String, ?> props = AriesEntityManagerFactoryBuilder.createBuilderProperties(punit, punit.getBundle());
@@ -92,23 +110,101 @@ public class PersistenceProviderTracker extends ServiceTracker<PersistenceProvid
     }
 
     /**
-     * Create and close a dummy EMF to give the PersistenceProvider a chance to call
-     * punit.addTransformer(). This has to occur as early as possible as weaving needs
-     * to be done before the first entity class is loaded. So we can not wait till the
-     * real DataSource is found.
+     * Give the PersistenceProvider a chance to call punit.addTransformer(). This has to occur
+     * as early as possible as weaving needs to be done before the first entity class is loaded.
+     * So we can not wait till the real DataSource is found.
      */
-    private void createAndCloseDummyEMF(PersistenceProvider provider) {
+    void addTransformers(PersistenceProvider provider) {
+        String providerName = punit.getPersistenceProviderClassName();
+        if (StaticWeaving.apply(punit, providerName != null ? providerName : provider.getClass().getName())) {
+            LOGGER.info("Persistence unit " + punit.getPersistenceUnitName() + " is statically woven. Skipping runtime weaving");
+            punit.setStaticallyWoven(true);
+            return;
+        }
         DataSource dummyDataSource = new DummyDataSource();
         punit.setJtaDataSource(dummyDataSource);
         punit.setNonJtaDataSource(dummyDataSource);
+        punit.setWeavingFilter(!"false".equalsIgnoreCase(getProperty(WEAVING_FILTER)));
+        punit.setProviderProperties(null);
+        try {
+            if (forceDummyEMF() || !addTransformersWithoutEMF()) {
+                createAndCloseDummyEMF(provider);
+            }
+        } finally {
+            punit.setJtaDataSource(null);
+            punit.setNonJtaDataSource(null);
+        }
+    }
+
+    private boolean forceDummyEMF() {
+        return Boolean.parseBoolean(getProperty(FORCE_DUMMY_EMF));
+    }
+
+    private String getProperty(String key) {
+        String value = punit.getProperties().getProperty(key);
+        return value != null ? value : context.getProperty(key);
+    }
+
+    /**
+     * @return true if a ClassTransformerProvider service or the built in Hibernate support handled the unit
+     */
+    private boolean addTransformersWithoutEMF() {
+        String providerName = punit.getPersistenceProviderClassName();
+        Map<String, Object> props = Collections.emptyMap();
+        ServiceReference<ClassTransformerProvider> ref = getTransformerProviderRef(providerName);
+        if (ref != null) {
+            ClassTransformerProvider transformerProvider = context.getService(ref);
+            try {
+                if (transformerProvider != null && addTransformers(transformerProvider, props)) {
+                    return true;
+                }
+            } finally {
+                context.ungetService(ref);
+            }
+        }
+        return HibernateTransformerProvider.supports(providerName)
+            && addTransformers(new HibernateTransformerProvider(), props);
+    }
+
+    private boolean addTransformers(ClassTransformerProvider transformerProvider, Map<String, Object> props) {
+        try {
+            if (transformerProvider.addTransformers(punit, props)) {
+                LOGGER.debug("Transformers for {} added without temporary EntityManagerFactory",
+                             punit.getPersistenceUnitName());
+                return true;
+            }
+        } catch (Exception e) {
+            LOGGER.debug("Error adding transformers for " + punit.getPersistenceUnitName() 
+                         + ". Falling back to temporary EntityManagerFactory", e);
+        }
+        return false;
+    }
+
+    private ServiceReference<ClassTransformerProvider> getTransformerProviderRef(String providerName) {
+        if (providerName == null) {
+            return null;
+        }
+        try {
+            Collection<ServiceReference<ClassTransformerProvider>> refs = context.getServiceReferences(
+                ClassTransformerProvider.class, String.format("(%s=%s)", JAVAX_PERSISTENCE_PROVIDER, providerName));
+            return refs.isEmpty() ? null : Collections.max(refs);
+        } catch (InvalidSyntaxException e) {
+            LOGGER.debug("Invalid provider name " + providerName, e);
+            return null;
+        }
+    }
+
+    /**
+     * Create and close a dummy EMF to give the PersistenceProvider a chance to call
+     * punit.addTransformer().
+     */
+    private void createAndCloseDummyEMF(PersistenceProvider provider) {
         try {
             EntityManagerFactory emf = provider.createContainerEntityManagerFactory(punit, null);
             emf.close();
         } catch (Exception e) {
             LOGGER.debug("Error while creating the Dummy EntityManagerFactory to allow weaving.", e);
         }
-        punit.setJtaDataSource(null);
-        punit.setNonJtaDataSource(null);
     }
 
     @Override
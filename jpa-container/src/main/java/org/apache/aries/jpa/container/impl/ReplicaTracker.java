@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.spi.PersistenceUnitInfo;
+import javax.persistence.spi.PersistenceUnitTransactionType;
+import javax.sql.DataSource;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.util.tracker.ServiceTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes a read replica EntityManagerFactory of the persistence unit for each DataSource
+ * matching the replica DataSource name. Subclasses publish EntityManagerFactories in other roles.
+ */
+public class ReplicaTracker extends ServiceTracker<DataSource, ServiceRegistration<EntityManagerFactory>> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplicaTracker.class);
+
+    static final String JNDI_SERVICE_NAME = "osgi.jndi.service.name";
+
+    private final AriesEntityManagerFactoryBuilder builder;
+
+    public ReplicaTracker(BundleContext context, AriesEntityManagerFactoryBuilder builder, String dsName) {
+        super(context, DataSourceTracker.createFilter(context, dsName, builder.getPUName()), null);
+        this.builder = builder;
+    }
+
+    @Override
+    public ServiceRegistration<EntityManagerFactory> addingService(ServiceReference<DataSource> reference) {
+        DataSource ds = context.getService(reference);
+        if (ds == null) {
+            return null;
+        }
+        LOGGER.info("Found {} DataSource {} for {}", getRole(), reference.getProperty(JNDI_SERVICE_NAME),
+                    builder.getPUName());
+        try {
+            return builder.publishMember(ds, getServiceProperties(reference));
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unable to create " + getRole() + " EntityManagerFactory for " + builder.getPUName(), e);
+            context.ungetService(reference);
+            return null;
+        }
+    }
+
+    @Override
+    public void removedService(ServiceReference<DataSource> reference, ServiceRegistration<EntityManagerFactory> reg) {
+        LOGGER.info("Lost {} DataSource for {}", getRole(), builder.getPUName());
+        builder.closeMember(reg);
+        context.ungetService(reference);
+    }
+
+    protected String getRole() {
+        return "replica";
+    }
+
+    /**
+     * @return service properties that mark the EntityManagerFactory using the DataSource
+     */
+    protected Dictionary<String, Object> getServiceProperties(ServiceReference<DataSource> reference) {
+        Dictionary<String, Object> props = new Hashtable<String, Object>(); // NOSONAR
+        props.put(AriesEntityManagerFactoryBuilder.REPLICA, Boolean.TRUE.toString());
+        props.put(AriesEntityManagerFactoryBuilder.REPLICA + ".dataSource.id", reference.getProperty(Constants.SERVICE_ID));
+        return props;
+    }
+
+    /**
+     * The replica uses the definition of the persistence unit with the replica DataSource.
+     * Adding transformers is ignored as the classes are already woven for the primary
+     * EntityManagerFactory.
+     */
+    static PersistenceUnitInfo replicaUnit(final PersistenceUnitInfo punit, final DataSource ds) {
+        return (PersistenceUnitInfo)Proxy.newProxyInstance(ReplicaTracker.class.getClassLoader(),
+            new Class<?>[] {PersistenceUnitInfo.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    boolean jta = punit.getTransactionType() == PersistenceUnitTransactionType.JTA;
+                    if ("getJtaDataSource".equals(name)) {
+                        return jta ? ds : null;
+                    } else if ("getNonJtaDataSource".equals(name)) {
+                        return jta ? null : ds;
+                    } else if ("addTransformer".equals(name)) {
+                        return null;
+                    }
+                    try {
+                        return method.invoke(punit, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            });
+    }
+}
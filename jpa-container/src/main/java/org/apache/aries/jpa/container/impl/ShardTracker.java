@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.impl;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import javax.sql.DataSource;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Publishes a shard EntityManagerFactory of the persistence unit for each DataSource
+ * matching the shard DataSource name
+ */
+public class ShardTracker extends ReplicaTracker {
+
+    public ShardTracker(BundleContext context, AriesEntityManagerFactoryBuilder builder, String dsName) {
+        super(context, builder, dsName);
+    }
+
+    @Override
+    protected String getRole() {
+        return "shard";
+    }
+
+    @Override
+    protected Dictionary<String, Object> getServiceProperties(ServiceReference<DataSource> reference) {
+        Dictionary<String, Object> props = new Hashtable<String, Object>(); // NOSONAR
+        props.put(AriesEntityManagerFactoryBuilder.SHARD, getShardId(reference));
+        return props;
+    }
+
+    static String getShardId(ServiceReference<DataSource> reference) {
+        Object id = reference.getProperty(AriesEntityManagerFactoryBuilder.SHARD);
+        if (id == null) {
+            id = reference.getProperty(JNDI_SERVICE_NAME);
+        }
+        if (id == null) {
+            id = reference.getProperty(Constants.SERVICE_ID);
+        }
+        return id.toString();
+    }
+}
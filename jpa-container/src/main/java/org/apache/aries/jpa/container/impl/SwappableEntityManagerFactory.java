@@ -0,0 +1,291 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * EntityManagerFactory whose target can be replaced while it is in use. New EntityManagers are
+ * always created by the current target. A replaced target is closed as soon as the last
+ * EntityManager it created is closed or when the drain timeout expires.
+ * 
+ * The EntityManagers handed out are proxies that only implement EntityManager. Provider
+ * specific interfaces have to be reached through EntityManager.unwrap.
+ */
+final class SwappableEntityManagerFactory implements InvocationHandler {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SwappableEntityManagerFactory.class);
+
+	private final String unitName;
+	private final long drainTimeout;
+	private final EntityManagerFactory proxy;
+	private final List<Generation> retired = new CopyOnWriteArrayList<Generation>();
+	private volatile Generation current;
+	private volatile boolean closed;
+
+	/**
+	 * @param drainTimeout milliseconds after which a replaced target is closed even if
+	 *        EntityManagers are still open. 0 or less waits for all of them
+	 */
+	SwappableEntityManagerFactory(String unitName, EntityManagerFactory initial, long drainTimeout) {
+		this.unitName = unitName;
+		this.drainTimeout = drainTimeout;
+		this.current = new Generation(initial);
+		this.proxy = (EntityManagerFactory) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] {EntityManagerFactory.class}, this);
+	}
+
+	EntityManagerFactory getProxy() {
+		return proxy;
+	}
+
+	/**
+	 * Atomically switches to the new target and starts draining the previous one
+	 */
+	void swap(EntityManagerFactory emf) {
+		Generation old;
+		synchronized (this) {
+			old = current;
+			current = new Generation(emf);
+			retired.add(old);
+		}
+		old.retire();
+	}
+
+	/**
+	 * Runs the task once the target replaced by the last swap is closed
+	 */
+	void afterDrain(Runnable task) {
+		Generation last = retired.isEmpty() ? null : retired.get(retired.size() - 1);
+		if (last == null || !last.addCloseTask(task)) {
+			task.run();
+		}
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		if (method.getDeclaringClass() == Object.class) {
+			return invokeObjectMethod(proxy, name, args);
+		}
+		if ("close".equals(name)) {
+			close();
+			return null;
+		}
+		if ("createEntityManager".equals(name)) {
+			return createEntityManager(method, args);
+		}
+		try {
+			return method.invoke(current.emf, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private Object invokeObjectMethod(Object proxy, String name, Object[] args) {
+		if ("equals".equals(name)) {
+			return proxy == args[0];
+		} else if ("hashCode".equals(name)) {
+			return System.identityHashCode(proxy);
+		}
+		return "Swappable EntityManagerFactory for " + unitName;
+	}
+
+	private Object createEntityManager(Method method, Object[] args) throws Throwable {
+		Generation generation = current;
+		while (!generation.acquire()) {
+			Generation replacement = current;
+			if (closed || replacement == generation) {
+				throw new IllegalStateException("The EntityManagerFactory of " + unitName + " is closed");
+			}
+			// Closed after the swap. Use the replacement
+			generation = replacement;
+		}
+		try {
+			EntityManager em = (EntityManager) method.invoke(generation.emf, args);
+			return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {EntityManager.class},
+					new TrackedEntityManager(em, generation));
+		} catch (InvocationTargetException e) {
+			generation.release();
+			throw e.getCause();
+		} catch (RuntimeException e) {
+			generation.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the current and all draining targets immediately
+	 */
+	private void close() {
+		List<Generation> toClose;
+		synchronized (this) {
+			closed = true;
+			toClose = new ArrayList<Generation>(retired);
+			toClose.add(current);
+		}
+		for (Generation generation : toClose) {
+			generation.forceClose();
+		}
+	}
+
+	private final class Generation {
+		private final EntityManagerFactory emf;
+		/**
+		 * Number of open EntityManagers or -1 once the EntityManagerFactory is closed
+		 */
+		private final AtomicInteger open = new AtomicInteger();
+		private final List<Runnable> closeTasks = new ArrayList<Runnable>();
+		private volatile boolean isRetired;
+		private Timer drainTimer;
+
+		Generation(EntityManagerFactory emf) {
+			this.emf = emf;
+		}
+
+		boolean acquire() {
+			while (true) {
+				int count = open.get();
+				if (count < 0) {
+					return false;
+				}
+				if (open.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+		}
+
+		void release() {
+			if (open.decrementAndGet() == 0 && isRetired) {
+				tryClose();
+			}
+		}
+
+		void retire() {
+			isRetired = true;
+			if (!tryClose() && drainTimeout > 0) {
+				synchronized (this) {
+					if (open.get() < 0) {
+						// Drained concurrently
+						return;
+					}
+					drainTimer = new Timer("Aries JPA drain of " + unitName, true);
+					drainTimer.schedule(new TimerTask() {
+						@Override
+						public void run() {
+							LOGGER.warn("EntityManagers of the replaced EntityManagerFactory of {} were not closed within {} ms",
+									unitName, drainTimeout);
+							forceClose();
+						}
+					}, drainTimeout);
+				}
+			}
+		}
+
+		private boolean tryClose() {
+			if (open.compareAndSet(0, -1)) {
+				doClose();
+				return true;
+			}
+			return false;
+		}
+
+		void forceClose() {
+			if (open.getAndSet(-1) >= 0) {
+				doClose();
+			}
+		}
+
+		/**
+		 * @return false if the EntityManagerFactory is already closed
+		 */
+		synchronized boolean addCloseTask(Runnable task) {
+			if (open.get() < 0) {
+				return false;
+			}
+			closeTasks.add(task);
+			return true;
+		}
+
+		private void doClose() {
+			List<Runnable> tasks;
+			synchronized (this) {
+				if (drainTimer != null) {
+					drainTimer.cancel();
+				}
+				tasks = new ArrayList<Runnable>(closeTasks);
+				closeTasks.clear();
+			}
+			retired.remove(this);
+			try {
+				if (emf.isOpen()) {
+					emf.close();
+				}
+			} catch (Exception e) {
+				LOGGER.warn("Error closing EntityManagerFactory for " + unitName, e);
+			}
+			for (Runnable task : tasks) {
+				task.run();
+			}
+		}
+	}
+
+	private static final class TrackedEntityManager implements InvocationHandler {
+		private final EntityManager em;
+		private final Generation generation;
+		private final AtomicBoolean closed = new AtomicBoolean();
+
+		TrackedEntityManager(EntityManager em, Generation generation) {
+			this.em = em;
+			this.generation = generation;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class && "equals".equals(method.getName())) {
+				return proxy == args[0];
+			}
+			try {
+				return method.invoke(em, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			} finally {
+				if ("close".equals(method.getName()) && method.getParameterTypes().length == 0
+						&& closed.compareAndSet(false, true)) {
+					generation.release();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.metrics;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * Lifecycle statistics of the EntityManagerFactory of one persistence unit.
+ *
+ * Registered as OSGi service with the property osgi.unit.name and in the platform
+ * MBeanServer as org.apache.aries.jpa:type=EntityManagerFactoryMetrics,name=&lt;unit name&gt;.
+ * Times are in milliseconds.
+ */
+@ProviderType
+public interface EntityManagerFactoryMetricsMXBean {
+    String getUnitName();
+
+    boolean isActive();
+
+    long getCreated();
+
+    long getCreateFailures();
+
+    long getClosed();
+
+    long getLastCreateTime();
+
+    long getMaxCreateTime();
+
+    long getTotalCreateTime();
+
+    long getLastCloseTime();
+}
@@ -18,6 +18,9 @@
  */
 package org.apache.aries.jpa.container.parser.impl;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
 
@@ -25,11 +28,16 @@ import javax.persistence.Embeddable;
 import javax.persistence.Entity;
 import javax.persistence.MappedSuperclass;
 
+import org.apache.aries.jpa.index.JpaIndex;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.wiring.BundleWiring;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Finds the classes annotated with @Entity, @MappedSuperclass or @Embeddable by reading
+ * the class files. Classes are only loaded if their class file can not be read.
+ */
 class JPAAnnotationScanner {
     private static final Logger LOG = LoggerFactory.getLogger(JPAAnnotationScanner.class);
     
@@ -42,27 +50,54 @@ class JPAAnnotationScanner {
             BundleWiring.LISTRESOURCES_LOCAL | BundleWiring.LISTRESOURCES_RECURSE);
         
         Collection<String> classes = new ArrayList<String>(); 
-        ClassLoader cl = new TempBundleDelegatingClassLoader(b, JPAAnnotationScanner.class.getClassLoader());
+        ClassLoader cl = null;
         for(String s : resources) {
-          s = s.replace('/', '.').substring(0, s.length() - 6);
-          try {
-            Class<?> clazz = Class.forName(s, false, cl);
-            
-            if(clazz.isAnnotationPresent(Entity.class) ||
-               clazz.isAnnotationPresent(MappedSuperclass.class) ||
-               clazz.isAnnotationPresent(Embeddable.class)) {
-              classes.add(s);
-            }
-            
-          } catch (ClassNotFoundException e) {
-              logEx(e);
-          } catch (NoClassDefFoundError e) {
-              logEx(e);
+          String className = s.replace('/', '.').substring(0, s.length() - 6);
+          Boolean annotated = readAnnotated(b, bw, s);
+          if (annotated == null) {
+              if (cl == null) {
+                  cl = new TempBundleDelegatingClassLoader(b, JPAAnnotationScanner.class.getClassLoader());
+              }
+              annotated = loadAnnotated(cl, className);
+          }
+          if (annotated) {
+              classes.add(className);
           }
         }
         return classes;
       }
 
+    /**
+     * @return true if annotated, false if not or null if the class file could not be read
+     */
+    private static Boolean readAnnotated(Bundle b, BundleWiring bw, String resource) {
+        try {
+            URL url = b.getEntry(resource);
+            InputStream is = url != null ? url.openStream() : bw.getClassLoader().getResourceAsStream(resource);
+            if (is == null) {
+                return null;
+            }
+            return JpaIndex.isJpaAnnotated(JpaIndex.readFully(is));
+        } catch (IOException e) {
+            LOG.debug("Unable to read class file " + resource + ". Loading the class instead", e);
+            return null;
+        }
+    }
+
+    private static boolean loadAnnotated(ClassLoader cl, String className) {
+        try {
+            Class<?> clazz = Class.forName(className, false, cl);
+            return clazz.isAnnotationPresent(Entity.class) ||
+               clazz.isAnnotationPresent(MappedSuperclass.class) ||
+               clazz.isAnnotationPresent(Embeddable.class);
+        } catch (ClassNotFoundException e) {
+            logEx(e);
+        } catch (NoClassDefFoundError e) {
+            logEx(e);
+        }
+        return false;
+    }
+
     private static void logEx(Throwable e) {
         LOG.debug("Exception while scanning for JPA annotations", e);
     }
@@ -18,12 +18,14 @@
  */
 package org.apache.aries.jpa.container.parser.impl;
 
+import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
@@ -36,10 +38,20 @@ import javax.sql.DataSource;
 
 import org.apache.aries.jpa.container.weaving.impl.TransformerRegistry;
 import org.apache.aries.jpa.container.weaving.impl.TransformerRegistrySingleton;
+import org.apache.aries.jpa.container.weaving.impl.WovenClassCache;
+import org.apache.aries.jpa.index.JpaIndex;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.wiring.BundleWiring;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class PersistenceUnit implements PersistenceUnitInfo {
+    private static final Logger LOG = LoggerFactory.getLogger(PersistenceUnit.class);
+    /**
+     * Mapping files that are loaded without being listed in the persistence unit. EclipseLink
+     * additionally reads its native mapping file by default
+     */
+    private static final String[] DEFAULT_MAPPING_FILES = {"META-INF/orm.xml", "META-INF/eclipselink-orm.xml"};
 
     private Bundle bundle;
     private ClassLoader classLoader;
@@ -57,6 +69,9 @@ public class PersistenceUnit implements PersistenceUnitInfo {
     private SharedCacheMode sharedCacheMode = SharedCacheMode.UNSPECIFIED;
     private PersistenceUnitTransactionType transactionType;
     private ValidationMode validationMode = ValidationMode.NONE;
+    private boolean weavingFilter = true;
+    private boolean staticallyWoven;
+    private volatile Map<String, ?> providerProperties;
 
     public PersistenceUnit(Bundle bundle, String persistenceUnitName,
                            PersistenceUnitTransactionType transactionType) {
@@ -83,8 +98,58 @@ public class PersistenceUnit implements PersistenceUnitInfo {
 
     @Override
     public void addTransformer(ClassTransformer transformer) {
+        if (staticallyWoven) {
+            LOG.debug("Ignoring transformer {} as persistence unit {} is statically woven",
+                      transformer.getClass().getName(), persistenceUnitName);
+            return;
+        }
         TransformerRegistry reg = TransformerRegistrySingleton.get();
-        reg.addTransformer(bundle, transformer);
+        String weavingConfig = WovenClassCache.getWeavingConfig(bundle.getBundleContext(), props, providerProperties);
+        reg.addTransformer(bundle, transformer, getWeavingCandidates(), weavingConfig);
+    }
+
+    /**
+     * @param providerProperties the properties the provider is called with when it creates the next
+     *        EntityManagerFactory. They are recorded with the transformers it adds
+     */
+    public void setProviderProperties(Map<String, ?> providerProperties) {
+        this.providerProperties = providerProperties;
+    }
+
+    /**
+     * Transformers only need to see the managed classes. If mapping files are used they can declare
+     * further classes so in this case all classes of the bundle are offered to the transformers.
+     * 
+     * @return the names of the classes to offer to transformers or null for all classes
+     */
+    Set<String> getWeavingCandidates() {
+        if (!weavingFilter || !mappingFileNames.isEmpty() || hasDefaultMappingFile()) {
+            return null;
+        }
+        return Collections.unmodifiableSet(new HashSet<String>(classNames));
+    }
+
+    private boolean hasDefaultMappingFile() {
+        for (String mappingFile : DEFAULT_MAPPING_FILES) {
+            if (bundle.getEntry(mappingFile) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param staticallyWoven true if the classes were enhanced at build time and transformers must be ignored
+     */
+    public void setStaticallyWoven(boolean staticallyWoven) {
+        this.staticallyWoven = staticallyWoven;
+    }
+
+    /**
+     * @param weavingFilter false to offer every class of the bundle to the transformers
+     */
+    public void setWeavingFilter(boolean weavingFilter) {
+        this.weavingFilter = weavingFilter;
     }
 
     @Override
@@ -221,13 +286,33 @@ public class PersistenceUnit implements PersistenceUnitInfo {
 
     public void addAnnotated() {
         if (!excludeUnlistedClasses()) {
-            Collection<String> detected = JPAAnnotationScanner.findJPAAnnotatedClasses(bundle);
+            Collection<String> detected = readIndex();
+            if (detected == null) {
+                detected = JPAAnnotationScanner.findJPAAnnotatedClasses(bundle);
+            }
             for (String name : detected) {
                 addClassName(name);
             }
         }
     }
 
+    /**
+     * @return the classes listed in the build time index or null if the bundle has no usable index
+     */
+    private Collection<String> readIndex() {
+        URL index = bundle.getEntry(JpaIndex.LOCATION);
+        if (index == null) {
+            return null;
+        }
+        try {
+            return JpaIndex.read(index.openStream());
+        } catch (IOException e) {
+            LOG.warn("Unable to read " + JpaIndex.LOCATION + " of bundle " + bundle.getSymbolicName()
+                + ". Scanning the bundle instead", e);
+            return null;
+        }
+    }
+
 	public void setTransactionType(PersistenceUnitTransactionType transactionType) {
 		this.transactionType = transactionType;
 	}
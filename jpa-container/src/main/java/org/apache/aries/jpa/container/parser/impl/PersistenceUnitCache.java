@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.parser.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.SharedCacheMode;
+import javax.persistence.ValidationMode;
+import javax.persistence.spi.PersistenceUnitTransactionType;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the parsed persistence units of a bundle including the classes found by the
+ * annotation scan. A cache entry is only used if symbolic name, version and last modified
+ * time of the bundle, the digest of its persistence descriptors as well as the revisions of
+ * the attached fragments and of the container bundle itself still match.
+ */
+public class PersistenceUnitCache {
+    private static final Logger LOG = LoggerFactory.getLogger(PersistenceUnitCache.class);
+    private static final int FORMAT = 2;
+
+    private final File dir;
+    private final Bundle container;
+
+    /**
+     * @param container the bundle that parses and scans the persistence units
+     */
+    public PersistenceUnitCache(File dir, Bundle container) {
+        this.dir = dir;
+        this.container = container;
+    }
+
+    /**
+     * @return the cached persistence units or null if there is no valid cache entry
+     */
+    public Collection<PersistenceUnit> load(Bundle bundle) {
+        File file = getFile(bundle);
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            String digest = PersistenceUnitParser.digestDescriptors(bundle);
+            if (digest == null) {
+                return null;
+            }
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT
+                || !in.readUTF().equals(bundle.getSymbolicName())
+                || !in.readUTF().equals(bundle.getVersion().toString())
+                || in.readLong() != bundle.getLastModified()
+                || !in.readUTF().equals(digest)
+                || !in.readUTF().equals(getRevisions(bundle))) {
+                return null;
+            }
+            int count = in.readInt();
+            Collection<PersistenceUnit> punits = new ArrayList<PersistenceUnit>(count);
+            for (int c = 0; c < count; c++) {
+                punits.add(readUnit(in, bundle));
+            }
+            return punits;
+        } catch (Exception e) {
+            LOG.debug("Ignoring unreadable persistence unit cache entry " + file, e);
+            return null;
+        } finally {
+            safeClose(in);
+        }
+    }
+
+    public void store(Bundle bundle, Collection<PersistenceUnit> punits) {
+        if (punits.isEmpty()) {
+            return;
+        }
+        File file = getFile(bundle);
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            String digest = PersistenceUnitParser.digestDescriptors(bundle);
+            if (digest == null || (!dir.isDirectory() && !dir.mkdirs())) {
+                return;
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FORMAT);
+            out.writeUTF(bundle.getSymbolicName());
+            out.writeUTF(bundle.getVersion().toString());
+            out.writeLong(bundle.getLastModified());
+            out.writeUTF(digest);
+            out.writeUTF(getRevisions(bundle));
+            out.writeInt(punits.size());
+            for (PersistenceUnit punit : punits) {
+                writeUnit(out, punit);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                throw new IOException("Unable to rename " + tmp + " to " + file);
+            }
+        } catch (Exception e) {
+            LOG.warn("Unable to cache persistence units of bundle " + bundle.getSymbolicName(), e);
+            safeClose(out);
+            tmp.delete(); // NOSONAR
+        }
+    }
+
+    private File getFile(Bundle bundle) {
+        String name = bundle.getSymbolicName() + "_" + bundle.getVersion();
+        return new File(dir, name.replaceAll("[^A-Za-z0-9._-]", "_") + ".punits");
+    }
+
+    /**
+     * Describes the container bundle and the fragments of the bundle as both can change the
+     * parsed units without changing the bundle itself
+     */
+    private String getRevisions(Bundle bundle) {
+        StringBuilder revisions = new StringBuilder();
+        appendRevision(revisions, container);
+        BundleWiring wiring = bundle.adapt(BundleWiring.class);
+        List<BundleWire> wires = wiring == null ? null : wiring.getProvidedWires(BundleRevision.HOST_NAMESPACE);
+        if (wires != null) {
+            List<String> fragments = new ArrayList<String>(wires.size());
+            for (BundleWire wire : wires) {
+                StringBuilder fragment = new StringBuilder();
+                appendRevision(fragment, wire.getRequirer().getBundle());
+                fragments.add(fragment.toString());
+            }
+            Collections.sort(fragments);
+            for (String fragment : fragments) {
+                revisions.append(fragment);
+            }
+        }
+        return revisions.toString();
+    }
+
+    private static void appendRevision(StringBuilder revisions, Bundle bundle) {
+        revisions.append(bundle.getSymbolicName()).append('_').append(bundle.getVersion())
+            .append('@').append(bundle.getLastModified()).append(';');
+    }
+
+    private static void writeUnit(DataOutputStream out, PersistenceUnit punit) throws IOException {
+        out.writeUTF(punit.getPersistenceUnitName());
+        writeNullable(out, punit.getTransactionType() == null ? null : punit.getTransactionType().name());
+        writeNullable(out, punit.getPersistenceProviderClassName());
+        writeNullable(out, punit.getJtaDataSourceName());
+        writeNullable(out, punit.getNonJtaDataSourceName());
+        out.writeBoolean(punit.isExcludeUnlisted());
+        out.writeUTF(punit.getSharedCacheMode().name());
+        out.writeUTF(punit.getValidationMode().name());
+        writeList(out, punit.getManagedClassNames());
+        writeList(out, punit.getMappingFileNames());
+        out.writeInt(punit.getProperties().size());
+        for (Map.Entry<Object, Object> entry : punit.getProperties().entrySet()) {
+            out.writeUTF(String.valueOf(entry.getKey()));
+            out.writeUTF(String.valueOf(entry.getValue()));
+        }
+    }
+
+    private static PersistenceUnit readUnit(DataInputStream in, Bundle bundle) throws IOException {
+        String name = in.readUTF();
+        String tranType = readNullable(in);
+        PersistenceUnit punit = new PersistenceUnit(bundle, name,
+            tranType == null ? null : PersistenceUnitTransactionType.valueOf(tranType));
+        String provider = readNullable(in);
+        if (provider != null) {
+            punit.setProviderClassName(provider);
+        }
+        punit.setJtaDataSourceName(readNullable(in));
+        punit.setNonJtaDataSourceName(readNullable(in));
+        punit.setExcludeUnlisted(in.readBoolean());
+        punit.setSharedCacheMode(SharedCacheMode.valueOf(in.readUTF()));
+        punit.setValidationMode(ValidationMode.valueOf(in.readUTF()));
+        for (String className : readList(in)) {
+            punit.addClassName(className);
+        }
+        for (String mappingFile : readList(in)) {
+            punit.addMappingFile(mappingFile);
+        }
+        int propCount = in.readInt();
+        for (int c = 0; c < propCount; c++) {
+            punit.addProperty(in.readUTF(), in.readUTF());
+        }
+        return punit;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeList(DataOutputStream out, List<String> values) throws IOException {
+        Collections.sort(values);
+        out.writeInt(values.size());
+        for (String value : values) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static List<String> readList(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> values = new ArrayList<String>(count);
+        for (int c = 0; c < count; c++) {
+            values.add(in.readUTF());
+        }
+        return values;
+    }
+
+    private static void safeClose(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                LOG.debug("Exception while closing", e);
+            }
+        }
+    }
+}
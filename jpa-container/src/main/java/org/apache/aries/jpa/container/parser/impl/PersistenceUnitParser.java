@@ -21,12 +21,13 @@ package org.apache.aries.jpa.container.parser.impl;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Dictionary;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 
@@ -59,25 +60,11 @@ public class PersistenceUnitParser {
      */
     public static Collection<PersistenceUnit> getPersistenceUnits(Bundle bundle) {
         Collection<PersistenceUnit> punits = new ArrayList<PersistenceUnit>();
-        Dictionary<String, String> headers = bundle.getHeaders();
-        String metaPersistence = headers.get(PERSISTENCE_UNIT_HEADER);
-
-        Set<String> locations = new HashSet<String>();
-        if (metaPersistence == null) {
+        Set<String> locations = getDescriptorLocations(bundle);
+        if (locations == null) {
             return punits;
         }
 
-        if (!metaPersistence.isEmpty()) {
-            // Split apart the header to get the individual entries
-            for (String s : metaPersistence.split(",")) {
-                locations.add(s.trim());
-            }
-        }
-        
-        if (!locations.contains(DEFAULT_PERSISTENCE_LOCATION)) {
-            locations.add(DEFAULT_PERSISTENCE_LOCATION);
-        }
-
         // Find the file and add it to our list
         for (String location : locations) {
             try {
@@ -94,6 +81,72 @@ public class PersistenceUnitParser {
         return punits;
     }
 
+    /**
+     * Computes a SHA-1 digest over all persistence descriptors of the bundle.
+     * 
+     * @param bundle The bundle to search
+     * @return hex encoded digest or null if the bundle is no persistence bundle
+     * @throws IOException if a descriptor can not be read
+     */
+    public static String digestDescriptors(Bundle bundle) throws IOException {
+        Set<String> locations = getDescriptorLocations(bundle);
+        if (locations == null) {
+            return null;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (Exception e) {
+            throw new IOException("SHA-1 not available", e);
+        }
+        byte[] buffer = new byte[8192];
+        for (String location : locations) {
+            digest.update(location.getBytes("UTF-8"));
+            InputStream is = locateFile(bundle, location);
+            if (is == null) {
+                continue;
+            }
+            try {
+                int read = is.read(buffer);
+                while (read != -1) {
+                    digest.update(buffer, 0, read);
+                    read = is.read(buffer);
+                }
+            } finally {
+                safeClose(is);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return sorted descriptor locations or null if the bundle has no Meta-Persistence header
+     */
+    private static Set<String> getDescriptorLocations(Bundle bundle) {
+        Dictionary<String, String> headers = bundle.getHeaders();
+        String metaPersistence = headers.get(PERSISTENCE_UNIT_HEADER);
+        if (metaPersistence == null) {
+            return null;
+        }
+
+        Set<String> locations = new TreeSet<String>();
+        if (!metaPersistence.isEmpty()) {
+            // Split apart the header to get the individual entries
+            for (String s : metaPersistence.split(",")) {
+                locations.add(s.trim());
+            }
+        }
+        
+        if (!locations.contains(DEFAULT_PERSISTENCE_LOCATION)) {
+            locations.add(DEFAULT_PERSISTENCE_LOCATION);
+        }
+        return locations;
+    }
+
     private static void parse(Bundle bundle, InputStream is, Collection<PersistenceUnit> punits) {
         SAXParserFactory parserFactory = SAXParserFactory.newInstance();
         try {
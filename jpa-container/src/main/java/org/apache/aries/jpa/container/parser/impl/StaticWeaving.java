@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.parser.impl;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.aries.jpa.index.ClassFileAnnotationReader;
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detects persistence bundles whose classes were enhanced at build time. Such bundles declare
+ * the providers they were enhanced for in the {@link #HEADER} manifest header, for example
+ * <pre>Meta-Persistence-Static-Weaving: org.eclipse.persistence.jpa.PersistenceProvider</pre>
+ * For the known providers the managed classes are checked for the references the enhancer adds
+ * before runtime weaving is skipped.
+ */
+public final class StaticWeaving {
+    public static final String HEADER = "Meta-Persistence-Static-Weaving";
+
+    private static final Logger LOG = LoggerFactory.getLogger(StaticWeaving.class);
+
+    /**
+     * Provider package, package of the types added by the enhancer in internal form,
+     * property that disables runtime weaving and its value
+     */
+    private static final String[][] PROVIDERS = {
+        {"org.eclipse.persistence.", "org/eclipse/persistence/internal/weaving/", "eclipselink.weaving", "static"},
+        {"org.hibernate.", "org/hibernate/engine/spi/", null, null},
+        {"org.apache.openjpa.", "org/apache/openjpa/enhance/", "openjpa.DynamicEnhancementAgent", "false"}
+    };
+
+    private StaticWeaving() {
+    }
+
+    /**
+     * Checks if the classes of the persistence unit were enhanced for its provider at build time.
+     * If so the provider property that disables runtime weaving is set unless the unit already
+     * defines it.
+     * 
+     * @param providerName class name of the PersistenceProvider that serves the unit. Most units do not
+     *        declare a provider so this is the provider actually found
+     * @return true if runtime weaving is not needed
+     */
+    public static boolean apply(PersistenceUnit punit, String providerName) {
+        Bundle bundle = punit.getBundle();
+        String header = bundle.getHeaders().get(HEADER);
+        if (header == null || providerName == null) {
+            return false;
+        }
+        if (!declaresProvider(header, providerName)) {
+            LOG.warn("Bundle {} was statically woven for {} but persistence unit {} uses {}. Using runtime weaving",
+                     bundle.getSymbolicName(), header, punit.getPersistenceUnitName(), providerName);
+            return false;
+        }
+        String[] provider = getProvider(providerName);
+        if (provider != null) {
+            List<String> notEnhanced = new ArrayList<String>();
+            if (checkEnhanced(punit, provider[1], notEnhanced) == 0) {
+                LOG.warn("No class of persistence unit {} could be read to verify it is enhanced for {}. Using runtime weaving",
+                         punit.getPersistenceUnitName(), providerName);
+                return false;
+            }
+            if (!notEnhanced.isEmpty()) {
+                LOG.warn("Classes {} of persistence unit {} are not enhanced for {}. Using runtime weaving",
+                         notEnhanced, punit.getPersistenceUnitName(), providerName);
+                return false;
+            }
+            if (provider[2] != null && !punit.getProperties().containsKey(provider[2])) {
+                punit.addProperty(provider[2], provider[3]);
+            }
+        }
+        return true;
+    }
+
+    private static boolean declaresProvider(String header, String providerName) {
+        for (String declared : header.split(",")) {
+            if (declared.trim().equals(providerName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String[] getProvider(String providerName) {
+        for (String[] provider : PROVIDERS) {
+            if (providerName.startsWith(provider[0])) {
+                return provider;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The classes are read through the bundle class loader so classes on the Bundle-ClassPath are
+     * checked as well.
+     * 
+     * @param notEnhanced receives the names of the classes that are not enhanced or could not be read
+     * @return the number of classes that were found
+     */
+    private static int checkEnhanced(PersistenceUnit punit, String enhancerPrefix, List<String> notEnhanced) {
+        int found = 0;
+        for (String className : punit.getManagedClassNames()) {
+            URL url = punit.getBundle().getResource(className.replace('.', '/') + ".class");
+            if (url == null) {
+                continue;
+            }
+            found++;
+            try {
+                byte[] bytes = ClassFileAnnotationReader.readFully(url.openStream());
+                if (!ClassFileAnnotationReader.referencesPrefix(bytes, enhancerPrefix)) {
+                    notEnhanced.add(className);
+                }
+            } catch (IOException e) {
+                LOG.debug("Unable to read class " + className, e);
+                notEnhanced.add(className);
+            }
+        }
+        return found;
+    }
+}
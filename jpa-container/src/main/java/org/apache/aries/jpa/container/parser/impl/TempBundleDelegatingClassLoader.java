@@ -18,17 +18,24 @@
  */
 package org.apache.aries.jpa.container.parser.impl;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.net.URL;
+import java.net.URLConnection;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.Enumeration;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.wiring.BundleRevision;
@@ -43,12 +50,26 @@ import org.slf4j.LoggerFactory;
  */
 public class TempBundleDelegatingClassLoader extends ClassLoader {
     private static final Logger LOG = LoggerFactory.getLogger(TempBundleDelegatingClassLoader.class);
+
+    /**
+     * Imported package to providing bundle per wiring. Providers create many temporary class loaders
+     * for the same bundle so the index is shared. A new wiring after a refresh gets a new index.
+     * DynamicImport-Package adds wires to an existing wiring so a lookup that misses the index
+     * rebuilds it if the wires changed.
+     */
+    private static final Map<BundleWiring, PackageIndex> PACKAGE_PROVIDERS =
+        Collections.synchronizedMap(new WeakHashMap<BundleWiring, PackageIndex>());
+
+    static {
+        registerAsParallelCapable(TempBundleDelegatingClassLoader.class);
+    }
+
     private final Bundle bundle;
 
     private final ThreadLocal<Deque<Bundle>> currentLoadingBundle = new ThreadLocal<Deque<Bundle>>() {
         @Override
         protected Deque<Bundle> initialValue() {
-            return new LinkedList<Bundle>();
+            return new ArrayDeque<Bundle>();
         }
     };
 
@@ -57,62 +78,128 @@ public class TempBundleDelegatingClassLoader extends ClassLoader {
         bundle = b;
     }
 
+    /**
+     * ClassLoader.registerAsParallelCapable only exists since Java 7
+     */
+    private static void registerAsParallelCapable(Class<?> loaderClass) {
+        try {
+            Method register = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+            register.invoke(null);
+        } catch (Exception e) {
+            LOG.debug("Unable to register " + loaderClass.getName() + " as parallel capable", e);
+        }
+    }
+
     @Override
     protected Class<?> findClass(String className) throws ClassNotFoundException {
         String classResName = className.replace('.', '/').concat(".class");
 
         // Don't use loadClass, just load the bytes and call defineClass
-        Bundle currentContext = currentLoadingBundle.get().peek();
-        InputStream is;
+        Deque<Bundle> contexts = currentLoadingBundle.get();
+        Bundle currentContext = contexts.peek();
+        URL url;
         if (currentContext == null) {
-            is = getResourceAsStream(classResName);
+            url = getResource(classResName);
         } else {
-            is = getResourceInBundleAsStream(classResName, currentContext);
+            url = findResourceInBundle(classResName, currentContext);
         }
 
-        if (is == null) {
+        if (url == null) {
             throw new ClassNotFoundException(className);
         }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-        byte[] buff = new byte[4096];
+        byte[] buff;
         try {
-            try {
-                int read = is.read(buff);
-                while (read > 0) {
-                    baos.write(buff, 0, read);
-                    read = is.read(buff);
-                }
-            } finally {
-                is.close();
-            }
+            buff = readFully(url);
         } catch (IOException ioe) {
             throw new ClassNotFoundException(className, ioe);
         }
 
-        buff = baos.toByteArray();
-
-        updateContext(currentContext, className);
+        contexts.push(getProvider(currentContext == null ? bundle : currentContext, className));
         try {
             return defineClass(className, buff, 0, buff.length);
         } finally {
-            currentLoadingBundle.get().pop();
+            contexts.pop();
+        }
+    }
+
+    /**
+     * Reads the resource in one pass into a buffer sized by the content length if it is known
+     */
+    private static byte[] readFully(URL url) throws IOException {
+        URLConnection connection = url.openConnection();
+        int size = connection.getContentLength();
+        InputStream is = connection.getInputStream();
+        try {
+            byte[] buff = new byte[size > 0 ? size : 8192];
+            int length = 0;
+            while (true) {
+                int read = is.read(buff, length, buff.length - length);
+                if (read == -1) {
+                    break;
+                }
+                length += read;
+                if (length == buff.length) {
+                    int next = is.read();
+                    if (next == -1) {
+                        break;
+                    }
+                    buff = Arrays.copyOf(buff, buff.length * 2);
+                    buff[length++] = (byte)next;
+                }
+            }
+            return length == buff.length ? buff : Arrays.copyOf(buff, length);
+        } finally {
+            is.close();
         }
     }
 
-    private void updateContext(Bundle currentContext, String className) {
-        Bundle contextToSet = (currentContext == null) ? bundle : currentContext;
+    /**
+     * @return the bundle providing the package of the class to the context bundle or the context
+     * bundle itself if it does not import the package
+     */
+    static Bundle getProvider(Bundle contextBundle, String className) {
         int idx = className.lastIndexOf('.');
         String packageName = (idx == -1) ? "" : className.substring(0, idx);
-        BundleWiring wiring = contextToSet.adapt(BundleWiring.class);
-        for (BundleWire wire : wiring.getRequiredWires(BundleRevision.PACKAGE_NAMESPACE)) {
-            if (wire.getCapability().getAttributes().get(BundleRevision.PACKAGE_NAMESPACE).equals(packageName)) {
-                contextToSet = wire.getProviderWiring().getBundle();
-                break;
+        BundleWiring wiring = contextBundle.adapt(BundleWiring.class);
+        if (wiring == null) {
+            return contextBundle;
+        }
+        PackageIndex index = PACKAGE_PROVIDERS.get(wiring);
+        Bundle provider = index != null ? index.providers.get(packageName) : null;
+        if (provider == null) {
+            // Packages of the bundle itself always miss. Only rebuild if a wire was added since
+            List<BundleWire> wires = wiring.getRequiredWires(BundleRevision.PACKAGE_NAMESPACE);
+            if (index == null || (wires != null && wires.size() != index.wireCount)) {
+                index = new PackageIndex(wires);
+                // Computing the index twice in a race is harmless
+                PACKAGE_PROVIDERS.put(wiring, index);
+                provider = index.providers.get(packageName);
+            }
+        }
+        return provider != null ? provider : contextBundle;
+    }
+
+    /**
+     * Immutable index of the package wires of a wiring
+     */
+    private static final class PackageIndex {
+        final int wireCount;
+        final Map<String, Bundle> providers = new HashMap<String, Bundle>();
+
+        PackageIndex(List<BundleWire> wires) {
+            if (wires == null) {
+                wireCount = 0;
+                return;
+            }
+            wireCount = wires.size();
+            for (BundleWire wire : wires) {
+                String packageName = (String)wire.getCapability().getAttributes().get(BundleRevision.PACKAGE_NAMESPACE);
+                if (!providers.containsKey(packageName)) {
+                    providers.put(packageName, wire.getProviderWiring().getBundle());
+                }
             }
         }
-        currentLoadingBundle.get().push(contextToSet);
     }
 
     @Override
@@ -131,16 +218,6 @@ public class TempBundleDelegatingClassLoader extends ClassLoader {
         });
     }
 
-    private InputStream getResourceInBundleAsStream(final String resName, final Bundle inBundle) {
-        URL url = findResourceInBundle(resName, inBundle);
-        try {
-            return (url == null) ? null : url.openStream();
-        } catch (IOException e) {
-            LOG.debug("Exception on openStream", e);
-            return null;
-        }
-    }
-
     @Override
     protected Enumeration<URL> findResources(final String resName) throws IOException {
         return findResourcesInBundle(resName, bundle);
@@ -0,0 +1,414 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.pool.impl;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.CommonDataSource;
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.DataSource;
+import javax.sql.PooledConnection;
+
+import org.osgi.service.jdbc.DataSourceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pooling DataSource for persistence units that are configured with javax.persistence.jdbc
+ * properties. The physical connections come from a ConnectionPoolDataSource of the driver if it
+ * offers one and from its plain DataSource otherwise. Idle connections are reused most recently
+ * used first so surplus connections age out and get closed by the idle eviction.
+ */
+public class ConnectionPool implements DataSource, ConnectionEventListener {
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private final String name;
+    private final ConnectionPoolDataSource poolDataSource;
+    private final DataSource dataSource;
+
+    private final Deque<IdleConnection> idle = new ArrayDeque<IdleConnection>();
+    /**
+     * The pooled connection that {@link #reset} is using on this thread. Its events are handled by reset
+     */
+    private final ThreadLocal<PooledConnection> resetting = new ThreadLocal<PooledConnection>();
+    /**
+     * Settings the driver pooled connections are restored to when they are returned
+     */
+    private final Map<PooledConnection, DataSourcePooledConnection.InitialState> initialStates =
+        new ConcurrentHashMap<PooledConnection, DataSourcePooledConnection.InitialState>();
+    private PoolConfig config;
+    private int size;
+    private boolean closed;
+    private Timer evictionTimer;
+
+    ConnectionPool(String name, ConnectionPoolDataSource poolDataSource, DataSource dataSource, PoolConfig config) {
+        this.name = name;
+        this.poolDataSource = poolDataSource;
+        this.dataSource = dataSource;
+        configure(config);
+    }
+
+    /**
+     * Creates a pool with the connection settings in props. A ConnectionPoolDataSource of the driver
+     * is preferred as it can cache statements.
+     */
+    public static ConnectionPool create(DataSourceFactory dsf, Properties props, PoolConfig config, String name)
+        throws SQLException {
+        Properties poolProps = new Properties();
+        poolProps.putAll(props);
+        if (config.getMaxStatements() > 0) {
+            poolProps.setProperty(DataSourceFactory.JDBC_MAX_STATEMENTS, String.valueOf(config.getMaxStatements()));
+        }
+        try {
+            ConnectionPoolDataSource cpds = dsf.createConnectionPoolDataSource(poolProps);
+            LOG.info("Pooling connections of persistence unit {} using the driver ConnectionPoolDataSource", name);
+            return new ConnectionPool(name, cpds, null, config);
+        } catch (SQLException e) {
+            LOG.debug("No ConnectionPoolDataSource available for persistence unit " + name, e);
+        }
+        LOG.info("Pooling connections of persistence unit {} using the driver DataSource", name);
+        return new ConnectionPool(name, null, dsf.createDataSource(props), config);
+    }
+
+    /**
+     * Applies new settings. Connections above a reduced maximum size are closed when they are returned.
+     */
+    public final synchronized void configure(PoolConfig newConfig) {
+        long oldIdleTimeout = config == null ? 0 : config.getIdleTimeout();
+        this.config = newConfig;
+        if (evictionTimer == null || oldIdleTimeout != newConfig.getIdleTimeout()) {
+            scheduleEviction();
+        }
+        notifyAll();
+    }
+
+    private void scheduleEviction() {
+        if (evictionTimer != null) {
+            evictionTimer.cancel();
+            evictionTimer = null;
+        }
+        long timeout = config.getIdleTimeout();
+        if (timeout > 0 && !closed) {
+            long period = Math.max(1000, timeout / 2);
+            evictionTimer = new Timer("Aries JPA connection pool " + name, true);
+            evictionTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    evictIdle();
+                }
+            }, period, period);
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        while (true) {
+            PoolConfig currentConfig;
+            PooledConnection pc = null;
+            synchronized (this) {
+                currentConfig = config;
+                long deadline = System.currentTimeMillis() + currentConfig.getMaxWait();
+                while (pc == null) {
+                    if (closed) {
+                        throw new SQLException("The connection pool of persistence unit " + name + " is closed");
+                    }
+                    IdleConnection idleConnection = idle.pollFirst();
+                    if (idleConnection != null) {
+                        pc = idleConnection.connection;
+                    } else if (size < config.getMaxSize()) {
+                        size++;
+                        break;
+                    } else {
+                        long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            throw new SQLException("Timeout waiting for a connection of persistence unit " + name
+                                + ". All " + size + " connections are in use");
+                        }
+                        waitFor(wait);
+                    }
+                }
+            }
+            if (pc == null) {
+                return newConnection();
+            }
+            Connection connection = getLogicalConnection(pc);
+            if (connection != null && (!currentConfig.isValidateOnBorrow() || isValid(connection, currentConfig))) {
+                return connection;
+            }
+            discard(pc);
+        }
+    }
+
+    private void waitFor(long millis) throws SQLException {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection of persistence unit " + name, e);
+        }
+    }
+
+    /**
+     * Creates a physical connection. The pool size was already increased by the caller.
+     */
+    private Connection newConnection() throws SQLException {
+        PooledConnection pc;
+        try {
+            pc = poolDataSource != null ? poolDataSource.getPooledConnection()
+                : new DataSourcePooledConnection(dataSource.getConnection());
+        } catch (SQLException e) {
+            release();
+            throw e;
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+        pc.addConnectionEventListener(this);
+        try {
+            Connection connection = pc.getConnection();
+            if (poolDataSource != null) {
+                initialStates.put(pc, new DataSourcePooledConnection.InitialState(connection));
+            }
+            return connection;
+        } catch (SQLException e) {
+            discard(pc);
+            throw e;
+        }
+    }
+
+    private Connection getLogicalConnection(PooledConnection pc) {
+        try {
+            return pc.getConnection();
+        } catch (SQLException e) {
+            LOG.debug("Discarding broken pooled connection of persistence unit " + name, e);
+            return null;
+        }
+    }
+
+    private boolean isValid(Connection connection, PoolConfig currentConfig) {
+        try {
+            if (connection.isValid(currentConfig.getValidationTimeout())) {
+                return true;
+            }
+        } catch (SQLException e) {
+            LOG.debug("Validation of pooled connection failed for persistence unit " + name, e);
+        }
+        return false;
+    }
+
+    @Override
+    public void connectionClosed(ConnectionEvent event) {
+        PooledConnection pc = (PooledConnection)event.getSource();
+        if (resetting.get() == pc) {
+            return;
+        }
+        // DataSourcePooledConnection already reset the physical connection
+        if (poolDataSource != null && !reset(pc)) {
+            discard(pc);
+            return;
+        }
+        boolean keep;
+        synchronized (this) {
+            keep = !closed && size <= config.getMaxSize();
+            if (keep) {
+                idle.addFirst(new IdleConnection(pc));
+                notifyAll();
+            }
+        }
+        if (!keep) {
+            discard(pc);
+        }
+    }
+
+    /**
+     * Applies the reset of DataSourcePooledConnection to a driver pooled connection using a new
+     * logical connection. Closing it fires a second connectionClosed that is ignored.
+     * 
+     * @return false if the connection could not be reset and must not be reused
+     */
+    private boolean reset(PooledConnection pc) {
+        resetting.set(pc);
+        try {
+            Connection connection = pc.getConnection();
+            try {
+                DataSourcePooledConnection.reset(connection, initialStates.get(pc));
+            } finally {
+                connection.close();
+            }
+            return true;
+        } catch (SQLException e) {
+            LOG.debug("Unable to reset pooled connection of persistence unit " + name, e);
+            return false;
+        } finally {
+            resetting.remove();
+        }
+    }
+
+    @Override
+    public void connectionErrorOccurred(ConnectionEvent event) {
+        if (resetting.get() == event.getSource()) {
+            // reset reports the failure and the connection is discarded once
+            return;
+        }
+        LOG.debug("Discarding pooled connection of persistence unit " + name + " after error", event.getSQLException());
+        discard((PooledConnection)event.getSource());
+    }
+
+    private synchronized void release() {
+        size--;
+        notifyAll();
+    }
+
+    private void discard(PooledConnection pc) {
+        release();
+        closePhysical(pc);
+    }
+
+    private void closePhysical(PooledConnection pc) {
+        pc.removeConnectionEventListener(this);
+        initialStates.remove(pc);
+        try {
+            pc.close();
+        } catch (SQLException e) {
+            LOG.debug("Error closing pooled connection of persistence unit " + name, e);
+        }
+    }
+
+    void evictIdle() {
+        List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+        synchronized (this) {
+            long oldest = System.currentTimeMillis() - config.getIdleTimeout();
+            Iterator<IdleConnection> it = idle.descendingIterator();
+            while (it.hasNext() && idle.size() > config.getMinIdle()) {
+                IdleConnection idleConnection = it.next();
+                if (idleConnection.since > oldest) {
+                    break;
+                }
+                it.remove();
+                size--;
+                evicted.add(idleConnection.connection);
+            }
+        }
+        for (PooledConnection pc : evicted) {
+            closePhysical(pc);
+        }
+    }
+
+    /**
+     * Closes the idle connections. Connections in use are closed when they are returned.
+     */
+    public void close() {
+        List<IdleConnection> toClose;
+        synchronized (this) {
+            closed = true;
+            if (evictionTimer != null) {
+                evictionTimer.cancel();
+                evictionTimer = null;
+            }
+            toClose = new ArrayList<IdleConnection>(idle);
+            size -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        for (IdleConnection idleConnection : toClose) {
+            closePhysical(idleConnection.connection);
+        }
+    }
+
+    synchronized int getSize() {
+        return size;
+    }
+
+    synchronized int getIdle() {
+        return idle.size();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("The connection pool of persistence unit " + name
+            + " only supports the configured user");
+    }
+
+    private CommonDataSource getSource() {
+        return poolDataSource != null ? poolDataSource : dataSource;
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return getSource().getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        getSource().setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        getSource().setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return getSource().getLoginTimeout();
+    }
+
+    // Java 7 method of CommonDataSource. No @Override so this still compiles with Java 6
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    private static final class IdleConnection {
+        private final PooledConnection connection;
+        private final long since;
+
+        IdleConnection(PooledConnection connection) {
+            this.connection = connection;
+            this.since = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.pool.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.PooledConnection;
+import javax.sql.StatementEventListener;
+
+/**
+ * PooledConnection for drivers that only offer a plain DataSource. The logical connection
+ * handed out is a proxy whose close returns the physical connection to the pool after
+ * rolling back unfinished work and restoring the initial settings. Statements, meta data
+ * and result sets are wrapped so that they only expose the logical connection.
+ */
+class DataSourcePooledConnection implements PooledConnection {
+    /**
+     * Return types of JDBC methods whose objects can lead back to the physical connection
+     */
+    private static final Set<Class<?>> GUARDED_TYPES = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+        Statement.class, PreparedStatement.class, CallableStatement.class, DatabaseMetaData.class, ResultSet.class));
+
+    private final Connection physical;
+    private final List<ConnectionEventListener> listeners = new CopyOnWriteArrayList<ConnectionEventListener>();
+    private Handle current;
+    private InitialState initial;
+
+    DataSourcePooledConnection(Connection physical) {
+        this.physical = physical;
+    }
+
+    @Override
+    public synchronized Connection getConnection() throws SQLException {
+        if (initial == null) {
+            initial = new InitialState(physical);
+        }
+        if (current != null) {
+            current.closed = true;
+        }
+        current = new Handle();
+        return (Connection)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class}, current);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        physical.close();
+    }
+
+    @Override
+    public void addConnectionEventListener(ConnectionEventListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeConnectionEventListener(ConnectionEventListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void addStatementEventListener(StatementEventListener listener) {
+        // Statements are not pooled
+    }
+
+    @Override
+    public void removeStatementEventListener(StatementEventListener listener) {
+        // Statements are not pooled
+    }
+
+    /**
+     * Rolls back unfinished work and restores auto commit, isolation, read only and catalog
+     * before a connection is reused
+     */
+    static void reset(Connection connection, InitialState initial) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        if (!autoCommit) {
+            connection.rollback();
+        }
+        if (autoCommit != initial.autoCommit) {
+            connection.setAutoCommit(initial.autoCommit);
+        }
+        if (connection.getTransactionIsolation() != initial.isolation) {
+            connection.setTransactionIsolation(initial.isolation);
+        }
+        if (connection.isReadOnly() != initial.readOnly) {
+            connection.setReadOnly(initial.readOnly);
+        }
+        if (initial.catalog != null && !initial.catalog.equals(connection.getCatalog())) {
+            connection.setCatalog(initial.catalog);
+        }
+    }
+
+    private static Object unwrap(Object proxy, String name, Class<?> iface) throws SQLException {
+        boolean wrapper = iface.isInstance(proxy);
+        if ("isWrapperFor".equals(name)) {
+            return wrapper;
+        }
+        if (!wrapper) {
+            throw new SQLException("The pooled connection does not expose " + iface.getName());
+        }
+        return proxy;
+    }
+
+    private static Object guard(Connection connection, Object owner, Method method, Object result) {
+        Class<?> type = method.getReturnType();
+        if (result == null || !GUARDED_TYPES.contains(type)) {
+            return result;
+        }
+        return Proxy.newProxyInstance(DataSourcePooledConnection.class.getClassLoader(), new Class<?>[] {type},
+            new Guard(connection, owner, result));
+    }
+
+    private void handleClosed() {
+        ConnectionEvent event;
+        try {
+            reset(physical, initial);
+            event = new ConnectionEvent(this);
+        } catch (SQLException e) {
+            for (ConnectionEventListener listener : listeners) {
+                listener.connectionErrorOccurred(new ConnectionEvent(this, e));
+            }
+            return;
+        }
+        for (ConnectionEventListener listener : listeners) {
+            listener.connectionClosed(event);
+        }
+    }
+
+    private final class Handle implements InvocationHandler {
+        private boolean closed;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            synchronized (DataSourcePooledConnection.this) {
+                if ("close".equals(name)) {
+                    if (!closed) {
+                        closed = true;
+                        current = null;
+                        handleClosed();
+                    }
+                    return null;
+                }
+                if ("isClosed".equals(name)) {
+                    return closed;
+                }
+                if (closed) {
+                    throw new SQLException("Connection is closed");
+                }
+            }
+            if ("unwrap".equals(name) || "isWrapperFor".equals(name)) {
+                return unwrap(proxy, name, (Class<?>)args[0]);
+            }
+            try {
+                return guard((Connection)proxy, proxy, method, method.invoke(physical, args));
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Wraps a Statement, DatabaseMetaData or ResultSet so that getConnection returns the
+     * logical connection and unwrap does not reach the driver objects
+     */
+    private static final class Guard implements InvocationHandler {
+        private final Connection connection;
+        private final Object owner;
+        private final Object target;
+
+        Guard(Connection connection, Object owner, Object target) {
+            this.connection = connection;
+            this.owner = owner;
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                if ("equals".equals(name)) {
+                    return proxy == args[0];
+                } else if ("hashCode".equals(name)) {
+                    return System.identityHashCode(proxy);
+                }
+                return target.toString();
+            }
+            if ("getConnection".equals(name)) {
+                return connection;
+            }
+            if ("getStatement".equals(name) && owner instanceof Statement) {
+                return owner;
+            }
+            if ("unwrap".equals(name) || "isWrapperFor".equals(name)) {
+                return unwrap(proxy, name, (Class<?>)args[0]);
+            }
+            try {
+                return guard(connection, proxy, method, method.invoke(target, args));
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Settings of a physical connection when it was opened
+     */
+    static final class InitialState {
+        private final boolean autoCommit;
+        private final int isolation;
+        private final boolean readOnly;
+        private final String catalog;
+
+        InitialState(Connection connection) throws SQLException {
+            autoCommit = connection.getAutoCommit();
+            isolation = connection.getTransactionIsolation();
+            readOnly = connection.isReadOnly();
+            catalog = connection.getCatalog();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.pool.impl;
+
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Settings of the connection pool read from the persistence unit properties or the
+ * org.apache.aries.jpa.&lt;unit&gt; configuration.
+ */
+public final class PoolConfig {
+    public static final String PREFIX = "org.apache.aries.jpa.pool.";
+    /**
+     * Pooling is only used if this is true
+     */
+    public static final String ENABLED = PREFIX + "enabled";
+    public static final String MAX_SIZE = PREFIX + "maxSize";
+    public static final String MIN_IDLE = PREFIX + "minIdle";
+    /**
+     * Milliseconds to wait for a free connection if the pool is exhausted
+     */
+    public static final String MAX_WAIT = PREFIX + "maxWait";
+    /**
+     * Milliseconds after which connections above minIdle are closed. 0 disables eviction
+     */
+    public static final String IDLE_TIMEOUT = PREFIX + "idleTimeout";
+    public static final String VALIDATE_ON_BORROW = PREFIX + "validateOnBorrow";
+    /**
+     * Seconds passed to Connection.isValid
+     */
+    public static final String VALIDATION_TIMEOUT = PREFIX + "validationTimeout";
+    /**
+     * Statement cache size per connection. Only used if the driver supports ConnectionPoolDataSource
+     */
+    public static final String MAX_STATEMENTS = PREFIX + "maxStatements";
+
+    private static final Logger LOG = LoggerFactory.getLogger(PoolConfig.class);
+
+    private final int maxSize;
+    private final int minIdle;
+    private final long maxWait;
+    private final long idleTimeout;
+    private final boolean validateOnBorrow;
+    private final int validationTimeout;
+    private final int maxStatements;
+
+    public PoolConfig(Map<String, Object> props) {
+        this.maxSize = Math.max(1, getInt(props, MAX_SIZE, 10));
+        this.minIdle = Math.max(0, getInt(props, MIN_IDLE, 0));
+        this.maxWait = getInt(props, MAX_WAIT, 30000);
+        this.idleTimeout = getInt(props, IDLE_TIMEOUT, 600000);
+        this.validateOnBorrow = getBoolean(props, VALIDATE_ON_BORROW, true);
+        this.validationTimeout = getInt(props, VALIDATION_TIMEOUT, 5);
+        this.maxStatements = getInt(props, MAX_STATEMENTS, 0);
+    }
+
+    public static boolean isEnabled(Map<String, Object> props) {
+        return getBoolean(props, ENABLED, false);
+    }
+
+    /**
+     * @return true if the key is a pool setting that {@link ConnectionPool#configure} applies to the
+     *         running pool. Changing it does not need a new EntityManagerFactory
+     */
+    public static boolean isLive(String key) {
+        return key.startsWith(PREFIX) && !ENABLED.equals(key) && !MAX_STATEMENTS.equals(key);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public boolean isValidateOnBorrow() {
+        return validateOnBorrow;
+    }
+
+    public int getValidationTimeout() {
+        return validationTimeout;
+    }
+
+    public int getMaxStatements() {
+        return maxStatements;
+    }
+
+    private static int getInt(Map<String, Object> props, String key, int defaultValue) {
+        Object value = props.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.toString().trim());
+        } catch (NumberFormatException e) {
+            LOG.warn("Invalid value {} for {}. Using {}", value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static boolean getBoolean(Map<String, Object> props, String key, boolean defaultValue) {
+        Object value = props.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.toString().trim());
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.weaving;
+
+import java.util.Map;
+
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import org.osgi.annotation.versioning.ConsumerType;
+
+/**
+ * Lets a persistence provider adapter register the ClassTransformers of a persistence unit
+ * without creating a full EntityManagerFactory.
+ * 
+ * Implementations are registered as OSGi service with the property javax.persistence.provider
+ * set to the class name of the PersistenceProvider they support. If no implementation
+ * handles a unit the container creates and closes a temporary EntityManagerFactory so
+ * the provider can add its transformers.
+ */
+@ConsumerType
+public interface ClassTransformerProvider {
+    /**
+     * Called before any entity class of the persistence unit is loaded. Implementations
+     * call punit.addTransformer for each ClassTransformer the provider needs.
+     * 
+     * @param punit the persistence unit. The DataSources are placeholders that can not connect
+     * @param props additional provider properties
+     * @return true if the transformers were added or none are needed. false to let the container
+     *         fall back to creating a temporary EntityManagerFactory
+     */
+    boolean addTransformers(PersistenceUnitInfo punit, Map<String, Object> props);
+}
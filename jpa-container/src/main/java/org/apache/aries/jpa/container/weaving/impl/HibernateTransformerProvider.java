@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.weaving.impl;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import org.apache.aries.jpa.container.weaving.ClassTransformerProvider;
+
+/**
+ * Hibernate only adds a ClassTransformer if bytecode enhancement is enabled for the unit.
+ * Otherwise there is nothing to register and the temporary EntityManagerFactory can be skipped.
+ */
+public final class HibernateTransformerProvider implements ClassTransformerProvider {
+    private static final Set<String> PROVIDERS = new HashSet<String>(Arrays.asList(
+        "org.hibernate.jpa.HibernatePersistenceProvider",
+        "org.hibernate.ejb.HibernatePersistence"));
+    private static final String[] ENHANCER_PROPERTIES = {
+        "hibernate.ejb.use_class_enhancer",
+        "hibernate.enhancer.enableDirtyTracking",
+        "hibernate.enhancer.enableLazyInitialization",
+        "hibernate.enhancer.enableAssociationManagement"
+    };
+
+    public static boolean supports(String providerClassName) {
+        return PROVIDERS.contains(providerClassName);
+    }
+
+    @Override
+    public boolean addTransformers(PersistenceUnitInfo punit, Map<String, Object> props) {
+        for (String key : ENHANCER_PROPERTIES) {
+            Object value = props.get(key);
+            if (value == null) {
+                value = punit.getProperties().getProperty(key);
+            }
+            if (value != null && Boolean.parseBoolean(value.toString().trim())) {
+                // Let Hibernate create its enhancing transformer
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -18,12 +18,8 @@
  */
 package org.apache.aries.jpa.container.weaving.impl;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedHashSet;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Set;
 
 import javax.persistence.Entity;
 import javax.persistence.spi.ClassTransformer;
@@ -42,11 +38,18 @@ import org.slf4j.LoggerFactory;
 public class JPAWeavingHook implements WeavingHook, TransformerRegistry {
     private static final Logger LOGGER = LoggerFactory.getLogger(JPAWeavingHook.class);
 
+    private static final Registration[] NO_TRANSFORMERS = new Registration[0];
+
     /**
      * With luck we will only have one persistence unit per bundle, but if we don't we'll need to call them
      * until one of them does a transform or we run out.
+     * <p>
+     * weave is called for every class loaded in the framework so it reads this immutable snapshot without
+     * locking. Changes are rare and replace the whole snapshot while holding the hook monitor.
      */
-    private final Map<Bundle, LinkedHashSet<ClassTransformer>> registeredTransformers = new HashMap<Bundle, LinkedHashSet<ClassTransformer>>();
+    private volatile Snapshot registeredTransformers = new Snapshot(new long[0], new Registration[0][]);
+
+    private volatile WovenClassCache cache;
 
     /**
      * This constructor should not be called directly, the {@link JPAWeavingHookFactory} should be used to
@@ -55,43 +58,78 @@ public class JPAWeavingHook implements WeavingHook, TransformerRegistry {
     JPAWeavingHook() {
     }
 
+    /**
+     * @param cache cache for the woven bytes or null to always call the transformers
+     */
+    public void setCache(WovenClassCache cache) {
+        this.cache = cache;
+    }
+
     @Override
     public void weave(WovenClass wovenClass) {
         BundleWiring wiring = wovenClass.getBundleWiring();
-        Bundle bundle = wiring.getBundle();
-        ClassLoader cl = wiring.getClassLoader();
-        Collection<ClassTransformer> transformersToTry = getTransformers(bundle);
-        for (ClassTransformer transformer : transformersToTry) {
-            if (transformClass(wovenClass, cl, transformer)) {
-                LOGGER.info("Weaving " + wovenClass.getClassName() + " using " + transformer.getClass().getName());
-                break;
+        Registration[] transformersToTry = registeredTransformers.get(wiring.getBundle().getBundleId());
+        if (transformersToTry.length == 0) {
+            Class<?> dClass = wovenClass.getDefinedClass();
+            if (dClass != null && dClass.getAnnotation(Entity.class) != null) {
+                LOGGER.warn("Loading " + wovenClass.getClassName() + " before transformer is present");
             }
+            return;
         }
-        Class<?> dClass = wovenClass.getDefinedClass();
-        if (transformersToTry.isEmpty() && dClass != null && dClass.getAnnotation(Entity.class) != null) {
-            LOGGER.warn("Loading " + wovenClass.getClassName() + " before transformer is present");
+        String className = wovenClass.getClassName();
+        ClassLoader cl = null;
+        for (Registration registration : transformersToTry) {
+            if (!registration.isCandidate(className)) {
+                continue;
+            }
+            if (cl == null) {
+                cl = wiring.getClassLoader();
+            }
+            if (transformClass(wovenClass, cl, registration)) {
+                LOGGER.info("Weaving " + className + " using " + registration.transformer.getClass().getName());
+                break;
+            }
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private synchronized Collection<ClassTransformer> getTransformers(Bundle bundle) {
-        LinkedHashSet<ClassTransformer> transformers = registeredTransformers.get(bundle);
-        return (Collection<ClassTransformer>)(transformers != null ? new ArrayList<ClassTransformer>(transformers) : Collections.emptyList());
+    private boolean transformClass(WovenClass wovenClass, ClassLoader cl, Registration registration)
+        throws ThreadDeath, OutOfMemoryError {
+        WovenClassCache currentCache = cache;
+        if (currentCache == null) {
+            return transformClass(wovenClass, cl, registration, null);
+        }
+        Bundle bundle = wovenClass.getBundleWiring().getBundle();
+        byte[] original = wovenClass.getBytes();
+        byte[] cached = currentCache.load(bundle, wovenClass.getClassName(), original, registration.transformer,
+                                          registration.weavingConfig);
+        if (cached == WovenClassCache.NOT_WOVEN) {
+            return false;
+        }
+        if (cached != null) {
+            setWovenBytes(wovenClass, cached);
+            return true;
+        }
+        return transformClass(wovenClass, cl, registration, currentCache);
     }
 
-    private static boolean transformClass(WovenClass wovenClass, ClassLoader cl, ClassTransformer transformer)
+    private static boolean transformClass(WovenClass wovenClass, ClassLoader cl, Registration registration,
+                                          WovenClassCache cache)
         throws ThreadDeath, OutOfMemoryError {
+        ClassTransformer transformer = registration.transformer;
         try {
+            byte[] original = wovenClass.getBytes();
             byte[] result = transformer
                 .transform(cl, 
                            wovenClass.getClassName(),
                            wovenClass.getDefinedClass(), 
                            wovenClass.getProtectionDomain(),
-                           wovenClass.getBytes());
+                           original);
+            if (cache != null) {
+                cache.store(wovenClass.getBundleWiring().getBundle(), wovenClass.getClassName(), original, transformer,
+                            registration.weavingConfig, result);
+            }
             if (result != null) {
-                wovenClass.setBytes(result);
-                wovenClass.getDynamicImports().add("org.eclipse.persistence.*");
-                wovenClass.getDynamicImports().add("org.apache.openjpa.*");
+                setWovenBytes(wovenClass, result);
                 return true;
             }
         } catch (Exception t) {
@@ -103,25 +141,128 @@ public class JPAWeavingHook implements WeavingHook, TransformerRegistry {
         return false;
     }
 
+    private static void setWovenBytes(WovenClass wovenClass, byte[] bytes) {
+        wovenClass.setBytes(bytes);
+        wovenClass.getDynamicImports().add("org.eclipse.persistence.*");
+        wovenClass.getDynamicImports().add("org.apache.openjpa.*");
+    }
+
+    @Override
+    public void addTransformer(Bundle pBundle, ClassTransformer transformer) {
+        addTransformer(pBundle, transformer, null);
+    }
+
+    @Override
+    public void addTransformer(Bundle pBundle, ClassTransformer transformer, Set<String> classNames) {
+        addTransformer(pBundle, transformer, classNames, null);
+    }
+
     @Override
-    public synchronized void addTransformer(Bundle pBundle, ClassTransformer transformer) {
+    public synchronized void addTransformer(Bundle pBundle, ClassTransformer transformer, Set<String> classNames,
+                                            String weavingConfig) {
         LOGGER.info("Adding transformer " + transformer.getClass().getName());
-        LinkedHashSet<ClassTransformer> transformers = registeredTransformers.get(pBundle);
-        if (transformers == null) {
-            transformers = new LinkedHashSet<ClassTransformer>();
-            registeredTransformers.put(pBundle, transformers);
+        Registration[] transformers = registeredTransformers.get(pBundle.getBundleId());
+        if (indexOf(transformers, transformer) >= 0) {
+            return;
         }
-        transformers.add(transformer);
+        Registration[] newTransformers = Arrays.copyOf(transformers, transformers.length + 1);
+        newTransformers[transformers.length] = new Registration(transformer, classNames, weavingConfig);
+        registeredTransformers = registeredTransformers.with(pBundle.getBundleId(), newTransformers);
     }
 
     @Override
     public synchronized void removeTransformer(Bundle pBundle, ClassTransformer transformer) {
-        LinkedHashSet<ClassTransformer> set = registeredTransformers.get(pBundle);
-        if (set == null || !set.remove(transformer)) {
+        Registration[] transformers = registeredTransformers.get(pBundle.getBundleId());
+        int index = indexOf(transformers, transformer);
+        if (index < 0) {
             throw new IllegalStateException("Transformer " + transformer + " not registered");
         }
-        if (set.isEmpty()) {
-            registeredTransformers.remove(pBundle);
+        Registration[] newTransformers = new Registration[transformers.length - 1];
+        System.arraycopy(transformers, 0, newTransformers, 0, index);
+        System.arraycopy(transformers, index + 1, newTransformers, index, newTransformers.length - index);
+        registeredTransformers = registeredTransformers.with(pBundle.getBundleId(), newTransformers);
+    }
+
+    private static int indexOf(Registration[] transformers, ClassTransformer transformer) {
+        for (int c = 0; c < transformers.length; c++) {
+            if (transformers[c].transformer.equals(transformer)) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A transformer together with the classes it is offered and the weaving properties it was created with.
+     * A null set of class names means the transformer sees every class of the bundle.
+     */
+    static final class Registration {
+        final ClassTransformer transformer;
+        final String weavingConfig;
+        private final Set<String> classNames;
+
+        Registration(ClassTransformer transformer, Set<String> classNames, String weavingConfig) {
+            this.transformer = transformer;
+            this.classNames = classNames;
+            this.weavingConfig = weavingConfig;
+        }
+
+        boolean isCandidate(String className) {
+            return classNames == null || classNames.contains(className);
+        }
+    }
+
+    /**
+     * Immutable mapping from bundle id to the transformers of that bundle in registration order. The ids
+     * are kept sorted so a lookup is a binary search that neither boxes the id nor allocates.
+     */
+    static final class Snapshot {
+        private final long[] bundleIds;
+        private final Registration[][] transformers;
+
+        Snapshot(long[] bundleIds, Registration[][] transformers) {
+            this.bundleIds = bundleIds;
+            this.transformers = transformers;
+        }
+
+        Registration[] get(long bundleId) {
+            int index = Arrays.binarySearch(bundleIds, bundleId);
+            return index >= 0 ? transformers[index] : NO_TRANSFORMERS;
+        }
+
+        /**
+         * @return a copy of this snapshot with the transformers of the bundle replaced. An empty array
+         * removes the bundle.
+         */
+        Snapshot with(long bundleId, Registration[] newTransformers) {
+            int index = Arrays.binarySearch(bundleIds, bundleId);
+            if (index >= 0) {
+                if (newTransformers.length > 0) {
+                    Registration[][] copy = transformers.clone();
+                    copy[index] = newTransformers;
+                    return new Snapshot(bundleIds, copy);
+                }
+                long[] ids = new long[bundleIds.length - 1];
+                Registration[][] copy = new Registration[ids.length][];
+                System.arraycopy(bundleIds, 0, ids, 0, index);
+                System.arraycopy(bundleIds, index + 1, ids, index, ids.length - index);
+                System.arraycopy(transformers, 0, copy, 0, index);
+                System.arraycopy(transformers, index + 1, copy, index, ids.length - index);
+                return new Snapshot(ids, copy);
+            }
+            if (newTransformers.length == 0) {
+                return this;
+            }
+            int insert = -index - 1;
+            long[] ids = new long[bundleIds.length + 1];
+            Registration[][] copy = new Registration[ids.length][];
+            System.arraycopy(bundleIds, 0, ids, 0, insert);
+            System.arraycopy(transformers, 0, copy, 0, insert);
+            ids[insert] = bundleId;
+            copy[insert] = newTransformers;
+            System.arraycopy(bundleIds, insert, ids, insert + 1, bundleIds.length - insert);
+            System.arraycopy(transformers, insert, copy, insert + 1, bundleIds.length - insert);
+            return new Snapshot(ids, copy);
         }
     }
 
@@ -18,6 +18,8 @@
  */
 package org.apache.aries.jpa.container.weaving.impl;
 
+import java.util.Set;
+
 import javax.persistence.spi.ClassTransformer;
 
 import org.osgi.framework.Bundle;
@@ -31,6 +33,26 @@ public interface TransformerRegistry {
    * @param transformer The transformer to weave with
    */
   public void addTransformer(Bundle pBundle, ClassTransformer transformer);
+
+  /**
+   * Register a new transformer that is only offered the given classes of the bundle
+   * 
+   * @param pBundle The persistence bundle to weave
+   * @param transformer The transformer to weave with
+   * @param classNames The binary names of the classes to hand to the transformer or null for all classes
+   */
+  public void addTransformer(Bundle pBundle, ClassTransformer transformer, Set<String> classNames);
+
+  /**
+   * Register a new transformer that is only offered the given classes of the bundle
+   * 
+   * @param pBundle The persistence bundle to weave
+   * @param transformer The transformer to weave with
+   * @param classNames The binary names of the classes to hand to the transformer or null for all classes
+   * @param weavingConfig The weaving properties the transformer was created with. Cached woven classes
+   *        are only reused for the same configuration
+   */
+  public void addTransformer(Bundle pBundle, ClassTransformer transformer, Set<String> classNames, String weavingConfig);
   
   
   /**
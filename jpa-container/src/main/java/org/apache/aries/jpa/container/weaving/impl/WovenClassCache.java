@@ -0,0 +1,300 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.weaving.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.persistence.spi.ClassTransformer;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the result of weaving a class on disk so warm restarts can skip the transformer.
+ * <p>
+ * There is one file per persistence bundle, class and transformer so the cache does not grow
+ * with each change of a class. The file holds the full key: class name, digest of the original
+ * bytes, transformer class, symbolic name, version and last modified time of the bundle providing
+ * the transformer, the last modified time of the persistence bundle and the weaving properties
+ * the transformer was created with. The transformer only depends on the persistence bundle content
+ * and these properties, so any change of them or of the provider invalidates the entry. Classes
+ * the transformer left unchanged are cached as well.
+ * <p>
+ * The files of a persistence bundle are kept in a directory named after its symbolic name and
+ * version so {@link #prune} can drop the entries of bundles that are no longer installed.
+ */
+public class WovenClassCache {
+    /**
+     * Returned by {@link #load} if the transformer did not change the class
+     */
+    static final byte[] NOT_WOVEN = new byte[0];
+
+    private static final Logger LOG = LoggerFactory.getLogger(WovenClassCache.class);
+    private static final int FORMAT = 2;
+
+    /**
+     * Properties that change how the providers weave. Keys starting with one of these are part of the
+     * cache key. Framework properties can not be enumerated so the known keys are listed in full.
+     */
+    private static final String[] WEAVING_PROPERTY_PREFIXES = {
+        "eclipselink.weaving",
+        "openjpa.DynamicEnhancementAgent",
+        "openjpa.RuntimeUnenhancedClasses",
+        "hibernate.ejb.use_class_enhancer",
+        "hibernate.enhancer."
+    };
+    private static final String[] WEAVING_PROPERTIES = {
+        "eclipselink.weaving",
+        "eclipselink.weaving.changetracking",
+        "eclipselink.weaving.eager",
+        "eclipselink.weaving.fetchgroups",
+        "eclipselink.weaving.internal",
+        "eclipselink.weaving.lazy",
+        "eclipselink.weaving.mappedsuperclass",
+        "eclipselink.weaving.rest",
+        "openjpa.DynamicEnhancementAgent",
+        "openjpa.RuntimeUnenhancedClasses",
+        "hibernate.ejb.use_class_enhancer",
+        "hibernate.enhancer.enableAssociationManagement",
+        "hibernate.enhancer.enableDirtyTracking",
+        "hibernate.enhancer.enableLazyInitialization"
+    };
+
+    private final File dir;
+
+    public WovenClassCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return the woven bytes, {@link #NOT_WOVEN} or null if there is no valid cache entry
+     */
+    byte[] load(Bundle bundle, String className, byte[] original, ClassTransformer transformer, String weavingConfig) {
+        File file = getFile(bundle, className, transformer);
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT
+                || !in.readUTF().equals(getKey(bundle, className, original, transformer, weavingConfig))) {
+                return null;
+            }
+            if (!in.readBoolean()) {
+                return NOT_WOVEN;
+            }
+            byte[] woven = new byte[in.readInt()];
+            in.readFully(woven);
+            return woven;
+        } catch (Exception e) {
+            LOG.debug("Ignoring unreadable woven class cache entry " + file, e);
+            return null;
+        } finally {
+            safeClose(in);
+        }
+    }
+
+    /**
+     * @param weavingConfig the weaving properties the transformer was created with
+     * @param woven the transformed bytes or null if the transformer did not change the class
+     */
+    void store(Bundle bundle, String className, byte[] original, ClassTransformer transformer, String weavingConfig,
+               byte[] woven) {
+        File file = getFile(bundle, className, transformer);
+        File bundleDir = file.getParentFile();
+        File tmp = null;
+        DataOutputStream out = null;
+        try {
+            if (!bundleDir.isDirectory() && !bundleDir.mkdirs()) {
+                return;
+            }
+            // Classes are woven in parallel so each writer needs its own temporary file
+            tmp = File.createTempFile(file.getName(), ".tmp", bundleDir);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FORMAT);
+            out.writeUTF(getKey(bundle, className, original, transformer, weavingConfig));
+            out.writeBoolean(woven != null);
+            if (woven != null) {
+                out.writeInt(woven.length);
+                out.write(woven);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                throw new IOException("Unable to rename " + tmp + " to " + file);
+            }
+        } catch (Exception e) {
+            LOG.debug("Unable to cache woven class " + className, e);
+            safeClose(out);
+            if (tmp != null) {
+                tmp.delete(); // NOSONAR
+            }
+        }
+    }
+
+    /**
+     * Deletes the entries of all bundles that are not installed in the given symbolic name and version.
+     * This also removes the entries of older versions of updated bundles.
+     */
+    public void prune(Bundle[] installed) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        Set<String> keep = new HashSet<String>();
+        for (Bundle bundle : installed) {
+            if (bundle.getState() != Bundle.UNINSTALLED) {
+                keep.add(getBundleDirName(bundle));
+            }
+        }
+        for (File child : children) {
+            if (!keep.contains(child.getName())) {
+                LOG.debug("Removing woven classes of {} from the cache", child.getName());
+                delete(child);
+            }
+        }
+    }
+
+    /**
+     * @param context used to read framework properties, may be null
+     * @param unitProps properties of the persistence unit
+     * @param overrides properties passed to the provider, may be null
+     * @return the weaving related properties in a stable form. Overrides win over the unit properties which
+     *         win over the framework and system properties
+     */
+    public static String getWeavingConfig(BundleContext context, Properties unitProps, Map<String, ?> overrides) {
+        Map<String, Object> config = new TreeMap<String, Object>();
+        for (String key : WEAVING_PROPERTIES) {
+            String value = context != null ? context.getProperty(key) : System.getProperty(key);
+            if (value != null) {
+                config.put(key, value);
+            }
+        }
+        addWeavingProperties(config, System.getProperties());
+        addWeavingProperties(config, unitProps);
+        if (overrides != null) {
+            addWeavingProperties(config, overrides);
+        }
+        return config.toString();
+    }
+
+    private static void addWeavingProperties(Map<String, Object> config, Map<?, ?> props) {
+        for (Map.Entry<?, ?> entry : props.entrySet()) {
+            if (entry.getKey() instanceof String && isWeavingProperty((String)entry.getKey())) {
+                config.put((String)entry.getKey(), String.valueOf(entry.getValue()));
+            }
+        }
+    }
+
+    private static boolean isWeavingProperty(String key) {
+        for (String prefix : WEAVING_PROPERTY_PREFIXES) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private File getFile(Bundle bundle, String className, ClassTransformer transformer) {
+        String name = className + "_" + transformer.getClass().getName();
+        return new File(new File(dir, getBundleDirName(bundle)), digest(toBytes(name)) + ".class");
+    }
+
+    private static String getBundleDirName(Bundle bundle) {
+        return bundle.getSymbolicName() + "_" + bundle.getVersion();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            LOG.debug("Unable to delete {}", file);
+        }
+    }
+
+    private static String getKey(Bundle bundle, String className, byte[] original, ClassTransformer transformer,
+                                 String weavingConfig) {
+        Class<?> transformerClass = transformer.getClass();
+        Bundle provider = FrameworkUtil.getBundle(transformerClass);
+        StringBuilder key = new StringBuilder();
+        key.append(className).append('|').append(digest(original)).append('|').append(transformerClass.getName());
+        if (provider != null) {
+            key.append('|').append(provider.getSymbolicName()).append('|').append(provider.getVersion())
+                .append('|').append(provider.getLastModified());
+        }
+        key.append('|').append(bundle.getLastModified()).append('|').append(weavingConfig);
+        return key.toString();
+    }
+
+    private static String digest(byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest(data)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] toBytes(String st) {
+        try {
+            return st.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void safeClose(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                LOG.debug("Exception while closing", e);
+            }
+        }
+    }
+}
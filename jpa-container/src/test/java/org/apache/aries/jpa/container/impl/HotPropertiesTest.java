@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.apache.aries.jpa.container.pool.impl.PoolConfig;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HotPropertiesTest {
+	private static final String QUERY_TIMEOUT = "javax.persistence.query.timeout";
+
+	@Mock
+	EntityManagerFactory delegate;
+
+	@Test
+	public void testOnlyHotChanged() {
+		Map<String, Object> active = new HashMap<String, Object>();
+		active.put("hibernate.hbm2ddl.auto", "none");
+		active.put(QUERY_TIMEOUT, 1000);
+
+		Map<String, Object> updated = new HashMap<String, Object>(active);
+		updated.put(QUERY_TIMEOUT, 2000);
+		updated.put("javax.persistence.lock.timeout", 500);
+		assertTrue(HotProperties.onlyHotChanged(active, updated));
+
+		updated.put("hibernate.hbm2ddl.auto", "create");
+		assertFalse(HotProperties.onlyHotChanged(active, updated));
+
+		Map<String, Object> removed = new HashMap<String, Object>(active);
+		removed.remove(QUERY_TIMEOUT);
+		assertFalse(HotProperties.onlyHotChanged(active, removed));
+	}
+
+	@Test
+	public void testLivePoolSettingsNeedNoNewEMF() {
+		Map<String, Object> active = new HashMap<String, Object>();
+		active.put("hibernate.hbm2ddl.auto", "none");
+		active.put(PoolConfig.ENABLED, "true");
+		active.put(PoolConfig.MAX_SIZE, "5");
+
+		Map<String, Object> updated = new HashMap<String, Object>(active);
+		updated.put(PoolConfig.MAX_SIZE, "10");
+		updated.put(PoolConfig.IDLE_TIMEOUT, "60000");
+		assertTrue(HotProperties.onlyHotChanged(active, updated));
+		assertTrue(HotProperties.select(updated).isEmpty());
+
+		Map<String, Object> removed = new HashMap<String, Object>(active);
+		removed.remove(PoolConfig.MAX_SIZE);
+		assertTrue(HotProperties.onlyHotChanged(active, removed));
+
+		Map<String, Object> statements = new HashMap<String, Object>(active);
+		statements.put(PoolConfig.MAX_STATEMENTS, "20");
+		assertFalse(HotProperties.onlyHotChanged(active, statements));
+
+		Map<String, Object> disabled = new HashMap<String, Object>(active);
+		disabled.put(PoolConfig.ENABLED, "false");
+		assertFalse(HotProperties.onlyHotChanged(active, disabled));
+	}
+
+	@Test
+	public void testConfiguredHotProperty() {
+		Map<String, Object> active = new HashMap<String, Object>();
+		active.put(HotProperties.HOT_PROPERTIES, "eclipselink.tenant-id, other");
+		active.put("eclipselink.tenant-id", "a");
+
+		Map<String, Object> updated = new HashMap<String, Object>(active);
+		updated.put("eclipselink.tenant-id", "b");
+		assertTrue(HotProperties.onlyHotChanged(active, updated));
+		assertEquals(Collections.<String, Object>singletonMap("eclipselink.tenant-id", "b"),
+				HotProperties.select(updated));
+	}
+
+	@Test
+	public void testDefaultsPassedToCreateEntityManager() {
+		DefaultPropertiesEntityManagerFactory handler = new DefaultPropertiesEntityManagerFactory(delegate);
+		EntityManagerFactory emf = handler.getProxy();
+
+		emf.createEntityManager();
+		verify(delegate).createEntityManager();
+
+		handler.setDefaults(Collections.<String, Object>singletonMap(QUERY_TIMEOUT, 2000));
+		emf.createEntityManager();
+		verify(delegate).createEntityManager(Collections.<String, Object>singletonMap(QUERY_TIMEOUT, 2000));
+
+		Map<String, Object> callerProps = new HashMap<String, Object>();
+		callerProps.put(QUERY_TIMEOUT, 10);
+		callerProps.put("key", "value");
+		emf.createEntityManager(callerProps);
+		verify(delegate).createEntityManager(callerProps);
+	}
+}
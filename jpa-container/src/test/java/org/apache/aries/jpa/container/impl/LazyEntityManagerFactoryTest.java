@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LazyEntityManagerFactoryTest {
+
+	@Mock
+	EntityManagerFactory delegate;
+
+	@Test
+	public void testCreatedOnceOnConcurrentFirstUse() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final EntityManagerFactory emf = LazyEntityManagerFactory.create("test", new Callable<EntityManagerFactory>() {
+			@Override
+			public EntityManagerFactory call() throws Exception {
+				created.incrementAndGet();
+				Thread.sleep(50);
+				return delegate;
+			}
+		});
+		assertTrue(emf.isOpen());
+		assertEquals(0, created.get());
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int c = 0; c < 8; c++) {
+			futures.add(executor.submit(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					start.await();
+					return emf.createEntityManager();
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		assertEquals(1, created.get());
+		verify(delegate, Mockito.times(8)).createEntityManager();
+	}
+
+	@Test
+	public void testCloseBeforeUse() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		EntityManagerFactory emf = LazyEntityManagerFactory.create("test", new Callable<EntityManagerFactory>() {
+			@Override
+			public EntityManagerFactory call() throws Exception {
+				created.incrementAndGet();
+				return delegate;
+			}
+		});
+		emf.close();
+		assertFalse(emf.isOpen());
+		try {
+			emf.createEntityManager();
+			fail("Closed EntityManagerFactory must not be created");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		assertEquals(0, created.get());
+	}
+}
@@ -18,11 +18,15 @@
  */
 package org.apache.aries.jpa.container.impl;
 
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import java.util.Collections;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Map;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -64,4 +68,29 @@ public class ManagedEMFTest {
         verify(builder).createEntityManagerFactory(Collections.<String, Object>singletonMap(
         		"hibernate.hbm2ddl.auto", "create-drop"));
     }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testRapidUpdatesCoalesced() throws Exception {
+    	ManagedEMF emf = new ManagedEMF(builder, "test");
+    	try {
+    		for (int c = 0; c < 5; c++) {
+    			Dictionary<String, Object> props = new Hashtable<String, Object>();
+    			props.put(ManagedEMF.QUIET_PERIOD, "100");
+    			props.put(ManagedEMF.MAX_DELAY, "1000");
+    			props.put("count", c);
+    			emf.updated(props);
+    		}
+    		Mockito.verifyZeroInteractions(builder);
+    		Thread.sleep(500);
+
+    		// The update settings are not passed on to the provider
+    		Map<String, Object> expected = new HashMap<String, Object>();
+    		expected.put("count", 4);
+    		verify(builder).createEntityManagerFactory(expected);
+    		verify(builder, times(1)).createEntityManagerFactory(anyMap());
+    	} finally {
+    		emf.close();
+    	}
+    }
 }
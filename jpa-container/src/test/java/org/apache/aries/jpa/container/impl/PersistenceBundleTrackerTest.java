@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.impl;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.persistence.spi.PersistenceUnitTransactionType;
+
+import org.apache.aries.jpa.container.parser.impl.PersistenceUnit;
+import org.apache.aries.jpa.container.parser.impl.PersistenceUnitCache;
+import org.apache.aries.jpa.container.parser.impl.PersistenceUnitParser;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.wiring.BundleWiring;
+
+public class PersistenceBundleTrackerTest {
+    private ExecutorService executor;
+    private List<Runnable> tasks;
+    private PersistenceUnitCache cache;
+    private PersistenceBundleTracker tracker;
+
+    @Before
+    public void setup() {
+        tasks = new ArrayList<Runnable>();
+        executor = mock(ExecutorService.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                tasks.add((Runnable)invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(executor).execute(any(Runnable.class));
+        cache = mock(PersistenceUnitCache.class);
+        tracker = new PersistenceBundleTracker(mock(BundleWiring.class), executor, cache);
+    }
+
+    @Test
+    public void testActiveBundlesRegisteredInOrder() throws Exception {
+        Bundle first = mockBundle("first", Bundle.ACTIVE);
+        Bundle second = mockBundle("second", Bundle.ACTIVE);
+        tracker.addingBundle(first, null);
+        tracker.addingBundle(second, null);
+
+        tasks.get(1).run();
+        verify(second.getBundleContext(), never()).addServiceListener(any(ServiceListener.class), anyString());
+
+        tasks.get(0).run();
+        InOrder inOrder = inOrder(first.getBundleContext(), second.getBundleContext());
+        inOrder.verify(first.getBundleContext()).addServiceListener(any(ServiceListener.class), anyString());
+        inOrder.verify(second.getBundleContext()).addServiceListener(any(ServiceListener.class), anyString());
+    }
+
+    @Test
+    public void testStartingBundleRegisteredBeforeAddingReturns() throws Exception {
+        Bundle bundle = mockBundle("starting", Bundle.STARTING);
+        tracker.addingBundle(bundle, new BundleEvent(BundleEvent.STARTING, bundle));
+
+        verify(executor, never()).execute(any(Runnable.class));
+        verify(bundle.getBundleContext()).addServiceListener(any(ServiceListener.class), anyString());
+    }
+
+    @Test
+    public void testStartingBundleInInitialScanRegisteredBeforeAddingReturns() throws Exception {
+        Bundle bundle = mockBundle("starting", Bundle.STARTING);
+        tracker.addingBundle(bundle, null);
+
+        verify(executor, never()).execute(any(Runnable.class));
+        verify(bundle.getBundleContext()).addServiceListener(any(ServiceListener.class), anyString());
+    }
+
+    @Test
+    public void testRemovedPendingBundleIsCancelled() throws Exception {
+        Bundle first = mockBundle("first", Bundle.ACTIVE);
+        Bundle second = mockBundle("second", Bundle.ACTIVE);
+        tracker.addingBundle(first, null);
+        tracker.addingBundle(second, null);
+
+        tracker.removedBundle(first, null, first);
+        tasks.get(1).run();
+        verify(second.getBundleContext()).addServiceListener(any(ServiceListener.class), anyString());
+
+        tasks.get(0).run();
+        verify(cache, never()).load(first);
+        verify(first.getBundleContext(), never()).addServiceListener(any(ServiceListener.class), anyString());
+    }
+
+    @Test
+    public void testRejectedParsingRunsDirectly() throws Exception {
+        doThrow(new RejectedExecutionException()).when(executor).execute(any(Runnable.class));
+        Bundle bundle = mockBundle("rejected", Bundle.ACTIVE);
+        tracker.addingBundle(bundle, null);
+
+        verify(bundle.getBundleContext()).addServiceListener(any(ServiceListener.class), anyString());
+    }
+
+    private Bundle mockBundle(String name, int state) throws Exception {
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.getSymbolicName()).thenReturn(name);
+        when(bundle.getState()).thenReturn(state);
+        Hashtable<String, String> headers = new Hashtable<String, String>();
+        headers.put(PersistenceUnitParser.PERSISTENCE_UNIT_HEADER, "META-INF/persistence.xml");
+        when(bundle.getHeaders()).thenReturn(headers);
+        BundleWiring wiring = mock(BundleWiring.class);
+        when(bundle.adapt(BundleWiring.class)).thenReturn(wiring);
+        BundleContext context = mock(BundleContext.class);
+        when(context.createFilter(anyString())).thenReturn(mock(Filter.class));
+        when(bundle.getBundleContext()).thenReturn(context);
+        PersistenceUnit punit = new PersistenceUnit(bundle, name + "-unit", PersistenceUnitTransactionType.RESOURCE_LOCAL);
+        when(cache.load(bundle)).thenReturn(Collections.singletonList(punit));
+        return bundle;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.impl;
+
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.spi.PersistenceProvider;
+import javax.persistence.spi.PersistenceUnitInfo;
+import javax.persistence.spi.PersistenceUnitTransactionType;
+
+import org.apache.aries.jpa.container.parser.impl.PersistenceUnit;
+import org.apache.aries.jpa.container.parser.impl.StaticWeaving;
+import org.apache.aries.jpa.container.weaving.ClassTransformerProvider;
+import org.apache.aries.jpa.container.weaving.impl.DummyDataSource;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.wiring.BundleWiring;
+
+public class PersistenceProviderTrackerTest {
+    private static final String ECLIPSELINK = "org.eclipse.persistence.jpa.PersistenceProvider";
+    private static final String HIBERNATE = "org.hibernate.jpa.HibernatePersistenceProvider";
+    private static final String PROVIDER_FILTER = "(javax.persistence.provider=%s)";
+
+    private BundleContext context;
+    private PersistenceProvider provider;
+    private PersistenceUnit punit;
+
+    @Before
+    public void setup() throws Exception {
+        context = mock(BundleContext.class);
+        when(context.createFilter(any(String.class))).thenReturn(mock(Filter.class));
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.getHeaders()).thenReturn(new Hashtable<String, String>());
+        when(bundle.adapt(BundleWiring.class)).thenReturn(mock(BundleWiring.class));
+        punit = new PersistenceUnit(bundle, "test", PersistenceUnitTransactionType.RESOURCE_LOCAL);
+        provider = mock(PersistenceProvider.class);
+        when(provider.createContainerEntityManagerFactory(any(PersistenceUnitInfo.class), anyMap()))
+            .thenReturn(mock(EntityManagerFactory.class));
+    }
+
+    @Test
+    public void testTransformerProviderServiceSkipsDummyEMF() throws Exception {
+        punit.setProviderClassName(ECLIPSELINK);
+        ClassTransformerProvider transformerProvider = registerTransformerProvider(ECLIPSELINK, true);
+
+        createTracker().addTransformers(provider);
+
+        verify(transformerProvider).addTransformers(eq(punit), anyMap());
+        verifyNoDummyEMF();
+        assertNull(punit.getJtaDataSource());
+        assertNull(punit.getNonJtaDataSource());
+    }
+
+    @Test
+    public void testTransformerProviderSeesDummyDataSource() throws Exception {
+        punit.setProviderClassName(ECLIPSELINK);
+        ClassTransformerProvider transformerProvider = registerTransformerProvider(ECLIPSELINK, true);
+        when(transformerProvider.addTransformers(eq(punit), anyMap())).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                PersistenceUnitInfo info = (PersistenceUnitInfo)invocation.getArguments()[0];
+                return info.getJtaDataSource() instanceof DummyDataSource
+                    && info.getNonJtaDataSource() instanceof DummyDataSource;
+            }
+        });
+
+        createTracker().addTransformers(provider);
+
+        verifyNoDummyEMF();
+    }
+
+    @Test
+    public void testHighestRankedTransformerProviderIsUsed() throws Exception {
+        punit.setProviderClassName(ECLIPSELINK);
+        ServiceReference<ClassTransformerProvider> low = mockRef();
+        ServiceReference<ClassTransformerProvider> high = mockRef();
+        when(high.compareTo(low)).thenReturn(1);
+        when(low.compareTo(high)).thenReturn(-1);
+        when(context.getServiceReferences(ClassTransformerProvider.class, String.format(PROVIDER_FILTER, ECLIPSELINK)))
+            .thenReturn(Arrays.asList(low, high));
+        ClassTransformerProvider lowProvider = mock(ClassTransformerProvider.class);
+        ClassTransformerProvider highProvider = mock(ClassTransformerProvider.class);
+        when(context.getService(low)).thenReturn(lowProvider);
+        when(context.getService(high)).thenReturn(highProvider);
+        when(highProvider.addTransformers(eq(punit), anyMap())).thenReturn(true);
+
+        createTracker().addTransformers(provider);
+
+        verify(lowProvider, never()).addTransformers(any(PersistenceUnitInfo.class), anyMap());
+        verify(context).ungetService(high);
+        verifyNoDummyEMF();
+    }
+
+    @Test
+    public void testFallbackToDummyEMFIfTransformerProviderDeclines() throws Exception {
+        punit.setProviderClassName(ECLIPSELINK);
+        ServiceReference<ClassTransformerProvider> ref = mockRef();
+        registerTransformerProvider(ECLIPSELINK, false, ref);
+
+        createTracker().addTransformers(provider);
+
+        verify(context).ungetService(ref);
+        verifyDummyEMF();
+    }
+
+    @Test
+    public void testFallbackToDummyEMFIfTransformerProviderFails() throws Exception {
+        punit.setProviderClassName(ECLIPSELINK);
+        ClassTransformerProvider transformerProvider = registerTransformerProvider(ECLIPSELINK, true);
+        when(transformerProvider.addTransformers(eq(punit), anyMap())).thenThrow(new IllegalStateException("predeploy"));
+
+        createTracker().addTransformers(provider);
+
+        verifyDummyEMF();
+    }
+
+    @Test
+    public void testFallbackToDummyEMFWithoutTransformerProvider() throws Exception {
+        punit.setProviderClassName("org.apache.openjpa.persistence.PersistenceProviderImpl");
+
+        createTracker().addTransformers(provider);
+
+        verifyDummyEMF();
+    }
+
+    @Test
+    public void testForcedDummyEMF() throws Exception {
+        punit.setProviderClassName(ECLIPSELINK);
+        punit.addProperty(PersistenceProviderTracker.FORCE_DUMMY_EMF, "true");
+        ClassTransformerProvider transformerProvider = registerTransformerProvider(ECLIPSELINK, true);
+
+        createTracker().addTransformers(provider);
+
+        verify(transformerProvider, never()).addTransformers(any(PersistenceUnitInfo.class), anyMap());
+        verifyDummyEMF();
+    }
+
+    @Test
+    public void testForcedDummyEMFByFrameworkProperty() throws Exception {
+        punit.setProviderClassName(ECLIPSELINK);
+        when(context.getProperty(PersistenceProviderTracker.FORCE_DUMMY_EMF)).thenReturn("true");
+        registerTransformerProvider(ECLIPSELINK, true);
+
+        createTracker().addTransformers(provider);
+
+        verifyDummyEMF();
+    }
+
+    @Test
+    public void testBuiltInHibernateSupport() throws Exception {
+        punit.setProviderClassName(HIBERNATE);
+
+        createTracker().addTransformers(provider);
+
+        verifyNoDummyEMF();
+    }
+
+    @Test
+    public void testHibernateEnhancerNeedsDummyEMF() throws Exception {
+        punit.setProviderClassName(HIBERNATE);
+        punit.addProperty("hibernate.enhancer.enableLazyInitialization", "true");
+
+        createTracker().addTransformers(provider);
+
+        verifyDummyEMF();
+    }
+
+    @Test
+    public void testTransformerProviderServiceOverridesBuiltInSupport() throws Exception {
+        punit.setProviderClassName(HIBERNATE);
+        punit.addProperty("hibernate.enhancer.enableLazyInitialization", "true");
+        registerTransformerProvider(HIBERNATE, true);
+
+        createTracker().addTransformers(provider);
+
+        verifyNoDummyEMF();
+    }
+
+    @Test
+    public void testStaticWeavingUsesTrackedProvider() throws Exception {
+        // The unit does not name a provider. The header names the provider that was found
+        Bundle bundle = punit.getBundle();
+        Hashtable<String, String> headers = new Hashtable<String, String>();
+        headers.put(StaticWeaving.HEADER, provider.getClass().getName());
+        when(bundle.getHeaders()).thenReturn(headers);
+
+        createTracker().addTransformers(provider);
+
+        verifyNoDummyEMF();
+    }
+
+    private PersistenceProviderTracker createTracker() {
+        return new PersistenceProviderTracker(context, punit);
+    }
+
+    private ClassTransformerProvider registerTransformerProvider(String providerName, boolean handles) throws Exception {
+        return registerTransformerProvider(providerName, handles, mockRef());
+    }
+
+    private ClassTransformerProvider registerTransformerProvider(String providerName, boolean handles,
+                                                                 ServiceReference<ClassTransformerProvider> ref) throws Exception {
+        ClassTransformerProvider transformerProvider = mock(ClassTransformerProvider.class);
+        when(transformerProvider.addTransformers(eq(punit), anyMap())).thenReturn(handles);
+        when(context.getServiceReferences(ClassTransformerProvider.class, String.format(PROVIDER_FILTER, providerName)))
+            .thenReturn(Collections.singletonList(ref));
+        when(context.getService(ref)).thenReturn(transformerProvider);
+        return transformerProvider;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ServiceReference<ClassTransformerProvider> mockRef() {
+        return mock(ServiceReference.class);
+    }
+
+    private void verifyDummyEMF() {
+        verify(provider).createContainerEntityManagerFactory(eq(punit), anyMap());
+    }
+
+    private void verifyNoDummyEMF() {
+        verify(provider, never()).createContainerEntityManagerFactory(any(PersistenceUnitInfo.class), anyMap());
+    }
+}
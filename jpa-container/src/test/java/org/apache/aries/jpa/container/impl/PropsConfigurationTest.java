@@ -22,6 +22,7 @@ import static java.util.Collections.singletonMap;
 import static javax.persistence.spi.PersistenceUnitTransactionType.JTA;
 import static javax.persistence.spi.PersistenceUnitTransactionType.RESOURCE_LOCAL;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 import static org.mockito.AdditionalMatchers.and;
@@ -30,6 +31,7 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyMap;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -490,4 +492,105 @@ public class PropsConfigurationTest {
     	
     	emfb.close();
     }
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	@Test
+	public void testMembersUseOwnDataSourceAndSession() throws InvalidSyntaxException, ConfigurationException {
+		
+		when(provider.createContainerEntityManagerFactory(eq(punit), 
+				eq(singletonMap(PersistenceUnitTransactionType.class.getName(), JTA))))
+			.thenReturn(emf);
+		when(punitBundle.getSymbolicName()).thenReturn("test.bundle");
+		DataSource replicaDs = Mockito.mock(DataSource.class);
+		DataSource shardDs = Mockito.mock(DataSource.class);
+		
+		Map<String, Object> props = new Hashtable<String, Object>();
+		props.put("javax.persistence.dataSource", ds);
+		
+		AriesEntityManagerFactoryBuilder emfb = new AriesEntityManagerFactoryBuilder(
+				containerContext, provider, providerBundle, punit);
+		emfb.createEntityManagerFactory(props);
+		
+		Dictionary<String, Object> replicaProps = new Hashtable<String, Object>();
+		replicaProps.put(AriesEntityManagerFactoryBuilder.REPLICA, "true");
+		replicaProps.put(AriesEntityManagerFactoryBuilder.REPLICA + ".dataSource.id", 42L);
+		emfb.publishMember(replicaDs, replicaProps);
+		Dictionary<String, Object> shardProps = new Hashtable<String, Object>();
+		shardProps.put(AriesEntityManagerFactoryBuilder.SHARD, "eu");
+		emfb.publishMember(shardDs, shardProps);
+		
+		ArgumentCaptor<PersistenceUnitInfo> units = ArgumentCaptor.forClass(PersistenceUnitInfo.class);
+		ArgumentCaptor<Map> providerProps = ArgumentCaptor.forClass(Map.class);
+		verify(provider, times(3)).createContainerEntityManagerFactory(units.capture(), providerProps.capture());
+		
+		PersistenceUnitInfo replicaUnit = units.getAllValues().get(1);
+		assertSame(replicaDs, replicaUnit.getJtaDataSource());
+		assertNull(replicaUnit.getNonJtaDataSource());
+		assertEquals("test.bundle_test-props.replica.42", 
+				providerProps.getAllValues().get(1).get("eclipselink.session-name"));
+		
+		PersistenceUnitInfo shardUnit = units.getAllValues().get(2);
+		assertSame(shardDs, shardUnit.getJtaDataSource());
+		assertEquals("test.bundle_test-props.shard.eu", 
+				providerProps.getAllValues().get(2).get("eclipselink.session-name"));
+		
+		verify(punitContext, times(2)).registerService(eq(EntityManagerFactory.class),
+				any(EntityManagerFactory.class), 
+				argThat(servicePropsMatcher(AriesEntityManagerFactoryBuilder.MEMBER_UNIT_NAME, "test-props")));
+		
+		emfb.close();
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	@Test
+	public void testMembersFollowHotPropertiesAndSwaps() throws InvalidSyntaxException, ConfigurationException {
+		
+		EntityManagerFactory replicaEmf = Mockito.mock(EntityManagerFactory.class);
+		EntityManagerFactory swappedEmf = Mockito.mock(EntityManagerFactory.class);
+		EntityManagerFactory swappedReplicaEmf = Mockito.mock(EntityManagerFactory.class);
+		when(provider.createContainerEntityManagerFactory(any(PersistenceUnitInfo.class), anyMap()))
+			.thenReturn(emf, replicaEmf, swappedEmf, swappedReplicaEmf);
+		when(punitBundle.getSymbolicName()).thenReturn("test.bundle");
+		
+		Map<String, Object> props = new Hashtable<String, Object>();
+		props.put("javax.persistence.dataSource", ds);
+		props.put(AriesEntityManagerFactoryBuilder.SWAP, "true");
+		
+		AriesEntityManagerFactoryBuilder emfb = new AriesEntityManagerFactoryBuilder(
+				containerContext, provider, providerBundle, punit);
+		emfb.createEntityManagerFactory(props);
+		
+		Dictionary<String, Object> replicaProps = new Hashtable<String, Object>();
+		replicaProps.put(AriesEntityManagerFactoryBuilder.REPLICA, "true");
+		replicaProps.put(AriesEntityManagerFactoryBuilder.REPLICA + ".dataSource.id", 42L);
+		emfb.publishMember(Mockito.mock(DataSource.class), replicaProps);
+		
+		ArgumentCaptor<EntityManagerFactory> published = ArgumentCaptor.forClass(EntityManagerFactory.class);
+		verify(punitContext, times(2)).registerService(eq(EntityManagerFactory.class),
+				published.capture(), any(Dictionary.class));
+		EntityManagerFactory member = published.getAllValues().get(1);
+		
+		// Hot change
+		props.put("javax.persistence.query.timeout", "500");
+		emfb.createEntityManagerFactory(props);
+		member.createEntityManager();
+		verify(replicaEmf).createEntityManager(singletonMap("javax.persistence.query.timeout", "500"));
+		
+		// Change that needs a new EntityManagerFactory
+		props.put("eclipselink.logging.level", "FINE");
+		emfb.createEntityManagerFactory(props);
+		member.createEntityManager();
+		verify(swappedReplicaEmf).createEntityManager();
+		
+		ArgumentCaptor<Map> providerProps = ArgumentCaptor.forClass(Map.class);
+		verify(provider, times(4)).createContainerEntityManagerFactory(any(PersistenceUnitInfo.class), 
+				providerProps.capture());
+		Map<String, Object> swappedReplicaProps = providerProps.getAllValues().get(3);
+		assertEquals("FINE", swappedReplicaProps.get("eclipselink.logging.level"));
+		assertEquals("test.bundle_test-props.replica.42", swappedReplicaProps.get("eclipselink.session-name"));
+		verify(punitContext, times(2)).registerService(eq(EntityManagerFactory.class),
+				any(EntityManagerFactory.class), any(Dictionary.class));
+		
+		emfb.close();
+	}
 }
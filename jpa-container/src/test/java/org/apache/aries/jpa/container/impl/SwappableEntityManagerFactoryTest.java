@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.impl;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SwappableEntityManagerFactoryTest {
+
+	@Mock
+	EntityManagerFactory oldEmf;
+
+	@Mock
+	EntityManagerFactory newEmf;
+
+	@Mock
+	EntityManager oldEm;
+
+	@Mock
+	EntityManager newEm;
+
+	@Before
+	public void setup() {
+		when(oldEmf.isOpen()).thenReturn(true);
+		when(newEmf.isOpen()).thenReturn(true);
+		when(oldEmf.createEntityManager()).thenReturn(oldEm);
+		when(newEmf.createEntityManager()).thenReturn(newEm);
+	}
+
+	@Test
+	public void testOldClosedAfterDrain() {
+		SwappableEntityManagerFactory swappable = new SwappableEntityManagerFactory("test", oldEmf, 0);
+		EntityManagerFactory emf = swappable.getProxy();
+		EntityManager inFlight = emf.createEntityManager();
+
+		swappable.swap(newEmf);
+		final AtomicBoolean drained = new AtomicBoolean();
+		swappable.afterDrain(new Runnable() {
+			@Override
+			public void run() {
+				drained.set(true);
+			}
+		});
+		emf.createEntityManager().close();
+		verify(newEm).close();
+		verify(oldEmf, never()).close();
+
+		inFlight.close();
+		verify(oldEm).close();
+		verify(oldEmf).close();
+		verify(newEmf, never()).close();
+		assertTrue(drained.get());
+	}
+
+	@Test
+	public void testOldClosedImmediatelyWithoutEntityManagers() {
+		SwappableEntityManagerFactory swappable = new SwappableEntityManagerFactory("test", oldEmf, 0);
+		swappable.getProxy().createEntityManager().close();
+		swappable.swap(newEmf);
+		verify(oldEmf).close();
+	}
+
+	@Test
+	public void testDrainTimeout() throws InterruptedException {
+		SwappableEntityManagerFactory swappable = new SwappableEntityManagerFactory("test", oldEmf, 10);
+		swappable.getProxy().createEntityManager();
+		swappable.swap(newEmf);
+		Thread.sleep(500);
+		verify(oldEmf).close();
+	}
+
+	@Test
+	public void testCloseClosesAll() {
+		SwappableEntityManagerFactory swappable = new SwappableEntityManagerFactory("test", oldEmf, 0);
+		EntityManagerFactory emf = swappable.getProxy();
+		emf.createEntityManager();
+		swappable.swap(newEmf);
+		emf.close();
+		verify(oldEmf).close();
+		verify(newEmf).close();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testCreateAfterClose() {
+		SwappableEntityManagerFactory swappable = new SwappableEntityManagerFactory("test", oldEmf, 0);
+		EntityManagerFactory emf = swappable.getProxy();
+		emf.close();
+		emf.createEntityManager();
+	}
+}
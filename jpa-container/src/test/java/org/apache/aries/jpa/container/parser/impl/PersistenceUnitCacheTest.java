@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.parser.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.persistence.spi.PersistenceUnitTransactionType;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+public class PersistenceUnitCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Bundle bundle;
+    private Bundle container;
+    private BundleWiring wiring;
+    private File descriptor;
+    private PersistenceUnitCache cache;
+
+    @Before
+    public void setup() throws IOException {
+        descriptor = folder.newFile("persistence.xml");
+        writeDescriptor("<persistence/>");
+        bundle = mock(Bundle.class);
+        wiring = mock(BundleWiring.class);
+        Dictionary<String, String> headers = new Hashtable<String, String>();
+        headers.put(PersistenceUnitParser.PERSISTENCE_UNIT_HEADER, "");
+        when(bundle.getHeaders()).thenReturn(headers);
+        when(bundle.getEntry("META-INF/persistence.xml")).thenReturn(descriptor.toURI().toURL());
+        when(bundle.adapt(BundleWiring.class)).thenReturn(wiring);
+        when(bundle.getSymbolicName()).thenReturn("test.bundle");
+        when(bundle.getVersion()).thenReturn(Version.parseVersion("1.0.0"));
+        when(bundle.getLastModified()).thenReturn(1000L);
+        container = mockBundle("org.apache.aries.jpa.container", "2.7.4", 500L);
+        cache = new PersistenceUnitCache(new File(folder.getRoot(), "cache"), container);
+    }
+
+    @Test
+    public void testRoundTrip() {
+        PersistenceUnit punit = new PersistenceUnit(bundle, "test", PersistenceUnitTransactionType.JTA);
+        punit.setProviderClassName("org.example.Provider");
+        punit.setJtaDataSourceName("osgi:service/jdbc/test");
+        punit.addClassName("org.example.Car");
+        punit.addClassName("org.example.Person");
+        punit.addMappingFile("META-INF/orm.xml");
+        punit.addProperty("key", "value");
+        cache.store(bundle, Collections.singleton(punit));
+
+        Collection<PersistenceUnit> loaded = cache.load(bundle);
+        assertEquals(1, loaded.size());
+        PersistenceUnit restored = loaded.iterator().next();
+        assertEquals("test", restored.getPersistenceUnitName());
+        assertEquals(PersistenceUnitTransactionType.JTA, restored.getTransactionType());
+        assertEquals("org.example.Provider", restored.getPersistenceProviderClassName());
+        assertEquals("osgi:service/jdbc/test", restored.getJtaDataSourceName());
+        assertNull(restored.getNonJtaDataSourceName());
+        assertEquals(Arrays.asList("org.example.Car", "org.example.Person"), sorted(restored.getManagedClassNames()));
+        assertEquals(Arrays.asList("META-INF/orm.xml"), restored.getMappingFileNames());
+        assertEquals("value", restored.getProperties().get("key"));
+    }
+
+    @Test
+    public void testInvalidatedByChanges() throws IOException {
+        PersistenceUnit punit = new PersistenceUnit(bundle, "test", PersistenceUnitTransactionType.JTA);
+        cache.store(bundle, Collections.singleton(punit));
+
+        writeDescriptor("<persistence></persistence>");
+        assertNull(cache.load(bundle));
+
+        cache.store(bundle, Collections.singleton(punit));
+        when(bundle.getLastModified()).thenReturn(2000L);
+        assertNull(cache.load(bundle));
+    }
+
+    @Test
+    public void testInvalidatedByContainerAndFragments() {
+        PersistenceUnit punit = new PersistenceUnit(bundle, "test", PersistenceUnitTransactionType.JTA);
+        cache.store(bundle, Collections.singleton(punit));
+
+        when(container.getLastModified()).thenReturn(600L);
+        assertNull(cache.load(bundle));
+
+        cache.store(bundle, Collections.singleton(punit));
+        Bundle fragment = mockBundle("test.fragment", "1.0.0", 700L);
+        BundleRevision fragmentRevision = mock(BundleRevision.class);
+        when(fragmentRevision.getBundle()).thenReturn(fragment);
+        BundleWire wire = mock(BundleWire.class);
+        when(wire.getRequirer()).thenReturn(fragmentRevision);
+        when(wiring.getProvidedWires(BundleRevision.HOST_NAMESPACE)).thenReturn(Collections.singletonList(wire));
+        assertNull(cache.load(bundle));
+
+        cache.store(bundle, Collections.singleton(punit));
+        assertEquals(1, cache.load(bundle).size());
+        when(fragment.getLastModified()).thenReturn(800L);
+        assertNull(cache.load(bundle));
+    }
+
+    private static Bundle mockBundle(String symbolicName, String version, long lastModified) {
+        Bundle mock = mock(Bundle.class);
+        when(mock.getSymbolicName()).thenReturn(symbolicName);
+        when(mock.getVersion()).thenReturn(Version.parseVersion(version));
+        when(mock.getLastModified()).thenReturn(lastModified);
+        return mock;
+    }
+
+    private void writeDescriptor(String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(descriptor);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static List<String> sorted(List<String> values) {
+        Collections.sort(values);
+        return values;
+    }
+}
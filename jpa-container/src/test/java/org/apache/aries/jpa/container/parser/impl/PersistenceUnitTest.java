@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.parser.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.net.URL;
+import java.util.Collections;
+
+import javax.persistence.spi.PersistenceUnitTransactionType;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleWiring;
+
+public class PersistenceUnitTest {
+    private Bundle bundle;
+    private PersistenceUnit punit;
+
+    @Before
+    public void setup() {
+        bundle = mock(Bundle.class);
+        when(bundle.adapt(BundleWiring.class)).thenReturn(mock(BundleWiring.class));
+        punit = new PersistenceUnit(bundle, "test", PersistenceUnitTransactionType.RESOURCE_LOCAL);
+        punit.addClassName("org.example.Car");
+    }
+
+    @Test
+    public void testWeavingCandidatesAreManagedClasses() {
+        assertEquals(Collections.singleton("org.example.Car"), punit.getWeavingCandidates());
+    }
+
+    @Test
+    public void testListedMappingFileOffersAllClasses() {
+        punit.addMappingFile("META-INF/cars.xml");
+        assertNull(punit.getWeavingCandidates());
+    }
+
+    @Test
+    public void testDefaultMappingFileOffersAllClasses() throws Exception {
+        when(bundle.getEntry("META-INF/orm.xml")).thenReturn(new URL("file:orm.xml"));
+        assertNull(punit.getWeavingCandidates());
+    }
+
+    @Test
+    public void testEclipseLinkMappingFileOffersAllClasses() throws Exception {
+        when(bundle.getEntry("META-INF/eclipselink-orm.xml")).thenReturn(new URL("file:eclipselink-orm.xml"));
+        assertNull(punit.getWeavingCandidates());
+    }
+
+    @Test
+    public void testFilterDisabled() {
+        punit.setWeavingFilter(false);
+        assertNull(punit.getWeavingCandidates());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.parser.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import javax.persistence.spi.PersistenceUnitTransactionType;
+
+import org.apache.aries.jpa.index.ClassFileAnnotationReader;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleWiring;
+
+public class StaticWeavingTest {
+    private static final String ECLIPSELINK = "org.eclipse.persistence.jpa.PersistenceProvider";
+
+    private Bundle bundle;
+    private Dictionary<String, String> headers;
+    private PersistenceUnit punit;
+
+    @Before
+    public void setup() {
+        bundle = mock(Bundle.class);
+        headers = new Hashtable<String, String>();
+        when(bundle.getHeaders()).thenReturn(headers);
+        when(bundle.adapt(BundleWiring.class)).thenReturn(mock(BundleWiring.class));
+        String resource = StaticWeavingTest.class.getName().replace('.', '/') + ".class";
+        when(bundle.getResource(resource)).thenReturn(StaticWeavingTest.class.getClassLoader().getResource(resource));
+        punit = new PersistenceUnit(bundle, "test", PersistenceUnitTransactionType.RESOURCE_LOCAL);
+        punit.addClassName(StaticWeavingTest.class.getName());
+    }
+
+    @Test
+    public void testNoHeader() {
+        punit.setProviderClassName(ECLIPSELINK);
+        assertFalse(StaticWeaving.apply(punit, punit.getPersistenceProviderClassName()));
+    }
+
+    @Test
+    public void testOtherProvider() {
+        headers.put(StaticWeaving.HEADER, "org.hibernate.jpa.HibernatePersistenceProvider");
+        punit.setProviderClassName(ECLIPSELINK);
+        assertFalse(StaticWeaving.apply(punit, punit.getPersistenceProviderClassName()));
+    }
+
+    @Test
+    public void testClassNotEnhanced() {
+        headers.put(StaticWeaving.HEADER, ECLIPSELINK);
+        punit.setProviderClassName(ECLIPSELINK);
+        assertFalse(StaticWeaving.apply(punit, punit.getPersistenceProviderClassName()));
+        assertNull(punit.getProperties().get("eclipselink.weaving"));
+    }
+
+    @Test
+    public void testUnknownProviderIsTrusted() {
+        headers.put(StaticWeaving.HEADER, "org.example.Provider, " + ECLIPSELINK);
+        punit.setProviderClassName("org.example.Provider");
+        assertTrue(StaticWeaving.apply(punit, punit.getPersistenceProviderClassName()));
+    }
+
+    @Test
+    public void testReferencesPrefix() throws Exception {
+        byte[] bytes = ClassFileAnnotationReader.readFully(bundle.getResource(StaticWeavingTest.class.getName().replace('.', '/') + ".class").openStream());
+        assertTrue(ClassFileAnnotationReader.referencesPrefix(bytes, "org/osgi/framework/"));
+        assertFalse(ClassFileAnnotationReader.referencesPrefix(bytes, "org/eclipse/persistence/internal/weaving/"));
+    }
+
+    @Test
+    public void testEnhancedClassOnBundleClassPath() {
+        // Only visible through the bundle class loader like a class in an embedded jar
+        String resource = Enhanced.class.getName().replace('.', '/') + ".class";
+        when(bundle.getResource(resource)).thenReturn(Enhanced.class.getClassLoader().getResource(resource));
+        punit = new PersistenceUnit(bundle, "test", PersistenceUnitTransactionType.RESOURCE_LOCAL);
+        punit.addClassName(Enhanced.class.getName());
+        headers.put(StaticWeaving.HEADER, ECLIPSELINK);
+
+        assertTrue(StaticWeaving.apply(punit, ECLIPSELINK));
+        assertEquals("static", punit.getProperties().get("eclipselink.weaving"));
+    }
+
+    @Test
+    public void testNoClassCanBeChecked() {
+        punit = new PersistenceUnit(bundle, "test", PersistenceUnitTransactionType.RESOURCE_LOCAL);
+        punit.addClassName("org.example.Missing");
+        headers.put(StaticWeaving.HEADER, ECLIPSELINK);
+
+        assertFalse(StaticWeaving.apply(punit, ECLIPSELINK));
+        assertNull(punit.getProperties().get("eclipselink.weaving"));
+    }
+
+    @Test
+    public void testUnitWithoutProviderUsesFoundProvider() {
+        String resource = Enhanced.class.getName().replace('.', '/') + ".class";
+        when(bundle.getResource(resource)).thenReturn(Enhanced.class.getClassLoader().getResource(resource));
+        punit = new PersistenceUnit(bundle, "test", PersistenceUnitTransactionType.RESOURCE_LOCAL);
+        punit.addClassName(Enhanced.class.getName());
+        headers.put(StaticWeaving.HEADER, ECLIPSELINK);
+
+        assertFalse(StaticWeaving.apply(punit, null));
+        assertTrue(StaticWeaving.apply(punit, ECLIPSELINK));
+    }
+
+    /**
+     * Carries a reference to the EclipseLink weaving package like a class enhanced by EclipseLink
+     */
+    static class Enhanced {
+        static final String WEAVED = "org/eclipse/persistence/internal/weaving/PersistenceWeaved";
+    }
+}
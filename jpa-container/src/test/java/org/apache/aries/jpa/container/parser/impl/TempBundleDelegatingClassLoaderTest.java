@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.parser.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+public class TempBundleDelegatingClassLoaderTest {
+    private Bundle bundle;
+    private List<BundleWire> wires;
+
+    @Before
+    public void setup() {
+        bundle = mock(Bundle.class);
+        BundleWiring wiring = mock(BundleWiring.class);
+        when(bundle.adapt(BundleWiring.class)).thenReturn(wiring);
+        wires = new CopyOnWriteArrayList<BundleWire>();
+        when(wiring.getRequiredWires(BundleRevision.PACKAGE_NAMESPACE)).thenAnswer(new Answer<List<BundleWire>>() {
+            @Override
+            public List<BundleWire> answer(InvocationOnMock invocation) throws Throwable {
+                return new ArrayList<BundleWire>(wires);
+            }
+        });
+    }
+
+    @Test
+    public void testImportedPackage() {
+        Bundle api = addWire("javax.persistence");
+        assertSame(api, TempBundleDelegatingClassLoader.getProvider(bundle, "javax.persistence.Entity"));
+    }
+
+    @Test
+    public void testOwnPackage() {
+        addWire("javax.persistence");
+        assertSame(bundle, TempBundleDelegatingClassLoader.getProvider(bundle, "org.example.Car"));
+        assertSame(bundle, TempBundleDelegatingClassLoader.getProvider(bundle, "Car"));
+    }
+
+    @Test
+    public void testDynamicImportAfterIndexWasBuilt() {
+        addWire("javax.persistence");
+        assertSame(bundle, TempBundleDelegatingClassLoader.getProvider(bundle, "org.example.dynamic.Plugin"));
+
+        Bundle dynamic = addWire("org.example.dynamic");
+        assertSame(dynamic, TempBundleDelegatingClassLoader.getProvider(bundle, "org.example.dynamic.Plugin"));
+    }
+
+    @Test
+    public void testConcurrentLookupsWhileWiresAreAdded() throws Exception {
+        final Bundle api = addWire("javax.persistence");
+        final int threads = 8;
+        final int packages = 50;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < threads; t++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        start.await();
+                        int wrong = 0;
+                        for (int c = 0; c < 2000; c++) {
+                            if (TempBundleDelegatingClassLoader.getProvider(bundle, "javax.persistence.Entity") != api) {
+                                wrong++;
+                            }
+                            TempBundleDelegatingClassLoader.getProvider(bundle, "org.example.dynamic" + (c % packages) + ".Plugin");
+                        }
+                        return wrong;
+                    }
+                }));
+            }
+            start.countDown();
+            List<Bundle> dynamic = new ArrayList<Bundle>();
+            for (int c = 0; c < packages; c++) {
+                dynamic.add(addWire("org.example.dynamic" + c));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(Integer.valueOf(0), result.get(30, TimeUnit.SECONDS));
+            }
+            for (int c = 0; c < packages; c++) {
+                assertSame(dynamic.get(c), TempBundleDelegatingClassLoader.getProvider(bundle, "org.example.dynamic" + c + ".Plugin"));
+            }
+        } finally {
+            executor.shutdownNow();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    private Bundle addWire(String packageName) {
+        Bundle provider = mock(Bundle.class);
+        BundleWiring providerWiring = mock(BundleWiring.class);
+        when(providerWiring.getBundle()).thenReturn(provider);
+        BundleCapability capability = mock(BundleCapability.class);
+        when(capability.getAttributes()).thenReturn(Collections.<String, Object>singletonMap(BundleRevision.PACKAGE_NAMESPACE, packageName));
+        BundleWire wire = mock(BundleWire.class);
+        when(wire.getCapability()).thenReturn(capability);
+        when(wire.getProviderWiring()).thenReturn(providerWiring);
+        wires.add(wire);
+        return provider;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.pool.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.DataSource;
+import javax.sql.PooledConnection;
+import javax.sql.StatementEventListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+    private DataSource dataSource;
+    private Connection physical;
+    private ConnectionPool pool;
+    private PoolConfig config;
+
+    @Before
+    public void setup() throws SQLException {
+        dataSource = mock(DataSource.class);
+        physical = mock(Connection.class);
+        when(physical.getAutoCommit()).thenReturn(true);
+        when(physical.isValid(anyInt())).thenReturn(true);
+        when(dataSource.getConnection()).thenReturn(physical);
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(PoolConfig.MAX_SIZE, "1");
+        props.put(PoolConfig.MAX_WAIT, "10");
+        config = new PoolConfig(props);
+        pool = new ConnectionPool("test", null, dataSource, config);
+    }
+
+    @After
+    public void close() {
+        pool.close();
+    }
+
+    @Test
+    public void testReuse() throws SQLException {
+        pool.getConnection().close();
+        pool.getConnection().close();
+        verify(dataSource, times(1)).getConnection();
+        assertEquals(1, pool.getSize());
+        assertEquals(1, pool.getIdle());
+    }
+
+    @Test
+    public void testExhausted() throws SQLException {
+        Connection connection = pool.getConnection();
+        try {
+            pool.getConnection();
+            fail("Expected timeout as the pool is exhausted");
+        } catch (SQLException e) {
+            // Expected
+        }
+        connection.close();
+        pool.getConnection().close();
+    }
+
+    @Test
+    public void testInvalidConnectionIsReplaced() throws SQLException {
+        pool.getConnection().close();
+        when(physical.isValid(anyInt())).thenReturn(false, true);
+        pool.getConnection().close();
+        verify(physical).close();
+        verify(dataSource, times(2)).getConnection();
+    }
+
+    @Test
+    public void testUnfinishedWorkIsRolledBack() throws SQLException {
+        Connection connection = pool.getConnection();
+        when(physical.getAutoCommit()).thenReturn(false);
+        connection.close();
+        verify(physical).rollback();
+        verify(physical).setAutoCommit(true);
+    }
+
+    @Test
+    public void testChangedSettingsAreRestored() throws SQLException {
+        when(physical.getTransactionIsolation()).thenReturn(Connection.TRANSACTION_READ_COMMITTED);
+        when(physical.getCatalog()).thenReturn("main");
+        Connection connection = pool.getConnection();
+        when(physical.getTransactionIsolation()).thenReturn(Connection.TRANSACTION_SERIALIZABLE);
+        when(physical.isReadOnly()).thenReturn(true);
+        when(physical.getCatalog()).thenReturn("other");
+        connection.close();
+        verify(physical).setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        verify(physical).setReadOnly(false);
+        verify(physical).setCatalog("main");
+        verify(physical, never()).setAutoCommit(true);
+        assertEquals(1, pool.getIdle());
+    }
+
+    @Test
+    public void testPhysicalConnectionIsNotExposed() throws SQLException {
+        Statement statement = mock(Statement.class);
+        when(statement.getConnection()).thenReturn(physical);
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.getStatement()).thenReturn(statement);
+        when(statement.executeQuery("select 1")).thenReturn(resultSet);
+        when(physical.createStatement()).thenReturn(statement);
+        DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+        when(metaData.getConnection()).thenReturn(physical);
+        when(physical.getMetaData()).thenReturn(metaData);
+
+        Connection connection = pool.getConnection();
+        assertSame(connection, connection.getMetaData().getConnection());
+        Statement logicalStatement = connection.createStatement();
+        assertSame(connection, logicalStatement.getConnection());
+        assertSame(logicalStatement, logicalStatement.executeQuery("select 1").getStatement());
+        assertSame(connection, connection.unwrap(Connection.class));
+        assertFalse(connection.isWrapperFor(VendorConnection.class));
+        try {
+            connection.unwrap(VendorConnection.class);
+            fail("Expected the physical connection to be hidden");
+        } catch (SQLException e) {
+            // Expected
+        }
+        connection.close();
+    }
+
+    @Test
+    public void testEvictIdle() throws SQLException {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(PoolConfig.IDLE_TIMEOUT, "-1");
+        pool.configure(new PoolConfig(props));
+        pool.getConnection().close();
+        pool.evictIdle();
+        assertEquals(0, pool.getSize());
+        verify(physical).close();
+    }
+
+    @Test
+    public void testUnfinishedWorkIsRolledBackWithConnectionPoolDataSource() throws SQLException {
+        ConnectionPoolDataSource cpds = mock(ConnectionPoolDataSource.class);
+        DriverPooledConnection pc = new DriverPooledConnection(physical);
+        when(cpds.getPooledConnection()).thenReturn(pc);
+        pool.close();
+        pool = new ConnectionPool("test", cpds, null, config);
+
+        Connection connection = pool.getConnection();
+        when(physical.getAutoCommit()).thenReturn(false, true);
+        connection.close();
+        verify(physical).rollback();
+        verify(physical).setAutoCommit(true);
+        assertEquals(1, pool.getSize());
+        assertEquals(1, pool.getIdle());
+
+        pool.getConnection().close();
+        verify(cpds, times(1)).getPooledConnection();
+        verify(physical, never()).close();
+    }
+
+    @Test
+    public void testConnectionThatCanNotBeResetIsDiscarded() throws SQLException {
+        ConnectionPoolDataSource cpds = mock(ConnectionPoolDataSource.class);
+        DriverPooledConnection pc = new DriverPooledConnection(physical);
+        when(cpds.getPooledConnection()).thenReturn(pc);
+        pool.close();
+        pool = new ConnectionPool("test", cpds, null, config);
+
+        Connection connection = pool.getConnection();
+        when(physical.getAutoCommit()).thenReturn(false);
+        doThrow(new SQLException("Connection lost")).when(physical).rollback();
+        connection.close();
+        assertEquals(0, pool.getSize());
+        assertEquals(0, pool.getIdle());
+        verify(physical).close();
+    }
+
+    private interface VendorConnection extends Connection {
+    }
+
+    /**
+     * Behaves like the PooledConnection of a driver ConnectionPoolDataSource. Closing the logical
+     * connection only notifies the listeners and leaves the physical connection as it is.
+     */
+    private static final class DriverPooledConnection implements PooledConnection {
+        private final Connection physical;
+        private final List<ConnectionEventListener> listeners = new CopyOnWriteArrayList<ConnectionEventListener>();
+
+        DriverPooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            return (Connection)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("close".equals(method.getName())) {
+                            for (ConnectionEventListener listener : listeners) {
+                                listener.connectionClosed(new ConnectionEvent(DriverPooledConnection.this));
+                            }
+                            return null;
+                        }
+                        try {
+                            return method.invoke(physical, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        }
+
+        @Override
+        public void close() throws SQLException {
+            physical.close();
+        }
+
+        @Override
+        public void addConnectionEventListener(ConnectionEventListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeConnectionEventListener(ConnectionEventListener listener) {
+            listeners.remove(listener);
+        }
+
+        @Override
+        public void addStatementEventListener(StatementEventListener listener) {
+            // Statements are not pooled
+        }
+
+        @Override
+        public void removeStatementEventListener(StatementEventListener listener) {
+            // Statements are not pooled
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.weaving.impl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.persistence.spi.ClassTransformer;
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class HibernateTransformerProviderTest {
+    private PersistenceUnitInfo punit;
+    private Properties props;
+
+    @Before
+    public void setup() {
+        punit = mock(PersistenceUnitInfo.class);
+        props = new Properties();
+        when(punit.getProperties()).thenReturn(props);
+    }
+
+    @Test
+    public void testSupports() {
+        assertTrue(HibernateTransformerProvider.supports("org.hibernate.jpa.HibernatePersistenceProvider"));
+        assertTrue(HibernateTransformerProvider.supports("org.hibernate.ejb.HibernatePersistence"));
+        assertFalse(HibernateTransformerProvider.supports("org.eclipse.persistence.jpa.PersistenceProvider"));
+        assertFalse(HibernateTransformerProvider.supports(null));
+    }
+
+    @Test
+    public void testNoEnhancerNeedsNoTransformer() {
+        props.put("hibernate.enhancer.enableDirtyTracking", "false");
+        assertTrue(addTransformers(Collections.<String, Object>emptyMap()));
+        verify(punit, never()).addTransformer(any(ClassTransformer.class));
+    }
+
+    @Test
+    public void testEnhancerInUnitProperties() {
+        props.put("hibernate.ejb.use_class_enhancer", " true ");
+        assertFalse(addTransformers(Collections.<String, Object>emptyMap()));
+    }
+
+    @Test
+    public void testEnhancerInProviderProperties() {
+        Map<String, Object> overrides = new HashMap<String, Object>();
+        overrides.put("hibernate.enhancer.enableAssociationManagement", Boolean.TRUE);
+        assertFalse(addTransformers(overrides));
+    }
+
+    @Test
+    public void testProviderPropertiesOverrideUnit() {
+        props.put("hibernate.enhancer.enableLazyInitialization", "true");
+        Map<String, Object> overrides = new HashMap<String, Object>();
+        overrides.put("hibernate.enhancer.enableLazyInitialization", "false");
+        assertTrue(addTransformers(overrides));
+    }
+
+    private boolean addTransformers(Map<String, Object> overrides) {
+        return new HibernateTransformerProvider().addTransformers(punit, overrides);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.weaving.impl;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.security.ProtectionDomain;
+import java.util.Collections;
+
+import javax.persistence.spi.ClassTransformer;
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.hooks.weaving.WovenClass;
+import org.osgi.framework.wiring.BundleWiring;
+
+public class JPAWeavingHookTest {
+
+    @Test
+    public void testWeaveWithoutTransformer() throws Exception {
+        JPAWeavingHook hook = new JPAWeavingHook();
+        ClassTransformer other = mock(ClassTransformer.class);
+        hook.addTransformer(bundle(2), other);
+        hook.weave(wovenClass(bundle(1)));
+        verifyNotCalled(other);
+    }
+
+    @Test
+    public void testTransformersInRegistrationOrder() throws Exception {
+        JPAWeavingHook hook = new JPAWeavingHook();
+        Bundle bundle = bundle(5);
+        ClassTransformer first = mock(ClassTransformer.class);
+        ClassTransformer second = mock(ClassTransformer.class);
+        hook.addTransformer(bundle(7), mock(ClassTransformer.class));
+        hook.addTransformer(bundle, first);
+        hook.addTransformer(bundle(3), mock(ClassTransformer.class));
+        hook.addTransformer(bundle, second);
+        WovenClass wovenClass = wovenClass(bundle);
+        when(second.transform(any(ClassLoader.class), anyString(), any(Class.class), any(ProtectionDomain.class), any(byte[].class)))
+            .thenReturn(new byte[] {1});
+        hook.weave(wovenClass);
+        verify(first).transform(any(ClassLoader.class), anyString(), any(Class.class), any(ProtectionDomain.class), any(byte[].class));
+        verify(wovenClass).setBytes(new byte[] {1});
+    }
+
+    @Test
+    public void testOnlyCandidatesOffered() throws Exception {
+        JPAWeavingHook hook = new JPAWeavingHook();
+        Bundle bundle = bundle(1);
+        ClassTransformer transformer = mock(ClassTransformer.class);
+        hook.addTransformer(bundle, transformer, Collections.singleton("test.Other"));
+        hook.weave(wovenClass(bundle));
+        verifyNotCalled(transformer);
+    }
+
+    @Test
+    public void testRemoveTransformer() throws Exception {
+        JPAWeavingHook hook = new JPAWeavingHook();
+        Bundle bundle = bundle(1);
+        ClassTransformer transformer = mock(ClassTransformer.class);
+        hook.addTransformer(bundle, transformer);
+        hook.removeTransformer(bundle, transformer);
+        hook.weave(wovenClass(bundle));
+        verifyNotCalled(transformer);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRemoveUnknownTransformer() {
+        new JPAWeavingHook().removeTransformer(bundle(1), mock(ClassTransformer.class));
+    }
+
+    private void verifyNotCalled(ClassTransformer transformer) throws Exception {
+        verify(transformer, never()).transform(any(ClassLoader.class), anyString(), any(Class.class),
+                                               any(ProtectionDomain.class), any(byte[].class));
+    }
+
+    private Bundle bundle(long id) {
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.getBundleId()).thenReturn(id);
+        return bundle;
+    }
+
+    private WovenClass wovenClass(Bundle bundle) {
+        BundleWiring wiring = mock(BundleWiring.class);
+        when(wiring.getBundle()).thenReturn(bundle);
+        WovenClass wovenClass = mock(WovenClass.class);
+        when(wovenClass.getBundleWiring()).thenReturn(wiring);
+        when(wovenClass.getClassName()).thenReturn("test.Entity");
+        when(wovenClass.getBytes()).thenReturn(new byte[0]);
+        return wovenClass;
+    }
+}
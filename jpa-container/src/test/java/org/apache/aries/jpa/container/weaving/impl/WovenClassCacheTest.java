@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.container.weaving.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Properties;
+
+import javax.persistence.spi.ClassTransformer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Version;
+
+public class WovenClassCacheTest {
+    private static final byte[] ORIGINAL = new byte[] {1, 2, 3};
+    private static final byte[] WOVEN = new byte[] {4, 5, 6, 7};
+    private static final String CONFIG = "{eclipselink.weaving=true}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Bundle bundle;
+    private ClassTransformer transformer;
+    private WovenClassCache cache;
+
+    @Before
+    public void setup() {
+        bundle = mock(Bundle.class);
+        when(bundle.getSymbolicName()).thenReturn("test.bundle");
+        when(bundle.getVersion()).thenReturn(Version.parseVersion("1.0.0"));
+        when(bundle.getLastModified()).thenReturn(1000L);
+        transformer = mock(ClassTransformer.class);
+        cache = new WovenClassCache(new File(folder.getRoot(), "woven"));
+    }
+
+    @Test
+    public void testMiss() {
+        assertNull(cache.load(bundle, "test.Car", ORIGINAL, transformer, CONFIG));
+    }
+
+    @Test
+    public void testWoven() {
+        cache.store(bundle, "test.Car", ORIGINAL, transformer, CONFIG, WOVEN);
+        assertArrayEquals(WOVEN, cache.load(bundle, "test.Car", ORIGINAL, transformer, CONFIG));
+        assertNull(cache.load(bundle, "test.Person", ORIGINAL, transformer, CONFIG));
+    }
+
+    @Test
+    public void testNotWoven() {
+        cache.store(bundle, "test.Car", ORIGINAL, transformer, CONFIG, null);
+        assertSame(WovenClassCache.NOT_WOVEN, cache.load(bundle, "test.Car", ORIGINAL, transformer, CONFIG));
+    }
+
+    @Test
+    public void testChangedClassInvalidates() {
+        cache.store(bundle, "test.Car", ORIGINAL, transformer, CONFIG, WOVEN);
+        assertNull(cache.load(bundle, "test.Car", new byte[] {1, 2, 4}, transformer, CONFIG));
+    }
+
+    @Test
+    public void testUpdatedBundleInvalidates() {
+        cache.store(bundle, "test.Car", ORIGINAL, transformer, CONFIG, WOVEN);
+        when(bundle.getLastModified()).thenReturn(2000L);
+        assertNull(cache.load(bundle, "test.Car", ORIGINAL, transformer, CONFIG));
+    }
+
+    @Test
+    public void testChangedWeavingConfigInvalidates() {
+        cache.store(bundle, "test.Car", ORIGINAL, transformer, CONFIG, WOVEN);
+        assertNull(cache.load(bundle, "test.Car", ORIGINAL, transformer, "{eclipselink.weaving.lazy=false}"));
+    }
+
+    @Test
+    public void testWeavingConfigPrecedence() {
+        BundleContext context = mock(BundleContext.class);
+        when(context.getProperty("eclipselink.weaving.lazy")).thenReturn("false");
+        when(context.getProperty("eclipselink.weaving")).thenReturn("false");
+        Properties unitProps = new Properties();
+        unitProps.put("eclipselink.weaving", "true");
+        unitProps.put("eclipselink.logging.level", "FINE");
+
+        assertEquals("{eclipselink.weaving=true, eclipselink.weaving.lazy=false}",
+                     WovenClassCache.getWeavingConfig(context, unitProps, null));
+        assertEquals("{eclipselink.weaving=static, eclipselink.weaving.lazy=false}",
+                     WovenClassCache.getWeavingConfig(context, unitProps,
+                                                      Collections.singletonMap("eclipselink.weaving", "static")));
+    }
+
+    @Test
+    public void testPruneRemovesOtherVersionsAndUninstalledBundles() {
+        cache.store(bundle, "test.Car", ORIGINAL, transformer, CONFIG, WOVEN);
+        Bundle other = mock(Bundle.class);
+        when(other.getSymbolicName()).thenReturn("other.bundle");
+        when(other.getVersion()).thenReturn(Version.parseVersion("1.0.0"));
+        cache.store(other, "test.Car", ORIGINAL, transformer, CONFIG, WOVEN);
+
+        cache.prune(new Bundle[] {bundle});
+        assertArrayEquals(WOVEN, cache.load(bundle, "test.Car", ORIGINAL, transformer, CONFIG));
+        assertNull(cache.load(other, "test.Car", ORIGINAL, transformer, CONFIG));
+
+        when(bundle.getVersion()).thenReturn(Version.parseVersion("1.1.0"));
+        cache.prune(new Bundle[] {bundle});
+        when(bundle.getVersion()).thenReturn(Version.parseVersion("1.0.0"));
+        assertNull(cache.load(bundle, "test.Car", ORIGINAL, transformer, CONFIG));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.index.maven;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.apache.aries.jpa.index.JpaIndex;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Scans the compiled classes of a persistence bundle for JPA annotated classes and writes them to
+ * META-INF/jpa-index. The Aries JPA container then uses the index instead of scanning the bundle.
+ */
+@Mojo(name = "index", defaultPhase = LifecyclePhase.PROCESS_CLASSES, threadSafe = true)
+public class IndexMojo extends AbstractMojo {
+
+    @Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+    private File classesDirectory;
+
+    @Parameter(property = "jpa.index.skip", defaultValue = "false")
+    private boolean skip;
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        if (skip) {
+            getLog().info("Skipping JPA index");
+            return;
+        }
+        if (!classesDirectory.isDirectory()) {
+            getLog().info("No classes in " + classesDirectory + ". Skipping JPA index");
+            return;
+        }
+        Collection<String> classNames = new ArrayList<String>();
+        try {
+            scan(classesDirectory, "", classNames);
+            writeIndex(classNames);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to create " + JpaIndex.LOCATION, e);
+        }
+        getLog().info("Wrote " + classNames.size() + " JPA annotated classes to " + JpaIndex.LOCATION);
+    }
+
+    private void scan(File dir, String packagePrefix, Collection<String> classNames) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                scan(file, packagePrefix + name + ".", classNames);
+            } else if (name.endsWith(".class") && isJpaAnnotated(file)) {
+                classNames.add(packagePrefix + name.substring(0, name.length() - 6));
+            }
+        }
+    }
+
+    private boolean isJpaAnnotated(File classFile) throws IOException {
+        try {
+            return JpaIndex.isJpaAnnotated(JpaIndex.readFully(new FileInputStream(classFile)));
+        } catch (IOException e) {
+            throw new IOException("Unable to read class file " + classFile, e);
+        }
+    }
+
+    private void writeIndex(Collection<String> classNames) throws IOException {
+        File index = new File(classesDirectory, JpaIndex.LOCATION);
+        if (!index.getParentFile().isDirectory() && !index.getParentFile().mkdirs()) {
+            throw new IOException("Unable to create directory " + index.getParentFile());
+        }
+        OutputStream out = new FileOutputStream(index);
+        try {
+            JpaIndex.write(classNames, out);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.index;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+/**
+ * Minimal class file reader that checks the class level RuntimeVisibleAnnotations
+ * or the referenced names without loading the class.
+ */
+public final class ClassFileAnnotationReader {
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final String RUNTIME_VISIBLE_ANNOTATIONS = "RuntimeVisibleAnnotations";
+
+    private final byte[] bytes;
+    private int pos;
+    private String[] utf8;
+
+    private ClassFileAnnotationReader(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * @param classBytes content of a class file
+     * @param descriptors annotation type descriptors like Ljavax/persistence/Entity;
+     * @param prefix common prefix of the descriptors. Classes without a constant starting
+     *        with it are rejected without looking at the attributes
+     * @return true if the class is annotated with one of the annotations
+     * @throws IOException if the class file is malformed
+     */
+    public static boolean hasAnnotation(byte[] classBytes, Set<String> descriptors, String prefix) throws IOException {
+        try {
+            return new ClassFileAnnotationReader(classBytes).read(descriptors, prefix);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated class file", e);
+        }
+    }
+
+    /**
+     * @param classBytes content of a class file
+     * @param prefix start of a class name in internal form like org/example/
+     * @return true if the constant pool contains a name starting with the prefix
+     * @throws IOException if the class file is malformed
+     */
+    public static boolean referencesPrefix(byte[] classBytes, String prefix) throws IOException {
+        try {
+            ClassFileAnnotationReader reader = new ClassFileAnnotationReader(classBytes);
+            if (reader.readInt() != MAGIC) {
+                throw new IOException("Not a class file");
+            }
+            reader.pos += 4; // minor and major version
+            return reader.readConstantPool(prefix);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated class file", e);
+        }
+    }
+
+    public static byte[] readFully(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+            byte[] buffer = new byte[4096];
+            int read = is.read(buffer);
+            while (read != -1) {
+                out.write(buffer, 0, read);
+                read = is.read(buffer);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private boolean read(Set<String> descriptors, String prefix) throws IOException {
+        if (readInt() != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+        pos += 4; // minor and major version
+        if (!readConstantPool(prefix)) {
+            return false;
+        }
+        pos += 6; // access flags, this class, super class
+        pos += 2 * readUnsignedShort(); // interfaces
+        skipMembers(); // fields
+        skipMembers(); // methods
+        int attributes = readUnsignedShort();
+        for (int c = 0; c < attributes; c++) {
+            String name = utf8(readUnsignedShort());
+            int length = readInt();
+            int end = pos + length;
+            if (RUNTIME_VISIBLE_ANNOTATIONS.equals(name) && containsAnnotation(descriptors)) {
+                return true;
+            }
+            pos = end;
+        }
+        return false;
+    }
+
+    /**
+     * @return false if no utf8 constant starts with the prefix
+     */
+    private boolean readConstantPool(String prefix) throws IOException {
+        int count = readUnsignedShort();
+        utf8 = new String[count];
+        boolean prefixFound = false;
+        for (int index = 1; index < count; index++) {
+            int tag = bytes[pos++];
+            switch (tag) {
+            case 1: // Utf8
+                int length = readUnsignedShort();
+                String value = new String(bytes, pos, length, "UTF-8");
+                utf8[index] = value;
+                prefixFound |= value.startsWith(prefix);
+                pos += length;
+                break;
+            case 3: // Integer
+            case 4: // Float
+            case 9: // Fieldref
+            case 10: // Methodref
+            case 11: // InterfaceMethodref
+            case 12: // NameAndType
+            case 17: // Dynamic
+            case 18: // InvokeDynamic
+                pos += 4;
+                break;
+            case 5: // Long
+            case 6: // Double
+                pos += 8;
+                index++;
+                break;
+            case 7: // Class
+            case 8: // String
+            case 16: // MethodType
+            case 19: // Module
+            case 20: // Package
+                pos += 2;
+                break;
+            case 15: // MethodHandle
+                pos += 3;
+                break;
+            default:
+                throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+        return prefixFound;
+    }
+
+    private void skipMembers() {
+        int count = readUnsignedShort();
+        for (int c = 0; c < count; c++) {
+            pos += 6; // access flags, name, descriptor
+            int attributes = readUnsignedShort();
+            for (int a = 0; a < attributes; a++) {
+                pos += 2;
+                int length = readInt();
+                pos += length;
+            }
+        }
+    }
+
+    private boolean containsAnnotation(Set<String> descriptors) throws IOException {
+        int count = readUnsignedShort();
+        for (int c = 0; c < count; c++) {
+            String type = utf8(readUnsignedShort());
+            if (descriptors.contains(type)) {
+                return true;
+            }
+            skipElementValuePairs();
+        }
+        return false;
+    }
+
+    private void skipElementValuePairs() throws IOException {
+        int pairs = readUnsignedShort();
+        for (int c = 0; c < pairs; c++) {
+            pos += 2; // element name
+            skipElementValue();
+        }
+    }
+
+    private void skipElementValue() throws IOException {
+        int tag = bytes[pos++];
+        switch (tag) {
+        case 'B':
+        case 'C':
+        case 'D':
+        case 'F':
+        case 'I':
+        case 'J':
+        case 'S':
+        case 'Z':
+        case 's':
+        case 'c':
+            pos += 2;
+            break;
+        case 'e':
+            pos += 4;
+            break;
+        case '@':
+            pos += 2;
+            skipElementValuePairs();
+            break;
+        case '[':
+            int values = readUnsignedShort();
+            for (int c = 0; c < values; c++) {
+                skipElementValue();
+            }
+            break;
+        default:
+            throw new IOException("Unknown element value tag " + (char)tag);
+        }
+    }
+
+    private String utf8(int index) throws IOException {
+        if (index <= 0 || index >= utf8.length || utf8[index] == null) {
+            throw new IOException("Invalid constant pool index " + index);
+        }
+        return utf8[index];
+    }
+
+    private int readUnsignedShort() {
+        int value = ((bytes[pos] & 0xFF) << 8) | (bytes[pos + 1] & 0xFF);
+        pos += 2;
+        return value;
+    }
+
+    private int readInt() {
+        int value = ((bytes[pos] & 0xFF) << 24) | ((bytes[pos + 1] & 0xFF) << 16)
+            | ((bytes[pos + 2] & 0xFF) << 8) | (bytes[pos + 3] & 0xFF);
+        pos += 4;
+        return value;
+    }
+}
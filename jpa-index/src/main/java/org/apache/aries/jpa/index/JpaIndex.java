@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.index;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Index of the JPA annotated classes of a persistence bundle that is created at build time.
+ * If a bundle contains the index the container uses it instead of scanning the bundle.
+ * 
+ * The index is a UTF-8 text file with one class name per line. Empty lines and lines
+ * starting with # are ignored.
+ */
+public final class JpaIndex {
+    public static final String LOCATION = "META-INF/jpa-index";
+
+    private static final String ENCODING = "UTF-8";
+    private static final String JPA_PREFIX = "Ljavax/persistence/";
+    private static final Set<String> JPA_ANNOTATIONS = new HashSet<String>(Arrays.asList(
+        JPA_PREFIX + "Entity;",
+        JPA_PREFIX + "MappedSuperclass;",
+        JPA_PREFIX + "Embeddable;"));
+
+    private JpaIndex() {
+    }
+
+    /**
+     * @param classBytes content of a class file
+     * @return true if the class is annotated with @Entity, @MappedSuperclass or @Embeddable
+     * @throws IOException if the class file is malformed
+     */
+    public static boolean isJpaAnnotated(byte[] classBytes) throws IOException {
+        return ClassFileAnnotationReader.hasAnnotation(classBytes, JPA_ANNOTATIONS, JPA_PREFIX);
+    }
+
+    public static byte[] readFully(InputStream is) throws IOException {
+        return ClassFileAnnotationReader.readFully(is);
+    }
+
+    /**
+     * Reads and closes the index stream
+     */
+    public static List<String> read(InputStream is) throws IOException {
+        List<String> classNames = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, ENCODING));
+        try {
+            String line = reader.readLine();
+            while (line != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    classNames.add(line);
+                }
+                line = reader.readLine();
+            }
+        } finally {
+            reader.close();
+        }
+        return classNames;
+    }
+
+    /**
+     * Writes the index in sorted order. The stream is not closed.
+     */
+    public static void write(Collection<String> classNames, OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, ENCODING);
+        writer.write("# JPA annotated classes. Used by Aries JPA instead of scanning the bundle\n");
+        for (String className : new TreeSet<String>(classNames)) {
+            writer.write(className);
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+}
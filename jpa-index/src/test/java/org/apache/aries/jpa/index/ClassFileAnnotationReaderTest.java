@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.index;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.persistence.Embeddable;
+import javax.persistence.Entity;
+import javax.persistence.MappedSuperclass;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+import org.junit.Test;
+
+public class ClassFileAnnotationReaderTest {
+    private static final String PREFIX = "Ljavax/persistence/";
+    private static final Set<String> JPA = new HashSet<String>(Arrays.asList(
+        PREFIX + "Entity;", PREFIX + "MappedSuperclass;", PREFIX + "Embeddable;"));
+
+    @Test
+    public void testAnnotated() throws IOException {
+        assertTrue(isAnnotated(SimpleEntity.class));
+        assertTrue(isAnnotated(AnnotatedAfterTable.class));
+        assertTrue(isAnnotated(Base.class));
+        assertTrue(isAnnotated(Address.class));
+    }
+
+    @Test
+    public void testNotAnnotated() throws IOException {
+        assertFalse(isAnnotated(NotAnnotated.class));
+        assertFalse(isAnnotated(OnlyTable.class));
+        assertFalse(isAnnotated(ClassFileAnnotationReaderTest.class));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException {
+        byte[] classBytes = read(SimpleEntity.class);
+        byte[] truncated = Arrays.copyOf(classBytes, classBytes.length / 2);
+        ClassFileAnnotationReader.hasAnnotation(truncated, JPA, PREFIX);
+    }
+
+    private static boolean isAnnotated(Class<?> clazz) throws IOException {
+        return ClassFileAnnotationReader.hasAnnotation(read(clazz), JPA, PREFIX);
+    }
+
+    private static byte[] read(Class<?> clazz) throws IOException {
+        String resource = clazz.getName().replace('.', '/') + ".class";
+        return ClassFileAnnotationReader.readFully(clazz.getClassLoader().getResourceAsStream(resource));
+    }
+
+    @Entity
+    static class SimpleEntity {
+        long id;
+        String name;
+
+        String getName() {
+            return name;
+        }
+    }
+
+    @Table(name = "cars", uniqueConstraints = @UniqueConstraint(columnNames = {"a", "b"}))
+    @Entity
+    static class AnnotatedAfterTable implements Serializable {
+        private static final long serialVersionUID = 1L;
+        static final double RATIO = 1.5d;
+        static final long BIG = Long.MAX_VALUE;
+    }
+
+    @MappedSuperclass
+    abstract static class Base {
+    }
+
+    @Embeddable
+    static class Address {
+    }
+
+    @Table(name = "no_entity")
+    static class OnlyTable {
+    }
+
+    static class NotAnnotated {
+    }
+}
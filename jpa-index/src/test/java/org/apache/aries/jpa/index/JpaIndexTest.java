@@ -0,0 +1,47 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.index;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class JpaIndexTest {
+
+    @Test
+    public void testWriteRead() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JpaIndex.write(Arrays.asList("org.example.Person", "org.example.Car"), out);
+        List<String> classNames = JpaIndex.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(Arrays.asList("org.example.Car", "org.example.Person"), classNames);
+    }
+
+    @Test
+    public void testIgnoresCommentsAndBlankLines() throws IOException {
+        String index = "# comment\n\n  org.example.Car  \r\n#org.example.Ignored\n";
+        List<String> classNames = JpaIndex.read(new ByteArrayInputStream(index.getBytes("UTF-8")));
+        assertEquals(Arrays.asList("org.example.Car"), classNames);
+    }
+}
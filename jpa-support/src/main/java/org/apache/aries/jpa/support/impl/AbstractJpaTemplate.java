@@ -19,13 +19,37 @@
 package org.apache.aries.jpa.support.impl;
 
 import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
 
+import org.apache.aries.jpa.support.metrics.impl.JpaMetrics;
+import org.apache.aries.jpa.support.watchdog.impl.Watchdog;
 import org.apache.aries.jpa.template.EmConsumer;
 import org.apache.aries.jpa.template.EmFunction;
+import org.apache.aries.jpa.template.EmItemConsumer;
 import org.apache.aries.jpa.template.JpaTemplate;
 import org.apache.aries.jpa.template.TransactionType;
 
 public abstract class AbstractJpaTemplate implements JpaTemplate {
+    protected JpaMetrics metrics;
+    protected Watchdog watchdog;
+
+    public void setMetrics(JpaMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setWatchdog(Watchdog watchdog) {
+        this.watchdog = watchdog;
+    }
+
+    protected Watchdog.Watch watchTransaction() {
+        return watchdog != null ? watchdog.watch("Transaction") : null;
+    }
+
+    protected static void closeWatch(Watchdog.Watch watch) {
+        if (watch != null) {
+            watch.close();
+        }
+    }
 
     @Override
     public void tx(final TransactionType type, final EmConsumer code) {
@@ -48,6 +72,77 @@ public abstract class AbstractJpaTemplate implements JpaTemplate {
         tx(TransactionType.Required, code);
     }
 
+    @Override
+    public <T> void txBatch(TransactionType type, final Iterable<T> items, final int chunkSize,
+                            final EmItemConsumer<? super T> code) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1 but was " + chunkSize);
+        }
+        tx(type, new EmConsumer() {
+            @Override
+            public void accept(EntityManager em) {
+                JdbcBatchSize batchSize = JdbcBatchSize.apply(em, chunkSize);
+                try {
+                    int count = 0;
+                    for (T item : items) {
+                        code.accept(em, item);
+                        if (++count == chunkSize) {
+                            em.flush();
+                            em.clear();
+                            count = 0;
+                        }
+                    }
+                    if (count > 0) {
+                        em.flush();
+                        em.clear();
+                    }
+                } finally {
+                    if (batchSize != null) {
+                        batchSize.restore();
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public <T> void txBatch(Iterable<T> items, int chunkSize, EmItemConsumer<? super T> code) {
+        txBatch(TransactionType.Required, items, chunkSize, code);
+    }
+
+    @Override
+    public <T> void txStream(TransactionType type, final EmFunction<TypedQuery<T>> queryCode, final int chunkSize,
+                             final EmItemConsumer<? super T> code) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1 but was " + chunkSize);
+        }
+        tx(type, new EmConsumer() {
+            @Override
+            public void accept(EntityManager em) {
+                QueryCursor<T> cursor = QueryCursor.open(queryCode.apply(em), chunkSize);
+                try {
+                    int count = 0;
+                    while (cursor.hasNext()) {
+                        code.accept(em, cursor.next());
+                        if (++count == chunkSize) {
+                            em.flush();
+                            em.clear();
+                            cursor.chunkDone();
+                            count = 0;
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+    }
+
+    @Override
+    public <T> void txStream(EmFunction<TypedQuery<T>> queryCode, int chunkSize, EmItemConsumer<? super T> code) {
+        txStream(TransactionType.Required, queryCode, chunkSize, code);
+    }
+
     protected RuntimeException wrapThrowable(Throwable ex, String message) {
         if (ex instanceof RuntimeException) {
             return (RuntimeException) ex;
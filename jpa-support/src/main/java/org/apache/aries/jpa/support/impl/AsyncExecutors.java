@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.impl;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the bounded executor used by the AsyncJpaTemplate of a persistence unit.
+ *
+ * The limits are read from the persistence unit properties. On Java 21+ each task runs on
+ * its own virtual thread unless disabled, with the number of running and waiting tasks
+ * bounded like the thread pool that is used for platform threads.
+ */
+public final class AsyncExecutors {
+    public static final String ASYNC_THREADS = "org.apache.aries.jpa.async.threads";
+    public static final String ASYNC_QUEUE_SIZE = "org.apache.aries.jpa.async.queueSize";
+    public static final String ASYNC_VIRTUAL_THREADS = "org.apache.aries.jpa.async.virtualThreads";
+
+    private static final int DEFAULT_THREADS = 10;
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+    private static final long KEEP_ALIVE_SECS = 60;
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncExecutors.class);
+    private static final ThreadLocal<ExecutorService> CURRENT = new ThreadLocal<ExecutorService>();
+
+    private AsyncExecutors() {
+    }
+
+    public static ExecutorService create(String unitName, Map<String, Object> props) {
+        int threads = getInt(props, ASYNC_THREADS, DEFAULT_THREADS);
+        int queueSize = getInt(props, ASYNC_QUEUE_SIZE, DEFAULT_QUEUE_SIZE);
+        boolean virtual = !"false".equals(String.valueOf(props.get(ASYNC_VIRTUAL_THREADS)));
+        String prefix = "Aries JPA async " + unitName + " ";
+        ThreadFactory factory = virtual ? virtualThreadFactory(prefix) : null;
+        if (factory != null) {
+            return new VirtualThreadExecutor(threads, queueSize, factory);
+        }
+        ThreadPoolExecutor executor = new UnitExecutor(threads, queueSize, new PlatformThreadFactory(prefix));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return true if the current thread runs a task of executor. Such a task must not wait
+     * for other tasks of the same executor
+     */
+    public static boolean isPoolThread(ExecutorService executor) {
+        return executor != null && CURRENT.get() == executor;
+    }
+
+    private static int getInt(Map<String, Object> props, String key, int defaultValue) {
+        Object value = props.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int result = Integer.parseInt(String.valueOf(value).trim());
+            if (result > 0) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            // Handled below
+        }
+        LOG.warn("Invalid value {} for {}. Using {}", value, key, defaultValue);
+        return defaultValue;
+    }
+
+    /**
+     * @return factory for virtual threads or null if the JVM does not support them
+     */
+    private static ThreadFactory virtualThreadFactory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            LOG.debug("Virtual threads not available", e);
+            return null;
+        }
+    }
+
+    private static final class UnitExecutor extends ThreadPoolExecutor {
+        UnitExecutor(int threads, int queueSize, ThreadFactory factory) {
+            super(threads, threads, KEEP_ALIVE_SECS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueSize),
+                  factory);
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            CURRENT.set(this);
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * Starts a new virtual thread per task as virtual threads must not be pooled. The task
+     * waits for one of the running permits on its thread. Tasks beyond the running and
+     * queued limit are rejected.
+     */
+    private static final class VirtualThreadExecutor extends AbstractExecutorService {
+        private final Semaphore running;
+        private final Semaphore admitted;
+        private final ThreadFactory factory;
+        private final Set<Thread> workers = new HashSet<Thread>();
+        private boolean shutdown;
+
+        VirtualThreadExecutor(int threads, int queueSize, ThreadFactory factory) {
+            this.running = new Semaphore(threads);
+            this.admitted = new Semaphore(threads + queueSize);
+            this.factory = factory;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            if (task == null) {
+                throw new NullPointerException();
+            }
+            if (!admitted.tryAcquire()) {
+                throw new RejectedExecutionException("Too many pending tasks");
+            }
+            Thread worker = factory.newThread(new Worker(task));
+            synchronized (this) {
+                if (shutdown) {
+                    admitted.release();
+                    throw new RejectedExecutionException("Executor is shut down");
+                }
+                workers.add(worker);
+            }
+            worker.start();
+        }
+
+        private void run(Runnable task) {
+            try {
+                running.acquire();
+                try {
+                    CURRENT.set(this);
+                    task.run();
+                } finally {
+                    CURRENT.remove();
+                    running.release();
+                }
+            } catch (InterruptedException e) {
+                // Not started before shutdownNow
+                Thread.currentThread().interrupt();
+            } finally {
+                admitted.release();
+                synchronized (this) {
+                    workers.remove(Thread.currentThread());
+                    notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            shutdown = true;
+            notifyAll();
+        }
+
+        /**
+         * Interrupts the running and the waiting tasks. As every task already has its own
+         * thread there are no queued tasks to return
+         */
+        @Override
+        public synchronized List<Runnable> shutdownNow() {
+            shutdown();
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            return Collections.emptyList();
+        }
+
+        @Override
+        public synchronized boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public synchronized boolean isTerminated() {
+            return shutdown && workers.isEmpty();
+        }
+
+        @Override
+        public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isTerminated()) {
+                long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (wait <= 0) {
+                    return false;
+                }
+                wait(wait);
+            }
+            return true;
+        }
+
+        private final class Worker implements Runnable {
+            private final Runnable task;
+
+            Worker(Runnable task) {
+                this.task = task;
+            }
+
+            @Override
+            public void run() {
+                VirtualThreadExecutor.this.run(task);
+            }
+        }
+    }
+
+    private static final class PlatformThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        PlatformThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.impl;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.persistence.EntityManager;
+
+import org.apache.aries.jpa.template.AsyncCallback;
+import org.apache.aries.jpa.template.AsyncJpaTemplate;
+import org.apache.aries.jpa.template.EmConsumer;
+import org.apache.aries.jpa.template.EmFunction;
+import org.apache.aries.jpa.template.JpaTemplate;
+import org.apache.aries.jpa.template.TransactionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Submits the calls of a JpaTemplate to an executor. The template begins the
+ * coordination on the worker thread so the EntityManager lives and is closed there.
+ */
+public class AsyncJpaTemplateImpl implements AsyncJpaTemplate {
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncJpaTemplateImpl.class);
+
+    private final JpaTemplate template;
+    private final ExecutorService executor;
+
+    public AsyncJpaTemplateImpl(JpaTemplate template, ExecutorService executor) {
+        this.template = template;
+        this.executor = executor;
+    }
+
+    @Override
+    public <R> Future<R> txExprAsync(final TransactionType type, final EmFunction<R> code) {
+        return executor.submit(new Callable<R>() {
+            @Override
+            public R call() {
+                return template.txExpr(type, code);
+            }
+        });
+    }
+
+    @Override
+    public Future<?> txAsync(final TransactionType type, final EmConsumer code) {
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                template.tx(type, code);
+            }
+        });
+    }
+
+    @Override
+    public <R> Future<R> txExprAsync(EmFunction<R> code) {
+        return txExprAsync(TransactionType.Required, code);
+    }
+
+    @Override
+    public Future<?> txAsync(EmConsumer code) {
+        return txAsync(TransactionType.Required, code);
+    }
+
+    @Override
+    public <R> Future<R> txExprAsync(final TransactionType type, final EmFunction<R> code,
+                                     final AsyncCallback<? super R> callback) {
+        return executor.submit(new Callable<R>() {
+            @Override
+            public R call() {
+                R result;
+                try {
+                    result = template.txExpr(type, code);
+                } catch (RuntimeException e) {
+                    failed(callback, e);
+                    throw e;
+                } catch (Error e) {
+                    failed(callback, e);
+                    throw e;
+                }
+                completed(callback, result);
+                return result;
+            }
+        });
+    }
+
+    @Override
+    public Future<?> txAsync(final TransactionType type, final EmConsumer code,
+                             final AsyncCallback<? super Void> callback) {
+        return txExprAsync(type, new EmFunction<Void>() {
+            @Override
+            public Void apply(EntityManager em) {
+                code.accept(em);
+                return null;
+            }
+        }, callback);
+    }
+
+    private static <R> void completed(AsyncCallback<? super R> callback, R result) {
+        try {
+            callback.completed(result);
+        } catch (RuntimeException e) {
+            LOG.warn("Exception in callback of asynchronous JPA call", e);
+        }
+    }
+
+    private static void failed(AsyncCallback<?> callback, Throwable cause) {
+        try {
+            callback.failed(cause);
+        } catch (RuntimeException e) {
+            LOG.warn("Exception in callback of asynchronous JPA call", e);
+        }
+    }
+}
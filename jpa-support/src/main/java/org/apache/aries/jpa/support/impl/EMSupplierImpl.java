@@ -35,6 +35,8 @@ import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 
 import org.apache.aries.jpa.supplier.EmSupplier;
+import org.apache.aries.jpa.support.metrics.impl.JpaMetrics;
+import org.apache.aries.jpa.support.watchdog.impl.Watchdog;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.FrameworkUtil;
@@ -64,9 +66,25 @@ public class EMSupplierImpl implements EmSupplier {
     private Coordinator coordinator;
     private String unitName;
     private ServiceTracker<TransactionManager, TransactionManager> tmTracker;
+    private final int slotIndex;
+    private final AtomicBoolean slotReleased = new AtomicBoolean(false);
+    private JpaMetrics metrics;
+    private Watchdog watchdog;
+
+    /**
+     * Last coordination seen on the thread and the slots of its top coordination.
+     * Saves walking the coordination stack for every call in the same coordination.
+     */
+    private static final ThreadLocal<CachedSlots> CACHED_SLOTS = new ThreadLocal<CachedSlots>() {
+        @Override
+        protected CachedSlots initialValue() {
+            return new CachedSlots();
+        }
+    };
 
     public EMSupplierImpl(String unitName, final EntityManagerFactory emf, Coordinator coordinator) {
         this.unitName = unitName;
+        this.slotIndex = EmSlots.allocateIndex();
         this.emf = emf;
         this.coordinator = coordinator;
         this.shutdown = new AtomicBoolean(false);
@@ -87,49 +105,98 @@ public class EMSupplierImpl implements EmSupplier {
     private EntityManager createEm(EntityManagerFactory emf) {
         EntityManager em = emf.createEntityManager();
         emSet.add(em);
+        if (metrics != null) {
+            metrics.emCreated();
+        }
         return em;
     }
 
+    public void setMetrics(JpaMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setWatchdog(Watchdog watchdog) {
+        this.watchdog = watchdog;
+    }
+
     /**
      * Allows to retrieve one EntityManager per thread. Creates the EntityManager if none is present for the
      * thread. If the EM on the thread is closed it will be replaced by a fresh one.
      */
     @Override
     public EntityManager get() {
-        Coordination coordination = getTopCoordination();
-        if (coordination == null) {
+        Coordination current = coordinator.peek();
+        if (current == null) {
             throw new IllegalStateException("Need active coordination");
         }
-        EntityManager em = getEm(coordination);
-        if (em == null) {
+        EmSlots slots = getSlots(current);
+        EmSlots.Slot slot = slots.get(slotIndex, this);
+        if (slot == null) {
+            Coordination coordination = slots.getCoordination();
             LOG.debug("Creating EntityManager for persistence unit " + unitName + ", coordination " + coordination.getName());
-            em = createEm(emf);
-            emSet.add(em);
+            EntityManager em = createEm(emf);
+            slots.put(slotIndex, new EmSlots.Slot(this, em));
             setEm(coordination, em);
-            coordination.addParticipant(new EmShutDownParticipant());
+            Watchdog.Watch watch = watchdog != null ? watchdog.watch("EntityManager") : null;
+            coordination.addParticipant(new EmShutDownParticipant(watch));
+            return em;
         }
-        else if (tmTracker != null) {
-            TransactionManager tm = tmTracker.getService();
-            if (tm == null) {
-                LOG.warn("Transaction manager is not available.");
-                return em;
-            }
-            try {
-                final Transaction transaction = tm.getTransaction();
-                if (transaction != null && transaction.getStatus() == Status.STATUS_ACTIVE) {
-                    em.joinTransaction();
-                }
+        if (tmTracker != null) {
+            joinTransaction(slot);
+        }
+        return slot.em;
+    }
+
+    /**
+     * @return true if an EntityManager was already created in the current top coordination
+     */
+    public boolean hasEntityManager() {
+        Coordination current = coordinator.peek();
+        return current != null && getSlots(current).get(slotIndex, this) != null;
+    }
+
+    /**
+     * Joins the active transaction unless the EntityManager was already joined to it
+     */
+    private void joinTransaction(EmSlots.Slot slot) {
+        TransactionManager tm = tmTracker.getService();
+        if (tm == null) {
+            LOG.warn("Transaction manager is not available.");
+            return;
+        }
+        try {
+            final Transaction transaction = tm.getTransaction();
+            if (transaction == null || transaction == slot.joined) {
+                return;
             }
-            catch( SystemException se ) {
-                throw new IllegalStateException("Unable to check transaction status and join the transaction", se);
+            if (transaction.getStatus() == Status.STATUS_ACTIVE) {
+                slot.em.joinTransaction();
+                slot.joined = transaction;
             }
         }
-        return em;
+        catch( SystemException se ) {
+            throw new IllegalStateException("Unable to check transaction status and join the transaction", se);
+        }
+    }
+
+    private EmSlots getSlots(Coordination current) {
+        CachedSlots cached = CACHED_SLOTS.get();
+        if (cached.current == current) {
+            return cached.slots;
+        }
+        EmSlots slots = EmSlots.forCoordination(getTopCoordination(current));
+        cached.current = current;
+        cached.slots = slots;
+        return slots;
     }
 
     Coordination getTopCoordination() {
+        return getTopCoordination(coordinator.peek());
+    }
+
+    private static Coordination getTopCoordination(Coordination current) {
         // In normal situation, There should be TxInterceptor and JpaInterceptor
-        Coordination coordination = coordinator.peek();
+        Coordination coordination = current;
         while (coordination != null && coordination.getEnclosingCoordination() != null) {
             coordination = coordination.getEnclosingCoordination();
             if (coordination != null) {
@@ -153,19 +220,14 @@ public class EMSupplierImpl implements EmSupplier {
         }
     }
 
-    /**
-     * Get EntityManager from outer most Coordination that holds an EM
-     * @param coordination
-     * @return
-     */
-    private EntityManager getEm(Coordination coordination) {
-        Map<Class<?>, Object> vars = coordination.getVariables();
-        synchronized (vars) {
-            return getEmMap(coordination).get(unitName);
-        }
-    }
-
     private EntityManager removeEm(Coordination coordination) {
+        EmSlots slots = EmSlots.forCoordination(coordination);
+        slots.remove(slotIndex, this);
+        CachedSlots cached = CACHED_SLOTS.get();
+        if (cached.slots == slots) {
+            cached.current = null;
+            cached.slots = null;
+        }
         Map<Class<?>, Object> vars = coordination.getVariables();
         synchronized (vars) {
             return getEmMap(coordination).remove(unitName);
@@ -203,6 +265,9 @@ public class EMSupplierImpl implements EmSupplier {
         if (tmTracker != null) {
             tmTracker.close();
         }
+        if (slotReleased.compareAndSet(false, true)) {
+            EmSlots.releaseIndex(slotIndex);
+        }
         synchronized (this) {
             shutdown.set(true);
             emsToShutDown = new CountDownLatch(emSet.size());
@@ -222,6 +287,9 @@ public class EMSupplierImpl implements EmSupplier {
         }
         for (EntityManager em : emSet) {
             closeEm(em);
+            if (metrics != null) {
+                metrics.emClosed();
+            }
         }
         emSet.clear();
         return clean;
@@ -242,7 +310,18 @@ public class EMSupplierImpl implements EmSupplier {
         this.shutdownWaitTimeUnit = shutdownWaitTimeUnit;
     }
 
+    private static final class CachedSlots {
+        Coordination current;
+        EmSlots slots;
+    }
+
     private final class EmShutDownParticipant implements Participant {
+        private final Watchdog.Watch watch;
+
+        EmShutDownParticipant(Watchdog.Watch watch) {
+            this.watch = watch;
+        }
+
         @Override
         public void failed(Coordination coordination) throws Exception {
             LOG.debug("Coordination failed " + coordination.getName(), coordination.getFailure());
@@ -252,9 +331,15 @@ public class EMSupplierImpl implements EmSupplier {
         @Override
         public void ended(Coordination coordination) throws Exception {
             LOG.debug("Closing EntityManager for persistence unit " + unitName + " as coordination " + coordination.getName() + " ended.");
+            if (watch != null) {
+                watch.close();
+            }
             EntityManager em = removeEm(coordination);
-            emSet.remove(em);
+            boolean open = emSet.remove(em);
             em.close();
+            if (metrics != null && open) {
+                metrics.emClosed();
+            }
 
             if (shutdown.get()) {
                 emsToShutDown.countDown();
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.impl;
+
+import java.util.BitSet;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.transaction.Transaction;
+
+import org.osgi.service.coordinator.Coordination;
+
+/**
+ * EntityManagers bound to one coordination, indexed by the slot index of
+ * the EmSupplier that created them.
+ *
+ * The slots are attached once to the coordination variables so that repeated
+ * lookups do not need to synchronize on the variables map or hash the unit name.
+ */
+class EmSlots {
+    private static final BitSet USED_INDEXES = new BitSet();
+
+    private final Coordination coordination;
+    private volatile Slot[] slots = new Slot[4];
+
+    private EmSlots(Coordination coordination) {
+        this.coordination = coordination;
+    }
+
+    static int allocateIndex() {
+        synchronized (USED_INDEXES) {
+            int index = USED_INDEXES.nextClearBit(0);
+            USED_INDEXES.set(index);
+            return index;
+        }
+    }
+
+    static void releaseIndex(int index) {
+        synchronized (USED_INDEXES) {
+            USED_INDEXES.clear(index);
+        }
+    }
+
+    /**
+     * Get the slots of the coordination, attaching them on first use
+     */
+    static EmSlots forCoordination(Coordination coordination) {
+        Map<Class<?>, Object> vars = coordination.getVariables();
+        synchronized (vars) {
+            EmSlots emSlots = (EmSlots)vars.get(EmSlots.class);
+            if (emSlots == null) {
+                emSlots = new EmSlots(coordination);
+                vars.put(EmSlots.class, emSlots);
+            }
+            return emSlots;
+        }
+    }
+
+    Coordination getCoordination() {
+        return coordination;
+    }
+
+    /**
+     * @return slot at index if it was filled by the given owner, else null
+     */
+    Slot get(int index, Object owner) {
+        Slot[] current = slots;
+        if (index >= current.length) {
+            return null;
+        }
+        Slot slot = current[index];
+        return slot != null && slot.owner == owner ? slot : null;
+    }
+
+    synchronized void put(int index, Slot slot) {
+        Slot[] current = slots;
+        if (index >= current.length) {
+            Slot[] grown = new Slot[Math.max(index + 1, current.length * 2)];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            current = grown;
+        }
+        current[index] = slot;
+        slots = current;
+    }
+
+    synchronized Slot remove(int index, Object owner) {
+        Slot slot = get(index, owner);
+        if (slot != null) {
+            slots[index] = null;
+        }
+        return slot;
+    }
+
+    static final class Slot {
+        final Object owner;
+        final EntityManager em;
+        /**
+         * Last transaction the EntityManager was joined to
+         */
+        Transaction joined;
+
+        Slot(Object owner, EntityManager em) {
+            this.owner = owner;
+            this.em = em;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.impl;
+
+import java.lang.reflect.Method;
+
+import javax.persistence.EntityManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sets the JDBC batch size of an EntityManager for the duration of a batch.
+ *
+ * JPA has no standard way to do this per EntityManager. Hibernate 5.2+ sessions
+ * offer get/setJdbcBatchSize which is called reflectively. For other providers
+ * the batch size has to be configured in the persistence unit.
+ */
+final class JdbcBatchSize {
+    private static final Logger LOG = LoggerFactory.getLogger(JdbcBatchSize.class);
+
+    private final Object session;
+    private final Method setter;
+    private final Object oldSize;
+
+    private JdbcBatchSize(Object session, Method setter, Object oldSize) {
+        this.session = session;
+        this.setter = setter;
+        this.oldSize = oldSize;
+    }
+
+    /**
+     * @return handle to restore the previous size or null if the provider does not support it
+     */
+    static JdbcBatchSize apply(EntityManager em, int size) {
+        try {
+            Object session = em.getDelegate();
+            if (session == null) {
+                return null;
+            }
+            Method getter = session.getClass().getMethod("getJdbcBatchSize");
+            Method setter = session.getClass().getMethod("setJdbcBatchSize", Integer.class);
+            Object oldSize = getter.invoke(session);
+            setter.invoke(session, size);
+            return new JdbcBatchSize(session, setter, oldSize);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (Exception e) {
+            LOG.debug("Unable to set JDBC batch size", e);
+            return null;
+        }
+    }
+
+    void restore() {
+        try {
+            setter.invoke(session, oldSize);
+        } catch (Exception e) {
+            LOG.debug("Unable to restore JDBC batch size", e);
+        }
+    }
+}
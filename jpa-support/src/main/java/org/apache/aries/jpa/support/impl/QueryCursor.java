@@ -0,0 +1,350 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.impl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.persistence.PersistenceException;
+import javax.persistence.TypedQuery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Iterates over query results without materializing the whole result list.
+ *
+ * Uses the native cursor support of the provider where known (Hibernate ScrollableResults,
+ * EclipseLink CursoredStream), then JPA 2.2 getResultStream if the API offers it. As last
+ * resort the results are read page by page using firstResult and maxResults. This is only
+ * stable if the query defines an order.
+ */
+abstract class QueryCursor<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(QueryCursor.class);
+    private static final String HIBERNATE_FETCH_SIZE = "org.hibernate.fetchSize";
+    private static final String ECLIPSELINK_CURSOR = "eclipselink.cursor";
+    private static final String ECLIPSELINK_FETCH_SIZE = "eclipselink.jdbc.fetch-size";
+
+    abstract boolean hasNext();
+
+    abstract T next();
+
+    /**
+     * Called when a chunk of results was processed and the EntityManager was cleared
+     */
+    void chunkDone() {
+        // Nothing to release by default
+    }
+
+    abstract void close();
+
+    static <T> QueryCursor<T> open(TypedQuery<T> query, int fetchSize) {
+        String queryClass = query.getClass().getName();
+        try {
+            if (queryClass.startsWith("org.hibernate.")) {
+                QueryCursor<T> cursor = HibernateCursor.open(query, fetchSize);
+                if (cursor != null) {
+                    return cursor;
+                }
+            } else if (queryClass.startsWith("org.eclipse.persistence.")) {
+                return EclipseLinkCursor.open(query, fetchSize);
+            }
+            Method getResultStream = findPublicMethod(TypedQuery.class, "getResultStream");
+            if (getResultStream != null) {
+                return StreamCursor.open(query, getResultStream);
+            }
+        } catch (InvocationTargetException e) {
+            throw unwrap(e);
+        } catch (IllegalAccessException e) {
+            LOG.debug("Unable to open provider cursor. Falling back to paging", e);
+        }
+        return new PagingCursor<T>(query, fetchSize);
+    }
+
+    /**
+     * Finds method on a public class or interface of the given type so it can be invoked
+     * even if the implementation class itself is not public.
+     */
+    static Method findPublicMethod(Class<?> type, String name, Class<?>... params) {
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            Method method = findPublicMethodInHierarchy(current, name, params);
+            if (method != null) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    private static Method findPublicMethodInHierarchy(Class<?> type, String name, Class<?>... params) {
+        if (Modifier.isPublic(type.getModifiers())) {
+            try {
+                return type.getDeclaredMethod(name, params);
+            } catch (NoSuchMethodException e) {
+                // Check interfaces
+            }
+        }
+        for (Class<?> iface : type.getInterfaces()) {
+            Method method = findPublicMethodInHierarchy(iface, name, params);
+            if (method != null) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    static RuntimeException unwrap(InvocationTargetException e) {
+        Throwable cause = e.getTargetException();
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException)cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error)cause;
+        }
+        return new PersistenceException(cause);
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw unwrap(e);
+        } catch (IllegalAccessException e) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    /**
+     * Hibernate ScrollableResults in FORWARD_ONLY mode
+     */
+    static final class HibernateCursor<T> extends QueryCursor<T> {
+        private final Object results;
+        private final Method nextMethod;
+        private final Method getMethod;
+        private final Method closeMethod;
+        private Boolean hasNext;
+
+        private HibernateCursor(Object results, Method nextMethod, Method getMethod, Method closeMethod) {
+            this.results = results;
+            this.nextMethod = nextMethod;
+            this.getMethod = getMethod;
+            this.closeMethod = closeMethod;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        static <T> QueryCursor<T> open(TypedQuery<T> query, int fetchSize) throws IllegalAccessException, InvocationTargetException {
+            Object hibernateQuery = query;
+            Method getHibernateQuery = findPublicMethod(query.getClass(), "getHibernateQuery");
+            if (getHibernateQuery != null) {
+                hibernateQuery = getHibernateQuery.invoke(query);
+            }
+            Method scroll = null;
+            for (Method method : hibernateQuery.getClass().getMethods()) {
+                Class<?>[] params = method.getParameterTypes();
+                if ("scroll".equals(method.getName()) && params.length == 1
+                    && "org.hibernate.ScrollMode".equals(params[0].getName())) {
+                    scroll = findPublicMethod(hibernateQuery.getClass(), "scroll", params[0]);
+                    break;
+                }
+            }
+            if (scroll == null) {
+                return null;
+            }
+            query.setHint(HIBERNATE_FETCH_SIZE, fetchSize);
+            Object forwardOnly = Enum.valueOf((Class<Enum>)scroll.getParameterTypes()[0], "FORWARD_ONLY");
+            Object results = scroll.invoke(hibernateQuery, forwardOnly);
+            Class<?> resultsClass = results.getClass();
+            return new HibernateCursor<T>(results,
+                                          findPublicMethod(resultsClass, "next"),
+                                          findPublicMethod(resultsClass, "get"),
+                                          findPublicMethod(resultsClass, "close"));
+        }
+
+        @Override
+        boolean hasNext() {
+            if (hasNext == null) {
+                hasNext = (Boolean)invoke(nextMethod, results);
+            }
+            return hasNext;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            hasNext = null;
+            Object row = invoke(getMethod, results);
+            if (row instanceof Object[] && ((Object[])row).length == 1) {
+                // Hibernate before 6 returns each row as array even for single selections
+                return (T)((Object[])row)[0];
+            }
+            return (T)row;
+        }
+
+        @Override
+        void close() {
+            invoke(closeMethod, results);
+        }
+    }
+
+    /**
+     * EclipseLink CursoredStream requested with the eclipselink.cursor hint
+     */
+    static final class EclipseLinkCursor<T> extends QueryCursor<T> {
+        private final Iterator<T> cursor;
+        private final Method clearMethod;
+        private final Method closeMethod;
+
+        private EclipseLinkCursor(Iterator<T> cursor, Method clearMethod, Method closeMethod) {
+            this.cursor = cursor;
+            this.clearMethod = clearMethod;
+            this.closeMethod = closeMethod;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <T> QueryCursor<T> open(TypedQuery<T> query, int fetchSize) {
+            query.setHint(ECLIPSELINK_CURSOR, Boolean.TRUE);
+            query.setHint(ECLIPSELINK_FETCH_SIZE, fetchSize);
+            Object cursor = query.getSingleResult();
+            Class<?> cursorClass = cursor.getClass();
+            return new EclipseLinkCursor<T>((Iterator<T>)cursor,
+                                            findPublicMethod(cursorClass, "clear"),
+                                            findPublicMethod(cursorClass, "close"));
+        }
+
+        @Override
+        boolean hasNext() {
+            return cursor.hasNext();
+        }
+
+        @Override
+        T next() {
+            return cursor.next();
+        }
+
+        @Override
+        void chunkDone() {
+            if (clearMethod != null) {
+                // Releases the objects the stream keeps for read-ahead
+                invoke(clearMethod, cursor);
+            }
+        }
+
+        @Override
+        void close() {
+            invoke(closeMethod, cursor);
+        }
+    }
+
+    /**
+     * JPA 2.2 TypedQuery.getResultStream()
+     */
+    static final class StreamCursor<T> extends QueryCursor<T> {
+        private final Object stream;
+        private final Iterator<T> iterator;
+        private final Method closeMethod;
+
+        private StreamCursor(Object stream, Iterator<T> iterator, Method closeMethod) {
+            this.stream = stream;
+            this.iterator = iterator;
+            this.closeMethod = closeMethod;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <T> QueryCursor<T> open(TypedQuery<T> query, Method getResultStream) {
+            Object stream = invoke(getResultStream, query);
+            Method iteratorMethod = findPublicMethod(stream.getClass(), "iterator");
+            Method closeMethod = findPublicMethod(stream.getClass(), "close");
+            return new StreamCursor<T>(stream, (Iterator<T>)invoke(iteratorMethod, stream), closeMethod);
+        }
+
+        @Override
+        boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        T next() {
+            return iterator.next();
+        }
+
+        @Override
+        void close() {
+            invoke(closeMethod, stream);
+        }
+    }
+
+    /**
+     * Reads the results page by page. Respects firstResult and maxResults set on the query.
+     */
+    static final class PagingCursor<T> extends QueryCursor<T> {
+        private final TypedQuery<T> query;
+        private final int pageSize;
+        private final int maxResults;
+        private int position;
+        private int read;
+        private List<T> page;
+        private int pageIndex;
+        private boolean lastPage;
+
+        PagingCursor(TypedQuery<T> query, int pageSize) {
+            this.query = query;
+            this.pageSize = pageSize;
+            this.position = query.getFirstResult();
+            this.maxResults = query.getMaxResults();
+        }
+
+        @Override
+        boolean hasNext() {
+            if (page != null && pageIndex < page.size()) {
+                return true;
+            }
+            if (lastPage || read >= maxResults) {
+                return false;
+            }
+            int size = Math.min(pageSize, maxResults - read);
+            query.setFirstResult(position);
+            query.setMaxResults(size);
+            page = query.getResultList();
+            pageIndex = 0;
+            position += page.size();
+            lastPage = page.size() < size;
+            return !page.isEmpty();
+        }
+
+        @Override
+        T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            read++;
+            return page.get(pageIndex++);
+        }
+
+        @Override
+        void close() {
+            page = null;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.impl;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Selects the read replica of a persistence unit for read only calls.
+ *
+ * A replica is chosen round robin or by the least number of calls in flight. Once a thread
+ * completed a transaction on the primary its reads stay on the primary for the configured
+ * time so it reads its own writes even if the replicas lag behind.
+ */
+public final class ReplicaRouter {
+    /**
+     * Service property of a read replica EntityManagerFactory
+     */
+    public static final String REPLICA = "org.apache.aries.jpa.replica";
+    /**
+     * Service property with the unit name of a replica or shard EntityManagerFactory. Members carry
+     * no osgi.unit.name so plain EntityManagerFactory consumers do not bind to them
+     */
+    public static final String MEMBER_UNIT_NAME = "org.apache.aries.jpa.member.unitName";
+    /**
+     * roundRobin (default) or leastLoaded
+     */
+    public static final String SELECTION = "org.apache.aries.jpa.replica.selection";
+    /**
+     * Milliseconds after a write on a thread during which its reads use the primary
+     */
+    public static final String READ_YOUR_WRITES = "org.apache.aries.jpa.replica.readYourWrites";
+
+    static final String LEAST_LOADED = "leastLoaded";
+    private static final long DEFAULT_READ_YOUR_WRITES = 1000;
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicaRouter.class);
+
+    private volatile Replica[] replicas = new Replica[0];
+    private final AtomicInteger next = new AtomicInteger();
+    private final ThreadLocal<Long> lastWrite = new ThreadLocal<Long>();
+    private final ThreadLocal<Transaction> watchedTransaction = new ThreadLocal<Transaction>();
+    private volatile boolean leastLoaded;
+    private volatile long readYourWritesNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_READ_YOUR_WRITES);
+
+    public void configure(Map<String, Object> props) {
+        leastLoaded = LEAST_LOADED.equals(String.valueOf(props.get(SELECTION)).trim());
+        Object value = props.get(READ_YOUR_WRITES);
+        long millis = DEFAULT_READ_YOUR_WRITES;
+        if (value != null) {
+            try {
+                millis = Long.parseLong(String.valueOf(value).trim());
+            } catch (NumberFormatException e) {
+                LOG.warn("Invalid value {} for {}. Using {}", value, READ_YOUR_WRITES, DEFAULT_READ_YOUR_WRITES);
+            }
+        }
+        readYourWritesNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public synchronized void addReplica(EMSupplierImpl emSupplier) {
+        Replica[] newReplicas = Arrays.copyOf(replicas, replicas.length + 1);
+        newReplicas[replicas.length] = new Replica(emSupplier);
+        replicas = newReplicas;
+    }
+
+    public synchronized void removeReplica(EMSupplierImpl emSupplier) {
+        for (int c = 0; c < replicas.length; c++) {
+            if (replicas[c].emSupplier == emSupplier) {
+                Replica[] newReplicas = new Replica[replicas.length - 1];
+                System.arraycopy(replicas, 0, newReplicas, 0, c);
+                System.arraycopy(replicas, c + 1, newReplicas, c, newReplicas.length - c);
+                replicas = newReplicas;
+                return;
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return replicas.length == 0;
+    }
+
+    /**
+     * A replica already used in the current coordination is kept so a unit of work sees
+     * one consistent replica.
+     * 
+     * @return the replica to use with one call counted in flight or null if the primary
+     * has to be used
+     */
+    public Replica acquire() {
+        Replica[] current = replicas;
+        if (current.length == 0 || readsOwnWrites()) {
+            return null;
+        }
+        Replica selected = null;
+        for (Replica replica : current) {
+            if (replica.emSupplier.hasEntityManager()) {
+                selected = replica;
+                break;
+            }
+        }
+        if (selected == null) {
+            selected = leastLoaded ? leastLoaded(current) : current[(next.getAndIncrement() & Integer.MAX_VALUE) % current.length];
+        }
+        selected.inFlight.incrementAndGet();
+        return selected;
+    }
+
+    private static Replica leastLoaded(Replica[] current) {
+        Replica selected = current[0];
+        for (int c = 1; c < current.length; c++) {
+            if (current[c].inFlight.get() < selected.inFlight.get()) {
+                selected = current[c];
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Called when the thread joins the primary to a transaction. The read your writes
+     * window starts when the transaction commits, so reads right after a long transaction
+     * do not go to a replica that has not seen its writes yet.
+     */
+    public void writeJoined(final Transaction tran) {
+        if (tran == null || watchedTransaction.get() == tran) {
+            return;
+        }
+        try {
+            tran.registerSynchronization(new Synchronization() {
+                @Override
+                public void beforeCompletion() {
+                    // Only the outcome matters
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    if (watchedTransaction.get() == tran) {
+                        watchedTransaction.remove();
+                    }
+                    if (status == Status.STATUS_COMMITTED) {
+                        writeCompleted();
+                    }
+                }
+            });
+            watchedTransaction.set(tran);
+        } catch (Exception e) {
+            LOG.debug("Unable to watch the completion of transaction " + tran, e);
+        }
+    }
+
+    /**
+     * Called after the thread committed a transaction on the primary
+     */
+    public void writeCompleted() {
+        if (readYourWritesNanos > 0) {
+            lastWrite.set(System.nanoTime());
+        }
+    }
+
+    private boolean readsOwnWrites() {
+        Long last = lastWrite.get();
+        if (last == null) {
+            return false;
+        }
+        if (System.nanoTime() - last < readYourWritesNanos) {
+            return true;
+        }
+        lastWrite.remove();
+        return false;
+    }
+
+    public static final class Replica {
+        final EMSupplierImpl emSupplier;
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        Replica(EMSupplierImpl emSupplier) {
+            this.emSupplier = emSupplier;
+        }
+
+        public EntityManager get() {
+            return emSupplier.get();
+        }
+
+        public void release() {
+            inFlight.decrementAndGet();
+        }
+    }
+}
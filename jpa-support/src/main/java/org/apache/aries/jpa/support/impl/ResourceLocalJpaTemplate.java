@@ -21,6 +21,7 @@ package org.apache.aries.jpa.support.impl;
 import javax.persistence.EntityManager;
 
 import org.apache.aries.jpa.supplier.EmSupplier;
+import org.apache.aries.jpa.support.watchdog.impl.Watchdog;
 import org.apache.aries.jpa.template.EmFunction;
 import org.apache.aries.jpa.template.TransactionType;
 import org.osgi.service.coordinator.Coordination;
@@ -42,27 +43,46 @@ public class ResourceLocalJpaTemplate extends AbstractJpaTemplate {
     public <R> R txExpr(TransactionType type, EmFunction<R> code) {
         EntityManager em = null;
         boolean weControlTx = false;
+        Watchdog.Watch watch = null;
         if (type != TransactionType.Required) {
             throw new IllegalStateException("Only transation propagation type REQUIRED is supported");
         }
+        long start = metrics != null ? System.nanoTime() : 0;
         Coordination coord = coordinator.begin(this.getClass().getName(), 0);
         try {
             em = emSupplier.get();
             weControlTx = !em.getTransaction().isActive();
             if (weControlTx) {
                 em.getTransaction().begin();
+                if (metrics != null) {
+                    metrics.txBegun(type);
+                }
+                watch = watchTransaction();
             }
             R result = (R)code.apply(em);
             if (weControlTx) {
                 em.getTransaction().commit();
             }
+            if (metrics != null) {
+                if (weControlTx) {
+                    metrics.txCommitted(type);
+                }
+                metrics.callCompleted(type, System.nanoTime() - start, false);
+            }
             return result;
         } catch (Exception e) {
             if (weControlTx) {
                 safeRollback(em);
             }
+            if (metrics != null) {
+                if (weControlTx) {
+                    metrics.txRolledBack(type, e);
+                }
+                metrics.callCompleted(type, System.nanoTime() - start, true);
+            }
             throw wrapThrowable(e, "Exception occured in transactional code");
         } finally {
+            closeWatch(watch);
             coord.end();
         }
     }
@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.transaction.TransactionManager;
+
+import org.apache.aries.jpa.supplier.EmSupplier;
+import org.apache.aries.jpa.support.metrics.impl.JpaMetrics;
+import org.apache.aries.jpa.support.watchdog.impl.Watchdog;
+import org.apache.aries.jpa.template.EmFunction;
+import org.apache.aries.jpa.template.JpaTemplate;
+import org.apache.aries.jpa.template.ShardedJpaTemplate;
+import org.apache.aries.jpa.template.TransactionType;
+import org.osgi.service.coordinator.Coordinator;
+
+/**
+ * Creates an XAJpaTemplate per shard if a TransactionManager is given, else a
+ * ResourceLocalJpaTemplate.
+ */
+public class ShardedJpaTemplateImpl implements ShardedJpaTemplate {
+    private final Shards shards;
+    private final TransactionManager tm;
+    private final Coordinator coordinator;
+    private final ExecutorService executor;
+    private JpaMetrics metrics;
+    private Watchdog watchdog;
+
+    public ShardedJpaTemplateImpl(Shards shards, TransactionManager tm, Coordinator coordinator,
+                                  ExecutorService executor) {
+        this.shards = shards;
+        this.tm = tm;
+        this.coordinator = coordinator;
+        this.executor = executor;
+    }
+
+    public void setMetrics(JpaMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setWatchdog(Watchdog watchdog) {
+        this.watchdog = watchdog;
+    }
+
+    @Override
+    public List<String> getShardIds() {
+        return shards.getShardIds();
+    }
+
+    @Override
+    public JpaTemplate forKey(Object shardKey) {
+        return createTemplate(getRoutedEmSupplier(shardKey));
+    }
+
+    @Override
+    public JpaTemplate forShard(String shardId) {
+        return createTemplate(getEmSupplier(shardId));
+    }
+
+    private JpaTemplate createTemplate(EMSupplierImpl emSupplier) {
+        AbstractJpaTemplate template = tm != null ? new XAJpaTemplate(emSupplier, tm, coordinator)
+            : new ResourceLocalJpaTemplate(emSupplier, coordinator);
+        template.setMetrics(metrics);
+        template.setWatchdog(watchdog);
+        return template;
+    }
+
+    @Override
+    public EmSupplier emSupplier(Object shardKey) {
+        return getRoutedEmSupplier(shardKey);
+    }
+
+    /**
+     * A key is never moved to another shard while its shard is unavailable
+     */
+    private EMSupplierImpl getRoutedEmSupplier(Object shardKey) {
+        String shardId = shards.route(shardKey);
+        EMSupplierImpl emSupplier = shards.get(shardId);
+        if (emSupplier == null) {
+            throw new IllegalStateException("Shard " + shardId + " for key " + shardKey + " is not available");
+        }
+        return emSupplier;
+    }
+
+    private EMSupplierImpl getEmSupplier(String shardId) {
+        EMSupplierImpl emSupplier = shards.get(shardId);
+        if (emSupplier == null) {
+            throw new IllegalArgumentException("Shard " + shardId + " is not available");
+        }
+        return emSupplier;
+    }
+
+    /**
+     * On a thread of the executor the shards run one after the other as waiting for other
+     * tasks of a saturated executor would deadlock.
+     */
+    @Override
+    public <R> List<R> txExprAll(final TransactionType type, final EmFunction<R> code) {
+        List<String> shardIds = shards.getShardIds();
+        List<JpaTemplate> templates = new ArrayList<JpaTemplate>(shardIds.size());
+        for (String shardId : shardIds) {
+            templates.add(forShard(shardId));
+        }
+        boolean inPool = AsyncExecutors.isPoolThread(executor);
+        final AtomicBoolean aborted = new AtomicBoolean();
+        List<Future<R>> futures = new ArrayList<Future<R>>(templates.size());
+        for (final JpaTemplate template : templates) {
+            Callable<R> call = new Callable<R>() {
+                @Override
+                public R call() {
+                    if (aborted.get()) {
+                        return null;
+                    }
+                    return template.txExpr(type, code);
+                }
+            };
+            if (inPool) {
+                FutureTask<R> task = new FutureTask<R>(call);
+                task.run();
+                futures.add(task);
+                continue;
+            }
+            try {
+                futures.add(executor.submit(call));
+            } catch (RejectedExecutionException e) {
+                // Do not start the queued shards but let the running ones complete before failing
+                aborted.set(true);
+                awaitAll(futures);
+                throw e;
+            }
+        }
+        return getAll(futures);
+    }
+
+    private static void awaitAll(List<? extends Future<?>> futures) {
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for all shards so no code is still running when the first failure is thrown
+     */
+    private static <R> List<R> getAll(List<Future<R>> futures) {
+        List<R> results = new ArrayList<R>(futures.size());
+        Throwable failure = null;
+        boolean interrupted = false;
+        for (Future<R> future : futures) {
+            while (true) {
+                try {
+                    results.add(future.get());
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new RuntimeException("Exception occured in transactional code", failure);
+        }
+        return results;
+    }
+
+    @Override
+    public <T> List<T> queryAll(TransactionType type, EmFunction<? extends Collection<T>> code) {
+        List<T> merged = new ArrayList<T>();
+        for (Collection<T> shardResults : txExprAll(type, code)) {
+            if (shardResults != null) {
+                merged.addAll(shardResults);
+            }
+        }
+        return merged;
+    }
+
+    @Override
+    public <T> List<T> queryAll(TransactionType type, EmFunction<? extends Collection<T>> code,
+                                Comparator<? super T> order) {
+        List<T> merged = queryAll(type, code);
+        Collections.sort(merged, order);
+        return merged;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.aries.jpa.template.ShardRouter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The currently available shards of a persistence unit ordered by shard id.
+ * Keys are routed over the configured shard ids so a key keeps its shard while
+ * shards come and go.
+ */
+public final class Shards {
+    private static final Logger LOG = LoggerFactory.getLogger(Shards.class);
+
+    /**
+     * Service property of a shard EntityManagerFactory with the id of the shard
+     */
+    public static final String SHARD = "org.apache.aries.jpa.shard";
+    /**
+     * Unit property that enables sharding for the unit
+     */
+    public static final String SHARD_DATA_SOURCE = "org.apache.aries.jpa.shard.dataSource";
+    /**
+     * Unit property with the comma separated ids of all shards of the unit. Required for
+     * routing by shard key
+     */
+    public static final String SHARD_IDS = "org.apache.aries.jpa.shard.ids";
+
+    static final ShardRouter HASH_ROUTER = new ShardRouter() {
+        @Override
+        public String route(Object shardKey, List<String> shardIds) {
+            if (shardKey == null) {
+                throw new IllegalArgumentException("The shard key must not be null");
+            }
+            return shardIds.get((shardKey.hashCode() & Integer.MAX_VALUE) % shardIds.size());
+        }
+    };
+
+    private volatile Snapshot snapshot = new Snapshot(new String[0], new EMSupplierImpl[0]);
+    private volatile ShardRouter router;
+    private volatile List<String> configuredIds = Collections.emptyList();
+
+    public void configure(Map<String, Object> props) {
+        configuredIds = parseIds(props.get(SHARD_IDS));
+        if (configuredIds.isEmpty()) {
+            LOG.warn("No shard ids configured in {}. Routing by shard key is not possible", SHARD_IDS);
+        }
+    }
+
+    static List<String> parseIds(Object value) {
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        String[] parts = value instanceof String[] ? (String[])value : String.valueOf(value).split(",");
+        TreeSet<String> ids = new TreeSet<String>();
+        for (String part : parts) {
+            if (part.trim().length() > 0) {
+                ids.add(part.trim());
+            }
+        }
+        return Collections.unmodifiableList(new ArrayList<String>(ids));
+    }
+
+    public void setRouter(ShardRouter router) {
+        this.router = router;
+    }
+
+    public synchronized void addShard(String shardId, EMSupplierImpl emSupplier) {
+        Snapshot current = snapshot;
+        int index = Arrays.binarySearch(current.ids, shardId);
+        if (index >= 0) {
+            throw new IllegalStateException("Shard " + shardId + " is already present");
+        }
+        int insert = -index - 1;
+        String[] ids = new String[current.ids.length + 1];
+        EMSupplierImpl[] suppliers = new EMSupplierImpl[ids.length];
+        System.arraycopy(current.ids, 0, ids, 0, insert);
+        System.arraycopy(current.suppliers, 0, suppliers, 0, insert);
+        ids[insert] = shardId;
+        suppliers[insert] = emSupplier;
+        System.arraycopy(current.ids, insert, ids, insert + 1, current.ids.length - insert);
+        System.arraycopy(current.suppliers, insert, suppliers, insert + 1, current.ids.length - insert);
+        snapshot = new Snapshot(ids, suppliers);
+    }
+
+    public synchronized void removeShard(String shardId, EMSupplierImpl emSupplier) {
+        Snapshot current = snapshot;
+        int index = Arrays.binarySearch(current.ids, shardId);
+        if (index < 0 || current.suppliers[index] != emSupplier) {
+            return;
+        }
+        String[] ids = new String[current.ids.length - 1];
+        EMSupplierImpl[] suppliers = new EMSupplierImpl[ids.length];
+        System.arraycopy(current.ids, 0, ids, 0, index);
+        System.arraycopy(current.suppliers, 0, suppliers, 0, index);
+        System.arraycopy(current.ids, index + 1, ids, index, ids.length - index);
+        System.arraycopy(current.suppliers, index + 1, suppliers, index, ids.length - index);
+        snapshot = new Snapshot(ids, suppliers);
+    }
+
+    public List<String> getShardIds() {
+        return snapshot.idList;
+    }
+
+    /**
+     * @return supplier of the shard or null if it is not available
+     */
+    EMSupplierImpl get(String shardId) {
+        Snapshot current = snapshot;
+        int index = Arrays.binarySearch(current.ids, shardId);
+        return index >= 0 ? current.suppliers[index] : null;
+    }
+
+    /**
+     * @return id of the configured shard for shardKey, which is not necessarily available
+     * @throws IllegalStateException if no shard ids are configured
+     */
+    String route(Object shardKey) {
+        List<String> ids = configuredIds;
+        if (ids.isEmpty()) {
+            throw new IllegalStateException("No shard ids are configured in " + SHARD_IDS);
+        }
+        ShardRouter current = router;
+        String shardId = (current != null ? current : HASH_ROUTER).route(shardKey, ids);
+        if (!ids.contains(shardId)) {
+            throw new IllegalStateException("The ShardRouter returned the unknown shard " + shardId);
+        }
+        return shardId;
+    }
+
+    private static final class Snapshot {
+        final String[] ids;
+        final EMSupplierImpl[] suppliers;
+        final List<String> idList;
+
+        Snapshot(String[] ids, EMSupplierImpl[] suppliers) {
+            this.ids = ids;
+            this.suppliers = suppliers;
+            this.idList = Collections.unmodifiableList(Arrays.asList(ids));
+        }
+    }
+}
@@ -21,10 +21,12 @@ package org.apache.aries.jpa.support.impl;
 import javax.persistence.EntityManager;
 import javax.transaction.RollbackException;
 import javax.transaction.Status;
+import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 
 import org.apache.aries.jpa.supplier.EmSupplier;
+import org.apache.aries.jpa.support.watchdog.impl.Watchdog;
 import org.apache.aries.jpa.support.xa.impl.TransactionAttribute;
 import org.apache.aries.jpa.support.xa.impl.TransactionToken;
 import org.apache.aries.jpa.template.EmFunction;
@@ -39,6 +41,7 @@ public class XAJpaTemplate extends AbstractJpaTemplate {
     protected EmSupplier emSupplier;
     protected TransactionManager tm;
     private Coordinator coordinator;
+    private ReplicaRouter replicas;
 
     public XAJpaTemplate(EmSupplier emSupplier, TransactionManager tm, Coordinator coordinator) {
         this.emSupplier = emSupplier;
@@ -46,32 +49,116 @@ public class XAJpaTemplate extends AbstractJpaTemplate {
         this.coordinator = coordinator;
     }
 
+    /**
+     * Calls of type Supports or NotSupported that run outside a transaction use a read replica
+     * unless the EntityManager of the primary is already used in the coordination
+     */
+    public void setReplicas(ReplicaRouter replicas) {
+        this.replicas = replicas;
+    }
+
     @Override
     public <R> R txExpr(TransactionType type, EmFunction<R> code) {
         EntityManager em = null;
         TransactionToken tranToken = null;
         TransactionAttribute ta = TransactionAttribute.fromType(type);
         Coordination coord = null;
+        Watchdog.Watch watch = null;
+        ReplicaRouter.Replica replica = null;
+        boolean joined = false;
+        long start = metrics != null ? System.nanoTime() : 0;
         try {
             tranToken = ta.begin(tm);
+            if (tranToken.isCompletionAllowed()) {
+                if (metrics != null) {
+                    metrics.txBegun(type);
+                }
+                watch = watchTransaction();
+            }
             coord = coordinator.begin(this.getClass().getName(), 0);
-            em = emSupplier.get();
-            if (tm.getStatus() != Status.STATUS_NO_TRANSACTION) {
-                em.joinTransaction();
+            replica = selectReplica(type);
+            if (replica != null) {
+                em = replica.get();
+            } else {
+                em = emSupplier.get();
+                joined = tm.getStatus() != Status.STATUS_NO_TRANSACTION;
+                if (joined) {
+                    em.joinTransaction();
+                    if (replicas != null) {
+                        replicas.writeJoined(tm.getTransaction());
+                    }
+                }
             }
             R result = (R)code.apply(em);
+            boolean markedRollback = metrics != null && isMarkedRollback(tranToken);
             safeFinish(tranToken, ta, coord);
+            if (metrics != null) {
+                recordFinish(type, tranToken, start, markedRollback);
+            }
             return result;
         } catch (RollbackException ex) {
             safeRollback(tranToken, ta, coord, ex);
+            recordFailure(type, tranToken, start, ex);
             throw wrapThrowable(ex, "RollbackException is propagating");  
         } catch (Exception ex) {
             safeRollback(tranToken, ta, coord, ex);
+            recordFailure(type, tranToken, start, ex);
             throw wrapThrowable(ex, "Exception occured in transactional code");
         } catch (Error ex) { // NOSONAR
             safeRollback(tranToken, ta, coord, ex);
+            recordFailure(type, tranToken, start, ex);
             throw ex;
+        } finally {
+            closeWatch(watch);
+            if (replica != null) {
+                replica.release();
+            }
+        }
+    }
+
+    private ReplicaRouter.Replica selectReplica(TransactionType type) throws SystemException {
+        if (replicas == null || type != TransactionType.Supports && type != TransactionType.NotSupported) {
+            return null;
+        }
+        if (tm.getStatus() != Status.STATUS_NO_TRANSACTION || usesPrimary()) {
+            return null;
+        }
+        return replicas.acquire();
+    }
+
+    private boolean usesPrimary() {
+        return emSupplier instanceof EMSupplierImpl && ((EMSupplierImpl) emSupplier).hasEntityManager();
+    }
+
+    private static boolean isMarkedRollback(TransactionToken tranToken) {
+        Transaction tran = tranToken.getActiveTransaction();
+        try {
+            return tranToken.isCompletionAllowed() && tran != null
+                && tran.getStatus() == Status.STATUS_MARKED_ROLLBACK;
+        } catch (SystemException e) {
+            return false;
+        }
+    }
+
+    private void recordFinish(TransactionType type, TransactionToken tranToken, long start, boolean markedRollback) {
+        if (tranToken.isCompletionAllowed()) {
+            if (markedRollback) {
+                metrics.txRolledBack(type, null);
+            } else {
+                metrics.txCommitted(type);
+            }
+        }
+        metrics.callCompleted(type, System.nanoTime() - start, false);
+    }
+
+    private void recordFailure(TransactionType type, TransactionToken tranToken, long start, Throwable ex) {
+        if (metrics == null) {
+            return;
+        }
+        if (tranToken != null && tranToken.isCompletionAllowed()) {
+            metrics.txRolledBack(type, ex);
         }
+        metrics.callCompleted(type, System.nanoTime() - start, true);
     }
 
     private static void close(Coordination coord) {
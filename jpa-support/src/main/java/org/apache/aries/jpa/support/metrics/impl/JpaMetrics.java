@@ -0,0 +1,277 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.metrics.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.aries.jpa.metrics.JpaMetricsMXBean;
+import org.apache.aries.jpa.template.TransactionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the statistics of one persistence unit. The recording methods only
+ * update striped counters and are safe to call on the hot path.
+ */
+public class JpaMetrics implements JpaMetricsMXBean {
+    private static final Logger LOG = LoggerFactory.getLogger(JpaMetrics.class);
+    private static final int MAX_ROLLBACK_CAUSES = 100;
+    private static final String OTHER_CAUSES = "other";
+    private static final TransactionType[] TYPES = TransactionType.values();
+
+    private final String unitName;
+    private final TypeMetrics[] byType = new TypeMetrics[TYPES.length];
+    private final LatencyHistogram[] histograms = new LatencyHistogram[TYPES.length];
+    private final StripedCounter emsCreated = new StripedCounter();
+    private final StripedCounter emsClosed = new StripedCounter();
+    private final ConcurrentMap<String, AtomicLong> rollbackCauses = new ConcurrentHashMap<String, AtomicLong>();
+    private ObjectName objectName;
+
+    public JpaMetrics(String unitName) {
+        this.unitName = unitName;
+        for (int c = 0; c < TYPES.length; c++) {
+            byType[c] = new TypeMetrics();
+            histograms[c] = byType[c].callTime;
+        }
+    }
+
+    public void txBegun(TransactionType type) {
+        byType[type.ordinal()].begun.increment();
+    }
+
+    public void txCommitted(TransactionType type) {
+        byType[type.ordinal()].committed.increment();
+    }
+
+    public void txRolledBack(TransactionType type, Throwable cause) {
+        byType[type.ordinal()].rolledBack.increment();
+        if (cause != null) {
+            countCause(cause.getClass().getName());
+        }
+    }
+
+    public void callCompleted(TransactionType type, long nanos, boolean failed) {
+        TypeMetrics metrics = byType[type.ordinal()];
+        metrics.callTime.record(nanos);
+        if (failed) {
+            metrics.failed.increment();
+        }
+    }
+
+    public void emCreated() {
+        emsCreated.increment();
+    }
+
+    public void emClosed() {
+        emsClosed.increment();
+    }
+
+    private void countCause(String cause) {
+        AtomicLong counter = rollbackCauses.get(cause);
+        if (counter == null) {
+            String key = rollbackCauses.size() < MAX_ROLLBACK_CAUSES ? cause : OTHER_CAUSES;
+            AtomicLong newCounter = new AtomicLong();
+            counter = rollbackCauses.putIfAbsent(key, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    @Override
+    public String getUnitName() {
+        return unitName;
+    }
+
+    @Override
+    public Map<String, Long> getTransactionsBegun() {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (TransactionType type : TYPES) {
+            result.put(type.name(), byType[type.ordinal()].begun.sum());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getTransactionsCommitted() {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (TransactionType type : TYPES) {
+            result.put(type.name(), byType[type.ordinal()].committed.sum());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getTransactionsRolledBack() {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (TransactionType type : TYPES) {
+            result.put(type.name(), byType[type.ordinal()].rolledBack.sum());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getRollbackCauses() {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : rollbackCauses.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    @Override
+    public long getCalls() {
+        long calls = 0;
+        for (TypeMetrics metrics : byType) {
+            calls += metrics.callTime.getCount();
+        }
+        return calls;
+    }
+
+    @Override
+    public long getFailedCalls() {
+        long failed = 0;
+        for (TypeMetrics metrics : byType) {
+            failed += metrics.failed.sum();
+        }
+        return failed;
+    }
+
+    @Override
+    public double getCallTimeMean() {
+        long calls = 0;
+        long total = 0;
+        for (TypeMetrics metrics : byType) {
+            calls += metrics.callTime.getCount();
+            total += metrics.callTime.getTotal();
+        }
+        return calls == 0 ? 0 : (double)total / calls / 1000;
+    }
+
+    @Override
+    public long getCallTimeMedian() {
+        return toMicros(LatencyHistogram.valueAtPercentile(histograms, 50));
+    }
+
+    @Override
+    public long getCallTime99thPercentile() {
+        return toMicros(LatencyHistogram.valueAtPercentile(histograms, 99));
+    }
+
+    @Override
+    public long getCallTimeMax() {
+        long max = 0;
+        for (TypeMetrics metrics : byType) {
+            max = Math.max(max, metrics.callTime.getMax());
+        }
+        return toMicros(max);
+    }
+
+    @Override
+    public Map<String, Long> getCallTime99thPercentileByType() {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (TransactionType type : TYPES) {
+            result.put(type.name(), toMicros(byType[type.ordinal()].callTime.getValueAtPercentile(99)));
+        }
+        return result;
+    }
+
+    @Override
+    public long getEntityManagersCreated() {
+        return emsCreated.sum();
+    }
+
+    @Override
+    public long getEntityManagersClosed() {
+        return emsClosed.sum();
+    }
+
+    @Override
+    public int getOpenEntityManagers() {
+        return (int)Math.max(0, emsCreated.sum() - emsClosed.sum());
+    }
+
+    /**
+     * Resets all statistics except the EntityManager counts which are needed
+     * to compute the open EntityManagers.
+     */
+    @Override
+    public void reset() {
+        for (TypeMetrics metrics : byType) {
+            metrics.reset();
+        }
+        rollbackCauses.clear();
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * Registers this in the platform MBeanServer. Failures are only logged as metrics are optional.
+     */
+    public synchronized void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("org.apache.aries.jpa:type=JpaMetrics,name=" + ObjectName.quote(unitName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        } catch (Exception e) {
+            LOG.debug("Unable to register metrics MBean for persistence unit " + unitName, e);
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(objectName);
+        } catch (Exception e) {
+            LOG.debug("Unable to unregister metrics MBean for persistence unit " + unitName, e);
+        }
+        objectName = null;
+    }
+
+    private static final class TypeMetrics {
+        final StripedCounter begun = new StripedCounter();
+        final StripedCounter committed = new StripedCounter();
+        final StripedCounter rolledBack = new StripedCounter();
+        final StripedCounter failed = new StripedCounter();
+        final LatencyHistogram callTime = new LatencyHistogram();
+
+        void reset() {
+            begun.reset();
+            committed.reset();
+            rolledBack.reset();
+            failed.reset();
+            callTime.reset();
+        }
+    }
+}
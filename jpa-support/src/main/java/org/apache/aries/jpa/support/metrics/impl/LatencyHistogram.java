@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.metrics.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Histogram of non negative values with log-linear buckets in the style of HdrHistogram.
+ *
+ * Each power of two is split into 8 linear sub buckets so recorded values are kept with
+ * a relative error below 12.5%. Recording is one index computation and one atomic increment.
+ * Like StripedCounter the buckets and the maximum are kept per stripe of threads so concurrent
+ * writers rarely contend. A stripe is only allocated once a thread records into it. Reads merge
+ * all stripes.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    /**
+     * Index of the maximum behind the buckets of a stripe
+     */
+    private static final int MAX = BUCKETS;
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes =
+        new AtomicReferenceArray<AtomicLongArray>(StripedCounter.STRIPES);
+    private final StripedCounter count = new StripedCounter();
+    private final StripedCounter total = new StripedCounter();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        AtomicLongArray stripe = getStripe();
+        stripe.getAndIncrement(index(value));
+        count.increment();
+        total.add(value);
+        long currentMax = stripe.get(MAX);
+        while (value > currentMax && !stripe.compareAndSet(MAX, currentMax, value)) {
+            currentMax = stripe.get(MAX);
+        }
+    }
+
+    private AtomicLongArray getStripe() {
+        int index = StripedCounter.stripe();
+        AtomicLongArray stripe = stripes.get(index);
+        if (stripe == null) {
+            stripes.compareAndSet(index, null, new AtomicLongArray(BUCKETS + 1));
+            stripe = stripes.get(index);
+        }
+        return stripe;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotal() {
+        return total.sum();
+    }
+
+    public long getMax() {
+        long max = 0;
+        for (int c = 0; c < stripes.length(); c++) {
+            AtomicLongArray stripe = stripes.get(c);
+            if (stripe != null) {
+                max = Math.max(max, stripe.get(MAX));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound of the bucket that contains the value at the percentile
+     */
+    public long getValueAtPercentile(double percentile) {
+        return valueAtPercentile(new LatencyHistogram[] {this}, percentile);
+    }
+
+    /**
+     * Computes the percentile over the combined values of several histograms
+     */
+    public static long valueAtPercentile(LatencyHistogram[] histograms, double percentile) {
+        long[] merged = new long[BUCKETS];
+        long sum = 0;
+        for (LatencyHistogram histogram : histograms) {
+            for (int s = 0; s < histogram.stripes.length(); s++) {
+                AtomicLongArray stripe = histogram.stripes.get(s);
+                if (stripe == null) {
+                    continue;
+                }
+                for (int c = 0; c < BUCKETS; c++) {
+                    long bucketCount = stripe.get(c);
+                    merged[c] += bucketCount;
+                    sum += bucketCount;
+                }
+            }
+        }
+        if (sum == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long)Math.ceil(percentile / 100.0 * sum));
+        long seen = 0;
+        for (int c = 0; c < BUCKETS; c++) {
+            seen += merged[c];
+            if (seen >= target) {
+                return upperBound(c);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    public void reset() {
+        for (int s = 0; s < stripes.length(); s++) {
+            AtomicLongArray stripe = stripes.get(s);
+            if (stripe != null) {
+                for (int c = 0; c <= MAX; c++) {
+                    stripe.set(c, 0);
+                }
+            }
+        }
+        count.reset();
+        total.reset();
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long lowerBound = (1L << exponent) | ((long)subBucket << shift);
+        return lowerBound + (1L << shift) - 1;
+    }
+}
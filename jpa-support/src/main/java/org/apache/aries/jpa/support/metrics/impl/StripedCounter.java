@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.metrics.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads updates over several padded cells selected by thread so
+ * concurrent writers rarely contend. Reads sum all cells.
+ */
+public final class StripedCounter {
+    static final int STRIPES = stripes();
+    /**
+     * Longs per cell so two cells do not share a cache line
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        cells.getAndIncrement(cellIndex());
+    }
+
+    public void add(long value) {
+        cells.getAndAdd(cellIndex(), value);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int c = 0; c < STRIPES; c++) {
+            sum += cells.get(c * PADDING);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int c = 0; c < STRIPES; c++) {
+            cells.set(c * PADDING, 0);
+        }
+    }
+
+    private static int cellIndex() {
+        return stripe() * PADDING;
+    }
+
+    /**
+     * @return stripe of the current thread between 0 and STRIPES - 1
+     */
+    static int stripe() {
+        long id = Thread.currentThread().getId();
+        int hash = (int)(id * 0x9E3779B97F4A7C15L >>> 32);
+        return hash & (STRIPES - 1);
+    }
+
+    private static int stripes() {
+        int wanted = Runtime.getRuntime().availableProcessors() * 2;
+        int stripes = 1;
+        while (stripes < wanted && stripes < 64) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+}
@@ -22,17 +22,31 @@ import static org.osgi.service.jpa.EntityManagerFactoryBuilder.JPA_UNIT_NAME;
 
 import java.lang.reflect.Proxy;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.spi.PersistenceUnitTransactionType;
 
+import org.apache.aries.jpa.metrics.JpaMetricsMXBean;
 import org.apache.aries.jpa.supplier.EmSupplier;
+import org.apache.aries.jpa.support.impl.AsyncExecutors;
+import org.apache.aries.jpa.support.impl.AsyncJpaTemplateImpl;
 import org.apache.aries.jpa.support.impl.EMSupplierImpl;
+import org.apache.aries.jpa.support.impl.ReplicaRouter;
 import org.apache.aries.jpa.support.impl.ResourceLocalJpaTemplate;
+import org.apache.aries.jpa.support.impl.ShardedJpaTemplateImpl;
+import org.apache.aries.jpa.support.impl.Shards;
+import org.apache.aries.jpa.support.metrics.impl.JpaMetrics;
+import org.apache.aries.jpa.support.watchdog.impl.Watchdog;
+import org.apache.aries.jpa.template.AsyncJpaTemplate;
 import org.apache.aries.jpa.template.JpaTemplate;
+import org.apache.aries.jpa.template.ShardedJpaTemplate;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.coordinator.Coordinator;
@@ -44,12 +58,16 @@ import org.slf4j.LoggerFactory;
  * Tracks EntityManagerFactory services and publishes a Supplier&lt;EntityManager&gt; for each.
  * IF the persistence unit uses JTA a TMTracker is created. If it uses RESOURCE_LOCAL as 
  * ResourceLocalJpaTemplate is created.
+ * EntityManagerFactory services of read replicas are not published but used by the
+ * XAJpaTemplate of their unit. Shards are published through the ShardedJpaTemplate of their unit.
+ * Both carry their unit name in ReplicaRouter.MEMBER_UNIT_NAME instead of osgi.unit.name.
  */
 @SuppressWarnings("rawtypes")
 public class EMFTracker extends ServiceTracker {
     private static final Logger LOG = LoggerFactory.getLogger(EMFTracker.class);
 
     private Coordinator coordinator;
+    private final Map<String, SharedMembers> members = new HashMap<String, SharedMembers>();
 
     @SuppressWarnings("unchecked")
     public EMFTracker(BundleContext context, Coordinator coordinator) {
@@ -62,36 +80,152 @@ public class EMFTracker extends ServiceTracker {
     public Object addingService(ServiceReference reference) {
         String unitName = (String)reference.getProperty(JPA_UNIT_NAME);
         if (unitName == null) {
-            return null;
+            return addMember(reference);
         }
         BundleContext puContext = reference.getBundle().getBundleContext();
         TrackedEmf tracked = new TrackedEmf();
         tracked.emf = (EntityManagerFactory)puContext.getService(reference);
+        tracked.metrics = new JpaMetrics(unitName);
+        Map<String, Object> props = getProperties(reference);
+        tracked.watchdog = Watchdog.create(unitName, props);
         tracked.emSupplier = new EMSupplierImpl(unitName, tracked.emf, coordinator);
+        tracked.emSupplier.setMetrics(tracked.metrics);
+        tracked.emSupplier.setWatchdog(tracked.watchdog);
         tracked.emSupplierReg = puContext.registerService(EmSupplier.class, tracked.emSupplier,
                                                          getEmSupplierProps(unitName));
 
         EntityManager emProxy = createProxy(tracked.emSupplier);
         tracked.emProxyReg = puContext.registerService(EntityManager.class, emProxy,
                                                          getEmSupplierProps(unitName));
+        tracked.asyncExecutor = AsyncExecutors.create(unitName, props);
+        tracked.membersKey = getMembersKey(reference, unitName);
+        SharedMembers shared = acquireMembers(tracked.membersKey);
+        if (props.get(Shards.SHARD_DATA_SOURCE) != null) {
+            tracked.shards = shared.shards;
+            tracked.shards.configure(props);
+            tracked.shardRouterTracker = new ShardRouterTracker(context, unitName, tracked.shards);
+            tracked.shardRouterTracker.open();
+        }
         
-        if (getTransactionType(tracked.emf) == PersistenceUnitTransactionType.RESOURCE_LOCAL) {
-            JpaTemplate txManager = new ResourceLocalJpaTemplate(tracked.emSupplier, coordinator);
+        if (getTransactionType(reference, tracked.emf) == PersistenceUnitTransactionType.RESOURCE_LOCAL) {
+            ResourceLocalJpaTemplate txManager = new ResourceLocalJpaTemplate(tracked.emSupplier, coordinator);
+            txManager.setMetrics(tracked.metrics);
+            txManager.setWatchdog(tracked.watchdog);
             tracked.rlTxManagerReg = puContext.registerService(JpaTemplate.class, txManager,
                                                           rlTxManProps(unitName));
+            AsyncJpaTemplate asyncTxManager = new AsyncJpaTemplateImpl(txManager, tracked.asyncExecutor);
+            tracked.rlAsyncTxManagerReg = puContext.registerService(AsyncJpaTemplate.class, asyncTxManager,
+                                                          rlTxManProps(unitName));
+            if (tracked.shards != null) {
+                ShardedJpaTemplateImpl sharded = new ShardedJpaTemplateImpl(tracked.shards, null, coordinator,
+                                                                            tracked.asyncExecutor);
+                sharded.setMetrics(tracked.metrics);
+                sharded.setWatchdog(tracked.watchdog);
+                tracked.rlShardedReg = puContext.registerService(ShardedJpaTemplate.class, sharded,
+                                                                 rlTxManProps(unitName));
+            }
         } else {
-            tracked.tmTracker = new TMTracker(puContext, tracked.emSupplier, unitName, coordinator);
+            tracked.replicas = shared.router;
+            tracked.replicas.configure(props);
+            tracked.tmTracker = new TMTracker(puContext, tracked.emSupplier, unitName, coordinator,
+                                              tracked.asyncExecutor, tracked.metrics, tracked.watchdog);
+            tracked.tmTracker.setReplicas(tracked.replicas);
+            tracked.tmTracker.setShards(tracked.shards);
             tracked.tmTracker.open();
         }
+        tracked.metricsReg = context.registerService(JpaMetricsMXBean.class.getName(), tracked.metrics,
+                                                     getEmSupplierProps(unitName));
+        tracked.metrics.registerMBean();
+        return tracked;
+    }
+
+    private Object addMember(ServiceReference reference) {
+        String unitName = (String)reference.getProperty(ReplicaRouter.MEMBER_UNIT_NAME);
+        if (unitName == null) {
+            return null;
+        }
+        if (Boolean.parseBoolean(String.valueOf(reference.getProperty(ReplicaRouter.REPLICA)))) {
+            return addReplica(reference, unitName);
+        }
+        Object shardId = reference.getProperty(Shards.SHARD);
+        if (shardId != null) {
+            return addShard(reference, unitName, shardId.toString());
+        }
+        return null;
+    }
+
+    private TrackedReplica addReplica(ServiceReference reference, String unitName) {
+        BundleContext puContext = reference.getBundle().getBundleContext();
+        TrackedReplica tracked = new TrackedReplica();
+        tracked.emf = (EntityManagerFactory)puContext.getService(reference);
+        tracked.emSupplier = new EMSupplierImpl(unitName + ".replica." + reference.getProperty(Constants.SERVICE_ID),
+                                                tracked.emf, coordinator);
+        tracked.membersKey = getMembersKey(reference, unitName);
+        tracked.replicas = acquireMembers(tracked.membersKey).router;
+        tracked.replicas.addReplica(tracked.emSupplier);
+        LOG.info("Added read replica for persistence unit {}", unitName);
+        return tracked;
+    }
+
+    private TrackedShard addShard(ServiceReference reference, String unitName, String shardId) {
+        BundleContext puContext = reference.getBundle().getBundleContext();
+        TrackedShard tracked = new TrackedShard();
+        tracked.shardId = shardId;
+        tracked.emf = (EntityManagerFactory)puContext.getService(reference);
+        tracked.emSupplier = new EMSupplierImpl(unitName + ".shard." + shardId, tracked.emf, coordinator);
+        tracked.membersKey = getMembersKey(reference, unitName);
+        tracked.shards = acquireMembers(tracked.membersKey).shards;
+        try {
+            tracked.shards.addShard(shardId, tracked.emSupplier);
+        } catch (IllegalStateException e) {
+            LOG.warn("Ignoring duplicate shard " + shardId + " of persistence unit " + unitName, e);
+            tracked.emSupplier.close();
+            releaseMembers(tracked.membersKey);
+            puContext.ungetService(reference);
+            return null;
+        }
+        LOG.info("Added shard {} for persistence unit {}", shardId, unitName);
         return tracked;
     }
 
+    private static String getMembersKey(ServiceReference reference, String unitName) {
+        return reference.getBundle().getBundleId() + "/" + unitName;
+    }
+
+    /**
+     * The primary, the replicas and the shards of a unit can come and go in any order
+     */
+    private synchronized SharedMembers acquireMembers(String key) {
+        SharedMembers shared = members.get(key);
+        if (shared == null) {
+            shared = new SharedMembers();
+            members.put(key, shared);
+        }
+        shared.users++;
+        return shared;
+    }
+
+    private synchronized void releaseMembers(String key) {
+        SharedMembers shared = members.get(key);
+        if (shared != null && --shared.users == 0) {
+            members.remove(key);
+        }
+    }
+
     /**
+     * The service property is checked first as it does not force a lazy EntityManagerFactory
+     * to be created.
      * 
+     * @param reference of the EntityManagerFactory service
      * @param emf to get type from
      * @return
      */
-    private PersistenceUnitTransactionType getTransactionType(EntityManagerFactory emf) {
+    private PersistenceUnitTransactionType getTransactionType(ServiceReference reference, EntityManagerFactory emf) {
+        Object typeProp = reference.getProperty(PersistenceUnitTransactionType.class.getName());
+        if (typeProp != null) {
+            return PersistenceUnitTransactionType.RESOURCE_LOCAL.toString().equals(typeProp.toString())
+                ? PersistenceUnitTransactionType.RESOURCE_LOCAL : PersistenceUnitTransactionType.JTA;
+        }
         try {
             PersistenceUnitTransactionType transactionType = (PersistenceUnitTransactionType) emf.getProperties().get(PersistenceUnitTransactionType.class.getName());
             if (transactionType == PersistenceUnitTransactionType.RESOURCE_LOCAL) {
@@ -103,6 +237,17 @@ public class EMFTracker extends ServiceTracker {
         return PersistenceUnitTransactionType.JTA;
     }
 
+    private static Map<String, Object> getProperties(ServiceReference reference) {
+        Map<String, Object> props = new HashMap<String, Object>();
+        String[] keys = reference.getPropertyKeys();
+        if (keys != null) {
+            for (String key : keys) {
+                props.put(key, reference.getProperty(key));
+            }
+        }
+        return props;
+    }
+
     private static Dictionary<String, String> getEmSupplierProps(String unitName) {
         Dictionary<String, String> props = new Hashtable<String, String>(); // NOSONAR
         props.put(JPA_UNIT_NAME, unitName);
@@ -118,20 +263,69 @@ public class EMFTracker extends ServiceTracker {
 
     @Override
     public void removedService(ServiceReference reference, Object trackedO) {
+        if (trackedO instanceof TrackedReplica) {
+            removeReplica(reference, (TrackedReplica)trackedO);
+            return;
+        }
+        if (trackedO instanceof TrackedShard) {
+            removeShard(reference, (TrackedShard)trackedO);
+            return;
+        }
         TrackedEmf tracked = (TrackedEmf)trackedO;
+        if (tracked.metricsReg != null) {
+            tracked.metricsReg.unregister();
+        }
+        tracked.metrics.unregisterMBean();
         if (tracked.tmTracker != null) {
             tracked.tmTracker.close();
         }
         if (tracked.rlTxManagerReg != null) {
             tracked.rlTxManagerReg.unregister();
         }
+        if (tracked.rlAsyncTxManagerReg != null) {
+            tracked.rlAsyncTxManagerReg.unregister();
+        }
+        if (tracked.rlShardedReg != null) {
+            tracked.rlShardedReg.unregister();
+        }
+        if (tracked.shardRouterTracker != null) {
+            tracked.shardRouterTracker.close();
+        }
         tracked.emSupplierReg.unregister();
         tracked.emProxyReg.unregister();
+        // Let queued async calls finish while the supplier waits for open EntityManagers
+        tracked.asyncExecutor.shutdown();
         tracked.emSupplier.close();
+        tracked.asyncExecutor.shutdownNow();
+        if (tracked.watchdog != null) {
+            tracked.watchdog.close();
+        }
+        if (tracked.membersKey != null) {
+            releaseMembers(tracked.membersKey);
+        }
+        reference.getBundle().getBundleContext().ungetService(reference);
+    }
+
+    private void removeReplica(ServiceReference reference, TrackedReplica tracked) {
+        tracked.replicas.removeReplica(tracked.emSupplier);
+        tracked.emSupplier.close();
+        releaseMembers(tracked.membersKey);
+        reference.getBundle().getBundleContext().ungetService(reference);
+    }
+
+    private void removeShard(ServiceReference reference, TrackedShard tracked) {
+        tracked.shards.removeShard(tracked.shardId, tracked.emSupplier);
+        tracked.emSupplier.close();
+        releaseMembers(tracked.membersKey);
         reference.getBundle().getBundleContext().ungetService(reference);
     }
     
     public static EntityManager createProxy(final EmSupplier emSupplier) {
+        EntityManager delegate = EmDelegate.create(emSupplier);
+        if (delegate != null) {
+            return delegate;
+        }
+        LOG.debug("EntityManager API has methods unknown to EmDelegate. Falling back to reflective proxy.");
         ClassLoader loader = EntityManager.class.getClassLoader();
         Class<?>[] ifAr = {
             EntityManager.class
@@ -144,7 +338,38 @@ public class EMFTracker extends ServiceTracker {
         ServiceRegistration emSupplierReg;
         EMSupplierImpl emSupplier;
         ServiceRegistration rlTxManagerReg;
+        ServiceRegistration rlAsyncTxManagerReg;
+        ExecutorService asyncExecutor;
+        JpaMetrics metrics;
+        Watchdog watchdog;
+        ServiceRegistration metricsReg;
         EntityManagerFactory emf;
         TMTracker tmTracker;
+        ReplicaRouter replicas;
+        Shards shards;
+        ShardRouterTracker shardRouterTracker;
+        ServiceRegistration rlShardedReg;
+        String membersKey;
+    }
+
+    static class TrackedReplica {
+        EntityManagerFactory emf;
+        EMSupplierImpl emSupplier;
+        ReplicaRouter replicas;
+        String membersKey;
+    }
+
+    static class TrackedShard {
+        String shardId;
+        EntityManagerFactory emf;
+        EMSupplierImpl emSupplier;
+        Shards shards;
+        String membersKey;
+    }
+
+    private static class SharedMembers {
+        final ReplicaRouter router = new ReplicaRouter();
+        final Shards shards = new Shards();
+        int users;
     }
 }
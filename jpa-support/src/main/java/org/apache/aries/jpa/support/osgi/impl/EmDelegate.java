@@ -0,0 +1,301 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.osgi.impl;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.FlushModeType;
+import javax.persistence.LockModeType;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.metamodel.Metamodel;
+
+import org.apache.aries.jpa.supplier.EmSupplier;
+
+/**
+ * EntityManager that forwards each call to the EntityManager of the current coordination.
+ *
+ * Implements the JPA 2.0 methods. {@link EmDelegate21} adds the JPA 2.1 methods and is the
+ * class instantiated for both API versions, as its additional methods are only linked when
+ * they are called. When the bundle is wired to an API with EntityManager methods unknown
+ * to both {@link #create(EmSupplier)} returns null and the reflective {@link EmProxy}
+ * has to be used instead.
+ */
+public abstract class EmDelegate implements EntityManager {
+    private static final boolean COMPLETE = checkComplete();
+
+    private final EmSupplier emSupplier;
+
+    protected EmDelegate(EmSupplier emSupplier) {
+        this.emSupplier = emSupplier;
+    }
+
+    /**
+     * @return true if a delegate implements all methods of the EntityManager interface at runtime
+     */
+    public static boolean isComplete() {
+        return COMPLETE;
+    }
+
+    /**
+     * @return delegate for the EntityManager API the bundle is wired to or null if it is not complete
+     */
+    public static EntityManager create(EmSupplier emSupplier) {
+        return COMPLETE ? new EmDelegate21(emSupplier) : null;
+    }
+
+    /**
+     * Checks the JPA 2.0 methods on this class first so the JPA 2.1 types are only
+     * touched if the API at runtime has them
+     */
+    private static boolean checkComplete() {
+        return implementsAll(EmDelegate.class) || implementsAll(EmDelegate21.class);
+    }
+
+    private static boolean implementsAll(Class<?> delegate) {
+        for (Method method : EntityManager.class.getMethods()) {
+            try {
+                Method impl = delegate.getMethod(method.getName(), method.getParameterTypes());
+                if (Modifier.isAbstract(impl.getModifiers())) {
+                    return false;
+                }
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected EntityManager em() {
+        EntityManager em = emSupplier.get();
+        if (em == null) {
+            throw new IllegalStateException("EntityManager not available. Make sure you run in an @Transactional method");
+        }
+        return em;
+    }
+
+    @Override
+    public void persist(Object entity) {
+        em().persist(entity);
+    }
+
+    @Override
+    public <T> T merge(T entity) {
+        return em().merge(entity);
+    }
+
+    @Override
+    public void remove(Object entity) {
+        em().remove(entity);
+    }
+
+    @Override
+    public <T> T find(Class<T> entityClass, Object primaryKey) {
+        return em().find(entityClass, primaryKey);
+    }
+
+    @Override
+    public <T> T find(Class<T> entityClass, Object primaryKey, Map<String, Object> properties) {
+        return em().find(entityClass, primaryKey, properties);
+    }
+
+    @Override
+    public <T> T find(Class<T> entityClass, Object primaryKey, LockModeType lockMode) {
+        return em().find(entityClass, primaryKey, lockMode);
+    }
+
+    @Override
+    public <T> T find(Class<T> entityClass, Object primaryKey, LockModeType lockMode,
+                      Map<String, Object> properties) {
+        return em().find(entityClass, primaryKey, lockMode, properties);
+    }
+
+    @Override
+    public <T> T getReference(Class<T> entityClass, Object primaryKey) {
+        return em().getReference(entityClass, primaryKey);
+    }
+
+    @Override
+    public void flush() {
+        em().flush();
+    }
+
+    @Override
+    public void setFlushMode(FlushModeType flushMode) {
+        em().setFlushMode(flushMode);
+    }
+
+    @Override
+    public FlushModeType getFlushMode() {
+        return em().getFlushMode();
+    }
+
+    @Override
+    public void lock(Object entity, LockModeType lockMode) {
+        em().lock(entity, lockMode);
+    }
+
+    @Override
+    public void lock(Object entity, LockModeType lockMode, Map<String, Object> properties) {
+        em().lock(entity, lockMode, properties);
+    }
+
+    @Override
+    public void refresh(Object entity) {
+        em().refresh(entity);
+    }
+
+    @Override
+    public void refresh(Object entity, Map<String, Object> properties) {
+        em().refresh(entity, properties);
+    }
+
+    @Override
+    public void refresh(Object entity, LockModeType lockMode) {
+        em().refresh(entity, lockMode);
+    }
+
+    @Override
+    public void refresh(Object entity, LockModeType lockMode, Map<String, Object> properties) {
+        em().refresh(entity, lockMode, properties);
+    }
+
+    @Override
+    public void clear() {
+        em().clear();
+    }
+
+    @Override
+    public void detach(Object entity) {
+        em().detach(entity);
+    }
+
+    @Override
+    public boolean contains(Object entity) {
+        return em().contains(entity);
+    }
+
+    @Override
+    public LockModeType getLockMode(Object entity) {
+        return em().getLockMode(entity);
+    }
+
+    @Override
+    public void setProperty(String propertyName, Object value) {
+        em().setProperty(propertyName, value);
+    }
+
+    @Override
+    public Map<String, Object> getProperties() {
+        return em().getProperties();
+    }
+
+    @Override
+    public Query createQuery(String qlString) {
+        return em().createQuery(qlString);
+    }
+
+    @Override
+    public <T> TypedQuery<T> createQuery(CriteriaQuery<T> criteriaQuery) {
+        return em().createQuery(criteriaQuery);
+    }
+
+    @Override
+    public <T> TypedQuery<T> createQuery(String qlString, Class<T> resultClass) {
+        return em().createQuery(qlString, resultClass);
+    }
+
+    @Override
+    public Query createNamedQuery(String name) {
+        return em().createNamedQuery(name);
+    }
+
+    @Override
+    public <T> TypedQuery<T> createNamedQuery(String name, Class<T> resultClass) {
+        return em().createNamedQuery(name, resultClass);
+    }
+
+    @Override
+    public Query createNativeQuery(String sqlString) {
+        return em().createNativeQuery(sqlString);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Query createNativeQuery(String sqlString, Class resultClass) {
+        return em().createNativeQuery(sqlString, resultClass);
+    }
+
+    @Override
+    public Query createNativeQuery(String sqlString, String resultSetMapping) {
+        return em().createNativeQuery(sqlString, resultSetMapping);
+    }
+
+    @Override
+    public void joinTransaction() {
+        em().joinTransaction();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> cls) {
+        return em().unwrap(cls);
+    }
+
+    @Override
+    public Object getDelegate() {
+        return em().getDelegate();
+    }
+
+    @Override
+    public void close() {
+        em().close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return em().isOpen();
+    }
+
+    @Override
+    public EntityTransaction getTransaction() {
+        return em().getTransaction();
+    }
+
+    @Override
+    public EntityManagerFactory getEntityManagerFactory() {
+        return em().getEntityManagerFactory();
+    }
+
+    @Override
+    public CriteriaBuilder getCriteriaBuilder() {
+        return em().getCriteriaBuilder();
+    }
+
+    @Override
+    public Metamodel getMetamodel() {
+        return em().getMetamodel();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.osgi.impl;
+
+import java.util.List;
+
+import javax.persistence.EntityGraph;
+import javax.persistence.Query;
+import javax.persistence.StoredProcedureQuery;
+import javax.persistence.criteria.CriteriaDelete;
+import javax.persistence.criteria.CriteriaUpdate;
+
+import org.apache.aries.jpa.supplier.EmSupplier;
+
+/**
+ * Adds the EntityManager methods of JPA 2.1 to the delegate. On a JPA 2.0 API these methods
+ * are not part of the interface and so are never called.
+ */
+public class EmDelegate21 extends EmDelegate {
+
+    public EmDelegate21(EmSupplier emSupplier) {
+        super(emSupplier);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Query createQuery(CriteriaUpdate updateQuery) {
+        return em().createQuery(updateQuery);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Query createQuery(CriteriaDelete deleteQuery) {
+        return em().createQuery(deleteQuery);
+    }
+
+    @Override
+    public StoredProcedureQuery createNamedStoredProcedureQuery(String name) {
+        return em().createNamedStoredProcedureQuery(name);
+    }
+
+    @Override
+    public StoredProcedureQuery createStoredProcedureQuery(String procedureName) {
+        return em().createStoredProcedureQuery(procedureName);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public StoredProcedureQuery createStoredProcedureQuery(String procedureName, Class... resultClasses) {
+        return em().createStoredProcedureQuery(procedureName, resultClasses);
+    }
+
+    @Override
+    public StoredProcedureQuery createStoredProcedureQuery(String procedureName, String... resultSetMappings) {
+        return em().createStoredProcedureQuery(procedureName, resultSetMappings);
+    }
+
+    @Override
+    public boolean isJoinedToTransaction() {
+        return em().isJoinedToTransaction();
+    }
+
+    @Override
+    public <T> EntityGraph<T> createEntityGraph(Class<T> rootType) {
+        return em().createEntityGraph(rootType);
+    }
+
+    @Override
+    public EntityGraph<?> createEntityGraph(String graphName) {
+        return em().createEntityGraph(graphName);
+    }
+
+    @Override
+    public EntityGraph<?> getEntityGraph(String graphName) {
+        return em().getEntityGraph(graphName);
+    }
+
+    @Override
+    public <T> List<EntityGraph<? super T>> getEntityGraphs(Class<T> entityClass) {
+        return em().getEntityGraphs(entityClass);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.osgi.impl;
+
+import org.apache.aries.jpa.support.impl.Shards;
+import org.apache.aries.jpa.template.ShardRouter;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.jpa.EntityManagerFactoryBuilder;
+import org.osgi.util.tracker.ServiceTracker;
+
+/**
+ * Uses the best ShardRouter service registered for the persistence unit. Without one
+ * the shards use the hash based default.
+ */
+public class ShardRouterTracker extends ServiceTracker<ShardRouter, ShardRouter> {
+    private final Shards shards;
+
+    public ShardRouterTracker(BundleContext context, String unitName, Shards shards) {
+        super(context, createFilter(context, unitName), null);
+        this.shards = shards;
+    }
+
+    private static Filter createFilter(BundleContext context, String unitName) {
+        String filter = String.format("(&(objectClass=%s)(%s=%s))", ShardRouter.class.getName(),
+                                      EntityManagerFactoryBuilder.JPA_UNIT_NAME, unitName);
+        try {
+            return context.createFilter(filter);
+        } catch (InvalidSyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public ShardRouter addingService(ServiceReference<ShardRouter> reference) {
+        ShardRouter router = super.addingService(reference);
+        // The new service is not yet tracked so compare it with the best tracked one
+        ServiceReference<ShardRouter> best = getServiceReference();
+        if (router != null && (best == null || reference.compareTo(best) > 0)) {
+            shards.setRouter(router);
+        }
+        return router;
+    }
+
+    @Override
+    public void modifiedService(ServiceReference<ShardRouter> reference, ShardRouter router) {
+        shards.setRouter(getService());
+    }
+
+    @Override
+    public void removedService(ServiceReference<ShardRouter> reference, ShardRouter router) {
+        super.removedService(reference, router);
+        shards.setRouter(getService());
+    }
+}
@@ -20,12 +20,21 @@ package org.apache.aries.jpa.support.osgi.impl;
 
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.concurrent.ExecutorService;
 
 import javax.transaction.TransactionManager;
 
 import org.apache.aries.jpa.supplier.EmSupplier;
+import org.apache.aries.jpa.support.impl.AsyncJpaTemplateImpl;
+import org.apache.aries.jpa.support.impl.ReplicaRouter;
+import org.apache.aries.jpa.support.impl.ShardedJpaTemplateImpl;
+import org.apache.aries.jpa.support.impl.Shards;
 import org.apache.aries.jpa.support.impl.XAJpaTemplate;
+import org.apache.aries.jpa.support.metrics.impl.JpaMetrics;
+import org.apache.aries.jpa.support.watchdog.impl.Watchdog;
+import org.apache.aries.jpa.template.AsyncJpaTemplate;
 import org.apache.aries.jpa.template.JpaTemplate;
+import org.apache.aries.jpa.template.ShardedJpaTemplate;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
@@ -37,10 +46,10 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Is created for an EntityManagerFactory with JTA transactions and creates
- * an XaJpaTemplate for it as soon as the TransactionManager service is present.
+ * an XaJpaTemplate and an AsyncJpaTemplate for it as soon as the TransactionManager service is present.
  */
 @SuppressWarnings("rawtypes")
-public class TMTracker extends ServiceTracker<TransactionManager, ServiceRegistration> {
+public class TMTracker extends ServiceTracker<TransactionManager, TMTracker.Registrations> {
     private static final Logger LOG = LoggerFactory.getLogger(TMTracker.class);
     static final String TRANSACTION_TYPE = "transaction.type";
 
@@ -48,19 +57,56 @@ public class TMTracker extends ServiceTracker<TransactionManager, ServiceRegistr
     private final String unitName;
 
     private Coordinator coordinator;
+    private final ExecutorService asyncExecutor;
+    private final JpaMetrics metrics;
+    private final Watchdog watchdog;
+    private ReplicaRouter replicas;
+    private Shards shards;
 
-    public TMTracker(BundleContext context, EmSupplier emSupplier, String unitName, Coordinator coordinator) {
+    public TMTracker(BundleContext context, EmSupplier emSupplier, String unitName, Coordinator coordinator,
+                     ExecutorService asyncExecutor, JpaMetrics metrics, Watchdog watchdog) {
         super(context, TransactionManager.class, null);
         this.emSupplier = emSupplier;
         this.unitName = unitName;
         this.coordinator = coordinator;
+        this.asyncExecutor = asyncExecutor;
+        this.metrics = metrics;
+        this.watchdog = watchdog;
+    }
+
+    /**
+     * Must be called before the tracker is opened
+     */
+    public void setReplicas(ReplicaRouter replicas) {
+        this.replicas = replicas;
+    }
+
+    /**
+     * Must be called before the tracker is opened. If shards is not null a ShardedJpaTemplate is published
+     */
+    public void setShards(Shards shards) {
+        this.shards = shards;
     }
 
     @Override
-    public ServiceRegistration addingService(ServiceReference<TransactionManager> ref) {
+    public Registrations addingService(ServiceReference<TransactionManager> ref) {
         TransactionManager tm = context.getService(ref);
         XAJpaTemplate txManager = new XAJpaTemplate(emSupplier, tm, coordinator);
-        return context.registerService(JpaTemplate.class, txManager, xaTxManProps(unitName));
+        txManager.setMetrics(metrics);
+        txManager.setWatchdog(watchdog);
+        txManager.setReplicas(replicas);
+        Registrations regs = new Registrations();
+        regs.txManagerReg = context.registerService(JpaTemplate.class, txManager, xaTxManProps(unitName));
+        regs.asyncTxManagerReg = context.registerService(AsyncJpaTemplate.class,
+                                                         new AsyncJpaTemplateImpl(txManager, asyncExecutor),
+                                                         xaTxManProps(unitName));
+        if (shards != null) {
+            ShardedJpaTemplateImpl sharded = new ShardedJpaTemplateImpl(shards, tm, coordinator, asyncExecutor);
+            sharded.setMetrics(metrics);
+            sharded.setWatchdog(watchdog);
+            regs.shardedReg = context.registerService(ShardedJpaTemplate.class, sharded, xaTxManProps(unitName));
+        }
+        return regs;
     }
 
     private static Dictionary<String, String> xaTxManProps(String unitName) {
@@ -71,13 +117,22 @@ public class TMTracker extends ServiceTracker<TransactionManager, ServiceRegistr
     }
 
     @Override
-    public void removedService(ServiceReference<TransactionManager> reference, ServiceRegistration reg) {
+    public void removedService(ServiceReference<TransactionManager> reference, Registrations regs) {
         try {
-            reg.unregister();
+            if (regs.shardedReg != null) {
+                regs.shardedReg.unregister();
+            }
+            regs.asyncTxManagerReg.unregister();
+            regs.txManagerReg.unregister();
             context.ungetService(reference);
         } catch (Exception e) {
             LOG.debug("Exception during unregister", e);
         }
     }
 
+    static class Registrations {
+        ServiceRegistration txManagerReg;
+        ServiceRegistration asyncTxManagerReg;
+        ServiceRegistration shardedReg;
+    }
 }
@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.watchdog.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timer wheel for large numbers of timeouts that are usually cancelled before they expire.
+ *
+ * Scheduling only enqueues the timeout and cancelling only flips its state. So both are
+ * constant time and never contend on a lock. The buckets are only touched by the worker thread
+ * which advances the wheel one bucket per tick and runs the expired tasks.
+ * Timeouts fire between their deadline and one tick later.
+ */
+public final class TimerWheel {
+    private static final Logger LOG = LoggerFactory.getLogger(TimerWheel.class);
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean stopped;
+    private long tick;
+
+    public TimerWheel(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be positive");
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[normalize(ticksPerWheel)];
+        for (int c = 0; c < wheel.length; c++) {
+            wheel[c] = new Bucket();
+        }
+        this.mask = wheel.length - 1;
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(new Worker(), name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private static int normalize(int ticksPerWheel) {
+        int size = 1;
+        while (size < ticksPerWheel && size < (1 << 16)) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * Runs task once the delay elapsed unless the returned Timeout is cancelled before.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+        if (!stopped) {
+            pending.add(timeout);
+        }
+        return timeout;
+    }
+
+    public void stop() {
+        stopped = true;
+        worker.interrupt();
+        pending.clear();
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long ticks = (timeout.deadline - startTime + tickNanos - 1) / tickNanos;
+            timeout.remainingRounds = Math.max(0, (ticks - tick) / wheel.length);
+            long slot = Math.max(ticks, tick);
+            wheel[(int)(slot & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.isCancelled()) {
+                bucket.remove(timeout);
+            } else if (timeout.remainingRounds <= 0) {
+                bucket.remove(timeout);
+                timeout.expire();
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (!stopped) {
+                long deadline = startTime + (tick + 1) * tickNanos;
+                long sleepNanos = deadline - System.nanoTime();
+                if (sleepNanos > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                    } catch (InterruptedException e) {
+                        // Only interrupted by stop
+                        return;
+                    }
+                }
+                transferPending();
+                expire(wheel[(int)(tick & mask)]);
+                tick++;
+            }
+        }
+    }
+
+    private static final class Bucket {
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+
+    public static final class Timeout {
+        private static final int ST_WAITING = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+
+        private final AtomicInteger state = new AtomicInteger(ST_WAITING);
+        private final Runnable task;
+        final long deadline;
+
+        // Only accessed by the worker thread
+        long remainingRounds;
+        Timeout next;
+        Timeout prev;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return true if the timeout was cancelled before it expired
+         */
+        public boolean cancel() {
+            return state.compareAndSet(ST_WAITING, ST_CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == ST_EXPIRED;
+        }
+
+        void expire() {
+            if (!state.compareAndSet(ST_WAITING, ST_EXPIRED)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (Exception e) {
+                LOG.warn("Exception in timer task", e);
+            }
+        }
+    }
+}
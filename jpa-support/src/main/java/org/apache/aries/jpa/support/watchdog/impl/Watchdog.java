@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.watchdog.impl;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warns about transactions and EntityManagers of a persistence unit that stay open longer
+ * than a threshold. Such leaks otherwise only show up as exhausted connection pools or when the
+ * EntityManagers are forcibly closed at shutdown.
+ *
+ * The watchdog is disabled unless the persistence unit property
+ * org.apache.aries.jpa.watchdog.threshold is set to a number of milliseconds. The stack that
+ * opened a resource is only recorded if org.apache.aries.jpa.watchdog.captureStack is true
+ * as capturing it costs every transaction and EntityManager.
+ */
+public final class Watchdog {
+    public static final String THRESHOLD = "org.apache.aries.jpa.watchdog.threshold";
+    public static final String CAPTURE_STACK = "org.apache.aries.jpa.watchdog.captureStack";
+
+    private static final int TICKS_PER_THRESHOLD = 8;
+    private static final long MIN_TICK_MILLIS = 10;
+    private static final Logger LOG = LoggerFactory.getLogger(Watchdog.class);
+
+    private final String unitName;
+    private final long thresholdMillis;
+    private final boolean captureStack;
+    private final TimerWheel timer;
+
+    Watchdog(String unitName, long thresholdMillis, boolean captureStack) {
+        this.unitName = unitName;
+        this.thresholdMillis = thresholdMillis;
+        this.captureStack = captureStack;
+        long tickMillis = Math.max(MIN_TICK_MILLIS, thresholdMillis / TICKS_PER_THRESHOLD);
+        this.timer = new TimerWheel("Aries JPA watchdog " + unitName, tickMillis, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * @return watchdog configured by the persistence unit properties or null if it is disabled
+     */
+    public static Watchdog create(String unitName, Map<String, Object> props) {
+        Object threshold = props.get(THRESHOLD);
+        if (threshold == null) {
+            return null;
+        }
+        long thresholdMillis;
+        try {
+            thresholdMillis = Long.parseLong(String.valueOf(threshold).trim());
+        } catch (NumberFormatException e) {
+            LOG.warn("Invalid value {} for {}. Watchdog disabled", threshold, THRESHOLD);
+            return null;
+        }
+        if (thresholdMillis <= 0) {
+            return null;
+        }
+        boolean captureStack = Boolean.parseBoolean(String.valueOf(props.get(CAPTURE_STACK)).trim());
+        LOG.info("Watching transactions and EntityManagers of persistence unit {} open longer than {} ms",
+                 unitName, thresholdMillis);
+        return new Watchdog(unitName, thresholdMillis, captureStack);
+    }
+
+    /**
+     * Starts watching a resource. The returned Watch must be closed when the resource is released.
+     *
+     * @param kind of resource like "Transaction" or "EntityManager"
+     */
+    public Watch watch(String kind) {
+        Thread thread = Thread.currentThread();
+        Throwable origin = captureStack ? new OpenedAt(kind, thread.getName()) : null;
+        WarnTask task = new WarnTask(kind, thread.getName(), origin);
+        return new Watch(task, timer.schedule(task, thresholdMillis, TimeUnit.MILLISECONDS));
+    }
+
+    public void close() {
+        timer.stop();
+    }
+
+    boolean isCaptureStack() {
+        return captureStack;
+    }
+
+    private final class WarnTask implements Runnable {
+        private final String kind;
+        private final String threadName;
+        private final Throwable origin;
+        private final long start = System.nanoTime();
+
+        WarnTask(String kind, String threadName, Throwable origin) {
+            this.kind = kind;
+            this.threadName = threadName;
+            this.origin = origin;
+        }
+
+        void closedLate() {
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            LOG.info("{} of persistence unit {} opened by thread {} was closed after {} ms",
+                     new Object[] {kind, unitName, threadName, millis});
+        }
+
+        @Override
+        public void run() {
+            String msg = kind + " of persistence unit " + unitName + " opened by thread " + threadName
+                + " is still open after " + thresholdMillis + " ms";
+            if (origin != null) {
+                LOG.warn(msg, origin);
+            } else {
+                LOG.warn(msg + ". Set " + CAPTURE_STACK + "=true to see where it was opened");
+            }
+        }
+    }
+
+    /**
+     * Handle for a watched resource
+     */
+    public static final class Watch {
+        private final WarnTask task;
+        private final TimerWheel.Timeout timeout;
+
+        Watch(WarnTask task, TimerWheel.Timeout timeout) {
+            this.task = task;
+            this.timeout = timeout;
+        }
+
+        /**
+         * Stops watching. Reports at info level if the resource was already reported as long running.
+         */
+        public void close() {
+            if (!timeout.cancel() && timeout.isExpired()) {
+                task.closedLate();
+            }
+        }
+    }
+
+    private static final class OpenedAt extends Throwable {
+        private static final long serialVersionUID = 1L;
+
+        OpenedAt(String kind, String threadName) {
+            super(kind + " opened here by thread " + threadName);
+        }
+    }
+}
@@ -20,8 +20,11 @@ package org.apache.aries.jpa.impl;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 
@@ -31,6 +34,7 @@ import javax.persistence.EntityManagerFactory;
 import org.apache.aries.jpa.support.impl.EMSupplierImpl;
 import org.junit.Assert;
 import org.junit.Test;
+import org.osgi.service.coordinator.Coordination;
 import org.osgi.service.coordinator.Coordinator;
 
 public class EmSupplierTest {
@@ -57,6 +61,71 @@ public class EmSupplierTest {
     }
 
 
+    @Test
+    public void emCreatedOncePerCoordinationTest() {
+        EntityManagerFactory emf = mockEmf();
+        Coordinator coordinator = new DummyCoordinator();
+        EMSupplierImpl emSupplier = new EMSupplierImpl("myunit", emf, coordinator);
+
+        coordinator.begin("test", 0);
+        EntityManager em = emSupplier.get();
+        for (int c = 0; c < 10; c++) {
+            Assert.assertSame(em, emSupplier.get());
+        }
+        coordinator.pop().end();
+        verify(emf, times(1)).createEntityManager();
+
+        coordinator.begin("test2", 0);
+        emSupplier.get();
+        coordinator.pop().end();
+        verify(emf, times(2)).createEntityManager();
+        verify(em, times(2)).close();
+
+        Assert.assertTrue("Shutdown should be clean", emSupplier.close());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void separateEmPerUnitTest() {
+        EntityManagerFactory emf1 = mockEmf();
+        EntityManagerFactory emf2 = mockEmf();
+        Coordinator coordinator = new DummyCoordinator();
+        EMSupplierImpl emSupplier1 = new EMSupplierImpl("unit1", emf1, coordinator);
+        EMSupplierImpl emSupplier2 = new EMSupplierImpl("unit2", emf2, coordinator);
+
+        Coordination coordination = coordinator.begin("test", 0);
+        EntityManager em1 = emSupplier1.get();
+        EntityManager em2 = emSupplier2.get();
+        Assert.assertNotSame(em1, em2);
+        Assert.assertSame(em1, emSupplier1.get());
+        Assert.assertSame(em2, emSupplier2.get());
+
+        Map<String, EntityManager> emMap = (Map<String, EntityManager>)coordination.getVariables().get(EntityManager.class);
+        Assert.assertSame("EMs must still be published by unit name", em1, emMap.get("unit1"));
+        Assert.assertSame(em2, emMap.get("unit2"));
+
+        coordinator.pop().end();
+        Assert.assertTrue(emMap.isEmpty());
+        Assert.assertTrue(emSupplier1.close());
+        Assert.assertTrue(emSupplier2.close());
+    }
+
+    @Test
+    public void closedSupplierDoesNotLeakEmTest() {
+        Coordinator coordinator = new DummyCoordinator();
+        EMSupplierImpl emSupplier1 = new EMSupplierImpl("unit1", mockEmf(), coordinator);
+        emSupplier1.setShutdownWait(0, MILLISECONDS);
+
+        coordinator.begin("test", 0);
+        EntityManager em1 = emSupplier1.get();
+        emSupplier1.close();
+        // The new supplier may reuse the slot of the closed one
+        EMSupplierImpl emSupplier2 = new EMSupplierImpl("unit2", mockEmf(), coordinator);
+        Assert.assertNotSame(em1, emSupplier2.get());
+        coordinator.pop().end();
+        Assert.assertTrue(emSupplier2.close());
+    }
+
     private void assertIllegalState(EMSupplierImpl emSupplier) {
         try {
             emSupplier.get();
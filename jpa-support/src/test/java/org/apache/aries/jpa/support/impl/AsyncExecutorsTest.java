@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AsyncExecutorsTest {
+
+    @Test
+    public void testPoolThreadWithPlatformThreads() throws Exception {
+        assertPoolThread(createExecutor("false"));
+    }
+
+    @Test
+    public void testPoolThreadWithVirtualThreads() throws Exception {
+        assertPoolThread(createExecutor("true"));
+    }
+
+    @Test
+    public void testBoundsWithPlatformThreads() throws Exception {
+        assertBounded(createExecutor("false"));
+    }
+
+    @Test
+    public void testBoundsWithVirtualThreads() throws Exception {
+        assertBounded(createExecutor("true"));
+    }
+
+    private static ExecutorService createExecutor(String virtualThreads) {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(AsyncExecutors.ASYNC_THREADS, "1");
+        props.put(AsyncExecutors.ASYNC_QUEUE_SIZE, "1");
+        props.put(AsyncExecutors.ASYNC_VIRTUAL_THREADS, virtualThreads);
+        return AsyncExecutors.create("test", props);
+    }
+
+    private static void assertPoolThread(final ExecutorService executor) throws Exception {
+        try {
+            Future<Boolean> poolThread = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return AsyncExecutors.isPoolThread(executor);
+                }
+            });
+            Assert.assertTrue(poolThread.get(5, TimeUnit.SECONDS));
+            Assert.assertFalse(AsyncExecutors.isPoolThread(executor));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * One task runs, one waits and the next one is rejected
+     */
+    private static void assertBounded(ExecutorService executor) throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            Future<?> running = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    await(release);
+                }
+            });
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            Future<?> waiting = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    // Nothing to do
+                }
+            });
+            try {
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        Assert.fail("Task should have been rejected");
+                    }
+                });
+                Assert.fail("Expected RejectedExecutionException");
+            } catch (RejectedExecutionException e) {
+                // Expected
+            }
+            Assert.assertFalse(waiting.isDone());
+            release.countDown();
+            running.get(5, TimeUnit.SECONDS);
+            waiting.get(5, TimeUnit.SECONDS);
+            executor.shutdown();
+            Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
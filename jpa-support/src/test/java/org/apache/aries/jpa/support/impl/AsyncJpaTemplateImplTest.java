@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.impl;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.aries.jpa.template.AsyncCallback;
+import org.apache.aries.jpa.template.EmFunction;
+import org.apache.aries.jpa.template.JpaTemplate;
+import org.apache.aries.jpa.template.TransactionType;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncJpaTemplateImplTest {
+    private JpaTemplate template;
+    private ExecutorService executor;
+    private AsyncJpaTemplateImpl asyncTemplate;
+
+    @Before
+    public void setup() {
+        template = mock(JpaTemplate.class);
+        executor = Executors.newSingleThreadExecutor();
+        asyncTemplate = new AsyncJpaTemplateImpl(template, executor);
+    }
+
+    @After
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCallbackCompleted() throws Exception {
+        when(template.txExpr(eq(TransactionType.Required), any(EmFunction.class))).thenReturn("result");
+        RecordingCallback callback = new RecordingCallback();
+
+        EmFunction<String> code = mock(EmFunction.class);
+        Future<String> future = asyncTemplate.txExprAsync(TransactionType.Required, code, callback);
+
+        Assert.assertEquals("result", future.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals("result", callback.result);
+        Assert.assertNull(callback.cause);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCallbackFailed() throws Exception {
+        IllegalStateException failure = new IllegalStateException("Expected");
+        when(template.txExpr(eq(TransactionType.Required), any(EmFunction.class))).thenThrow(failure);
+        RecordingCallback callback = new RecordingCallback();
+
+        EmFunction<String> code = mock(EmFunction.class);
+        Future<String> future = asyncTemplate.txExprAsync(TransactionType.Required, code, callback);
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            Assert.assertSame(failure, e.getCause());
+        }
+        Assert.assertSame(failure, callback.cause);
+        Assert.assertNull(callback.result);
+    }
+
+    /**
+     * Called before the Future completes so the fields are visible after Future.get
+     */
+    private static final class RecordingCallback implements AsyncCallback<Object> {
+        volatile Object result;
+        volatile Throwable cause;
+
+        @Override
+        public void completed(Object result) {
+            this.result = result;
+        }
+
+        @Override
+        public void failed(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+}
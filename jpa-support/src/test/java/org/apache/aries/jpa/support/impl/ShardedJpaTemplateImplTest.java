@@ -0,0 +1,234 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.impl;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.transaction.Status;
+import javax.transaction.TransactionManager;
+
+import org.apache.aries.jpa.impl.DummyCoordinator;
+import org.apache.aries.jpa.support.metrics.impl.JpaMetrics;
+import org.apache.aries.jpa.support.watchdog.impl.Watchdog;
+import org.apache.aries.jpa.template.EmFunction;
+import org.apache.aries.jpa.template.ShardRouter;
+import org.apache.aries.jpa.template.TransactionType;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardedJpaTemplateImplTest {
+    private DummyCoordinator coordinator;
+    private Shards shards;
+    private EMSupplierImpl shardA;
+    private EMSupplierImpl shardB;
+    private EntityManager emA;
+    private EntityManager emB;
+    private ExecutorService executor;
+    private TransactionManager tm;
+    private ShardedJpaTemplateImpl template;
+
+    @Before
+    public void setup() throws Exception {
+        coordinator = new DummyCoordinator();
+        emA = mock(EntityManager.class);
+        emB = mock(EntityManager.class);
+        shardA = new EMSupplierImpl("myunit.shard.a", mockEmf(emA), coordinator);
+        shardB = new EMSupplierImpl("myunit.shard.b", mockEmf(emB), coordinator);
+        shards = new Shards();
+        shards.configure(Collections.<String, Object>singletonMap(Shards.SHARD_IDS, "b, a,c"));
+        shards.addShard("b", shardB);
+        shards.addShard("a", shardA);
+        tm = mock(TransactionManager.class);
+        when(tm.getStatus()).thenReturn(Status.STATUS_NO_TRANSACTION);
+        // DummyCoordinator is not thread safe so the shards run one after the other
+        executor = Executors.newSingleThreadExecutor();
+        template = new ShardedJpaTemplateImpl(shards, tm, coordinator, executor);
+    }
+
+    private ShardedJpaTemplateImpl createTemplate(ExecutorService otherExecutor) {
+        return new ShardedJpaTemplateImpl(shards, tm, coordinator, otherExecutor);
+    }
+
+    @After
+    public void cleanup() {
+        executor.shutdown();
+        shardA.close();
+        shardB.close();
+    }
+
+    private static EntityManagerFactory mockEmf(EntityManager em) {
+        EntityManagerFactory emf = mock(EntityManagerFactory.class);
+        when(emf.createEntityManager()).thenReturn(em);
+        return emf;
+    }
+
+    @Test
+    public void testRoutesByKey() {
+        Assert.assertEquals(Arrays.asList("a", "b"), template.getShardIds());
+        Assert.assertSame(emA, template.forKey(0).txExpr(TransactionType.Supports, getEm()));
+        Assert.assertSame(emB, template.forKey(1).txExpr(TransactionType.Supports, getEm()));
+
+        shards.setRouter(new ShardRouter() {
+            @Override
+            public String route(Object shardKey, List<String> shardIds) {
+                Assert.assertEquals(Arrays.asList("a", "b", "c"), shardIds);
+                return shardIds.get(1);
+            }
+        });
+        Assert.assertSame(emB, template.forKey(0).txExpr(TransactionType.Supports, getEm()));
+    }
+
+    @Test
+    public void testKeyKeepsShardWhenShardsChange() {
+        shards.removeShard("b", shardB);
+        Assert.assertSame(emA, template.forKey(0).txExpr(TransactionType.Supports, getEm()));
+        try {
+            template.forKey(1);
+            Assert.fail("Key of the missing shard b must not be moved to another shard");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            template.emSupplier(2);
+            Assert.fail("Shard c is configured but not available");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoShardIdsConfigured() {
+        shards.configure(Collections.<String, Object>emptyMap());
+        template.forKey(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownShard() {
+        template.forShard("c");
+    }
+
+    @Test
+    public void testQueryAllMergesResults() {
+        final Map<EntityManager, List<Integer>> results = new HashMap<EntityManager, List<Integer>>();
+        results.put(emA, Arrays.asList(1, 4));
+        results.put(emB, Arrays.asList(3, 2));
+        EmFunction<List<Integer>> query = new EmFunction<List<Integer>>() {
+            public List<Integer> apply(EntityManager em) {
+                return results.get(em);
+            }
+        };
+        Assert.assertEquals(Arrays.asList(1, 4, 3, 2), template.queryAll(TransactionType.Supports, query));
+        Assert.assertEquals(Arrays.asList(1, 2, 3, 4), template.queryAll(TransactionType.Supports, query,
+            new Comparator<Integer>() {
+                public int compare(Integer o1, Integer o2) {
+                    return o1.compareTo(o2);
+                }
+            }));
+    }
+
+    @Test
+    public void testShardTemplatesUseMetricsAndWatchdog() {
+        JpaMetrics metrics = new JpaMetrics("myunit");
+        Watchdog watchdog = Watchdog.create("myunit",
+            Collections.<String, Object>singletonMap(Watchdog.THRESHOLD, "60000"));
+        try {
+            template.setMetrics(metrics);
+            template.setWatchdog(watchdog);
+            AbstractJpaTemplate shardTemplate = (AbstractJpaTemplate)template.forShard("a");
+            Assert.assertSame(metrics, shardTemplate.metrics);
+            Assert.assertSame(watchdog, shardTemplate.watchdog);
+            shardTemplate = (AbstractJpaTemplate)template.forKey(1);
+            Assert.assertSame(metrics, shardTemplate.metrics);
+            Assert.assertSame(watchdog, shardTemplate.watchdog);
+        } finally {
+            watchdog.close();
+        }
+    }
+
+    @Test
+    public void testTxExprAllOnPoolThread() throws Exception {
+        ExecutorService pool = AsyncExecutors.create("myunit",
+            Collections.<String, Object>singletonMap(AsyncExecutors.ASYNC_THREADS, "1"));
+        try {
+            final ShardedJpaTemplateImpl poolTemplate = createTemplate(pool);
+            List<EntityManager> ems = pool.submit(new Callable<List<EntityManager>>() {
+                @Override
+                public List<EntityManager> call() {
+                    return poolTemplate.txExprAll(TransactionType.Supports, getEm());
+                }
+            }).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(Arrays.asList(emA, emB), ems);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRejectedShardAwaitsSubmitted() {
+        // The only thread is busy with shard a and there is no queue so shard b is rejected
+        ExecutorService pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+        final AtomicBoolean shardADone = new AtomicBoolean();
+        try {
+            createTemplate(pool).txExprAll(TransactionType.Supports, new EmFunction<Object>() {
+                public Object apply(EntityManager em) {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    shardADone.set(true);
+                    return null;
+                }
+            });
+            Assert.fail("Shard b must be rejected");
+        } catch (RejectedExecutionException e) {
+            Assert.assertTrue("Shard a must complete before the rejection is thrown", shardADone.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static EmFunction<EntityManager> getEm() {
+        return new EmFunction<EntityManager>() {
+            public EntityManager apply(EntityManager em) {
+                return em;
+            }
+        };
+    }
+}
@@ -20,22 +20,37 @@ package org.apache.aries.jpa.support.impl;
 
 import static org.mockito.Mockito.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.OptimisticLockException;
+import javax.persistence.TypedQuery;
 import javax.transaction.HeuristicMixedException;
 import javax.transaction.HeuristicRollbackException;
 import javax.transaction.RollbackException;
 import javax.transaction.Status;
 import javax.transaction.SystemException;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 
 import org.apache.aries.jpa.impl.DummyCoordinator;
 import org.apache.aries.jpa.template.EmConsumer;
+import org.apache.aries.jpa.template.EmFunction;
+import org.apache.aries.jpa.template.EmItemConsumer;
 import org.apache.aries.jpa.template.TransactionType;
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 
 public class XAJpaTemplateTest
 {
@@ -106,4 +121,192 @@ public class XAJpaTemplateTest
         verify(tm, times(1)).rollback();
     }
 
+    @Test
+    public void test_txBatch_flushesAndClearsPerChunk() throws Exception {
+        TransactionManager tm = mockTm();
+        when(tm.getStatus()).thenReturn(Status.STATUS_ACTIVE);
+        XAJpaTemplate tx = new XAJpaTemplate(emSupplier, tm, coordinator);
+        tx.txBatch(Arrays.asList(1, 2, 3, 4, 5), 2, new EmItemConsumer<Integer>() {
+            public void accept(EntityManager em, Integer item) {
+                em.persist(item);
+            }
+        });
+        EntityManager em = emf.createEntityManager();
+        verify(em, times(5)).persist(any());
+        verify(em, times(3)).flush();
+        verify(em, times(3)).clear();
+    }
+
+    @Test
+    public void test_txBatch_clearsPersistenceContextOfCaller() throws Exception {
+        TransactionManager tm = mockTm();
+        when(tm.getStatus()).thenReturn(Status.STATUS_ACTIVE);
+        final XAJpaTemplate tx = new XAJpaTemplate(emSupplier, tm, coordinator);
+        tx.tx(new EmConsumer() {
+            public void accept(final EntityManager outerEm) {
+                outerEm.persist("outer");
+                tx.txBatch(Arrays.asList(1, 2), 2, new EmItemConsumer<Integer>() {
+                    public void accept(EntityManager em, Integer item) {
+                        Assert.assertSame("Nested batch must share the EntityManager", outerEm, em);
+                    }
+                });
+            }
+        });
+        EntityManager em = emf.createEntityManager();
+        verify(em, times(1)).flush();
+        verify(em, times(1)).clear();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_txBatch_invalidChunkSize() throws Exception {
+        XAJpaTemplate tx = new XAJpaTemplate(emSupplier, mockTm(), coordinator);
+        tx.txBatch(Arrays.asList(1), 0, new EmItemConsumer<Integer>() {
+            public void accept(EntityManager em, Integer item) {
+                em.persist(item);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void test_txStream_readsPagesAndClears() throws Exception {
+        TransactionManager tm = mockTm();
+        when(tm.getStatus()).thenReturn(Status.STATUS_ACTIVE);
+        final TypedQuery<Integer> query = mock(TypedQuery.class);
+        when(query.getFirstResult()).thenReturn(0);
+        when(query.getMaxResults()).thenReturn(Integer.MAX_VALUE);
+        when(query.getResultList()).thenReturn(Arrays.asList(1, 2), Arrays.asList(3));
+        final List<Integer> results = new ArrayList<Integer>();
+
+        XAJpaTemplate tx = new XAJpaTemplate(emSupplier, tm, coordinator);
+        tx.txStream(new EmFunction<TypedQuery<Integer>>() {
+            public TypedQuery<Integer> apply(EntityManager em) {
+                return query;
+            }
+        }, 2, new EmItemConsumer<Integer>() {
+            public void accept(EntityManager em, Integer item) {
+                results.add(item);
+            }
+        });
+        Assert.assertEquals(Arrays.asList(1, 2, 3), results);
+        verify(query, times(2)).getResultList();
+        verify(query).setFirstResult(2);
+        verify(emf.createEntityManager(), times(1)).clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void test_txStream_flushesChangesBeforeClear() throws Exception {
+        TransactionManager tm = mockTm();
+        when(tm.getStatus()).thenReturn(Status.STATUS_NO_TRANSACTION, Status.STATUS_ACTIVE);
+        final TypedQuery<Integer> query = mock(TypedQuery.class);
+        when(query.getFirstResult()).thenReturn(0);
+        when(query.getMaxResults()).thenReturn(Integer.MAX_VALUE);
+        when(query.getResultList()).thenReturn(Arrays.asList(1, 2), Arrays.asList(3));
+
+        XAJpaTemplate tx = new XAJpaTemplate(emSupplier, tm, coordinator);
+        tx.txStream(TransactionType.Required, new EmFunction<TypedQuery<Integer>>() {
+            public TypedQuery<Integer> apply(EntityManager em) {
+                return query;
+            }
+        }, 2, new EmItemConsumer<Integer>() {
+            public void accept(EntityManager em, Integer item) {
+                em.merge(item);
+            }
+        });
+        EntityManager em = emf.createEntityManager();
+        InOrder inOrder = inOrder(em, tm);
+        inOrder.verify(em).merge(1);
+        inOrder.verify(em).merge(2);
+        inOrder.verify(em).flush();
+        inOrder.verify(em).clear();
+        inOrder.verify(em).merge(3);
+        inOrder.verify(tm).commit();
+        verify(tm, never()).rollback();
+    }
+
+    @Test
+    public void test_readOnlyCallsUseReplicaUntilOwnWrite() throws Exception {
+        EntityManagerFactory replicaEmf = mockEmf();
+        EMSupplierImpl replicaSupplier = new EMSupplierImpl("myunit.replica", replicaEmf, coordinator);
+        ReplicaRouter router = new ReplicaRouter();
+        router.addReplica(replicaSupplier);
+        TransactionManager tm = mockTm();
+        when(tm.getStatus()).thenReturn(Status.STATUS_NO_TRANSACTION);
+        Transaction tran = mock(Transaction.class);
+        when(tm.getTransaction()).thenReturn(tran);
+        XAJpaTemplate tx = new XAJpaTemplate(emSupplier, tm, coordinator);
+        tx.setReplicas(router);
+        EmFunction<EntityManager> getEm = new EmFunction<EntityManager>() {
+            public EntityManager apply(EntityManager em) {
+                return em;
+            }
+        };
+        try {
+            Assert.assertSame(replicaEmf.createEntityManager(), tx.txExpr(TransactionType.Supports, getEm));
+
+            when(tm.getStatus()).thenReturn(Status.STATUS_ACTIVE);
+            Assert.assertSame(emf.createEntityManager(), tx.txExpr(TransactionType.Required, getEm));
+            Assert.assertSame(emf.createEntityManager(), tx.txExpr(TransactionType.Supports, getEm));
+            ArgumentCaptor<Synchronization> sync = ArgumentCaptor.forClass(Synchronization.class);
+            verify(tran, times(1)).registerSynchronization(sync.capture());
+
+            // The window starts with the commit of the transaction
+            when(tm.getStatus()).thenReturn(Status.STATUS_NO_TRANSACTION);
+            Assert.assertSame(replicaEmf.createEntityManager(), tx.txExpr(TransactionType.NotSupported, getEm));
+            sync.getValue().afterCompletion(Status.STATUS_COMMITTED);
+            Assert.assertSame(emf.createEntityManager(), tx.txExpr(TransactionType.NotSupported, getEm));
+        } finally {
+            replicaSupplier.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void test_txStream_clearsPersistenceContextOfCaller() throws Exception {
+        TransactionManager tm = mockTm();
+        when(tm.getStatus()).thenReturn(Status.STATUS_ACTIVE);
+        final TypedQuery<Integer> query = mock(TypedQuery.class);
+        when(query.getFirstResult()).thenReturn(0);
+        when(query.getMaxResults()).thenReturn(Integer.MAX_VALUE);
+        when(query.getResultList()).thenReturn(Arrays.asList(1), Arrays.<Integer>asList());
+
+        final XAJpaTemplate tx = new XAJpaTemplate(emSupplier, tm, coordinator);
+        tx.tx(new EmConsumer() {
+            public void accept(final EntityManager outerEm) {
+                tx.txStream(new EmFunction<TypedQuery<Integer>>() {
+                    public TypedQuery<Integer> apply(EntityManager em) {
+                        Assert.assertSame("Nested stream must share the EntityManager", outerEm, em);
+                        return query;
+                    }
+                }, 1, new EmItemConsumer<Integer>() {
+                    public void accept(EntityManager em, Integer item) {
+                        // Nothing to do
+                    }
+                });
+            }
+        });
+        verify(emf.createEntityManager(), times(1)).clear();
+    }
+
+    @Test
+    public void test_txExprAsync_runsOnExecutor() throws Exception {
+        TransactionManager tm = mockTm();
+        when(tm.getStatus()).thenReturn(Status.STATUS_ACTIVE);
+        final Thread caller = Thread.currentThread();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            XAJpaTemplate tx = new XAJpaTemplate(emSupplier, tm, coordinator);
+            Future<Boolean> result = new AsyncJpaTemplateImpl(tx, executor).txExprAsync(new EmFunction<Boolean>() {
+                public Boolean apply(EntityManager em) {
+                    Assert.assertNotNull(em);
+                    return Thread.currentThread() != caller;
+                }
+            });
+            Assert.assertTrue("Code must run on the executor thread", result.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
 }
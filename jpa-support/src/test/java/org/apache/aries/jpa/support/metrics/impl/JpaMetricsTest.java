@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.metrics.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.aries.jpa.template.TransactionType;
+import org.junit.Test;
+
+public class JpaMetricsTest {
+
+    @Test
+    public void testCounters() {
+        JpaMetrics metrics = new JpaMetrics("test");
+        metrics.txBegun(TransactionType.Required);
+        metrics.txCommitted(TransactionType.Required);
+        metrics.txBegun(TransactionType.Required);
+        metrics.txRolledBack(TransactionType.Required, new IllegalStateException());
+        metrics.callCompleted(TransactionType.Required, 1000, false);
+        metrics.callCompleted(TransactionType.Required, 1000, true);
+        metrics.emCreated();
+        metrics.emCreated();
+        metrics.emClosed();
+
+        assertEquals(Long.valueOf(2), metrics.getTransactionsBegun().get("Required"));
+        assertEquals(Long.valueOf(1), metrics.getTransactionsCommitted().get("Required"));
+        assertEquals(Long.valueOf(1), metrics.getTransactionsRolledBack().get("Required"));
+        assertEquals(Long.valueOf(1), metrics.getRollbackCauses().get(IllegalStateException.class.getName()));
+        assertEquals(2, metrics.getCalls());
+        assertEquals(1, metrics.getFailedCalls());
+        assertEquals(1, metrics.getOpenEntityManagers());
+
+        metrics.reset();
+        assertEquals(0, metrics.getCalls());
+        assertEquals(1, metrics.getOpenEntityManagers());
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int c = 1; c <= 100; c++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(c));
+        }
+        long median = histogram.getValueAtPercentile(50);
+        long p99 = histogram.getValueAtPercentile(99);
+        // Buckets have a relative error of at most 1/8
+        assertTrue(median >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(median <= TimeUnit.MILLISECONDS.toNanos(50) * 9 / 8);
+        assertTrue(p99 >= TimeUnit.MILLISECONDS.toNanos(99));
+        assertTrue(p99 <= TimeUnit.MILLISECONDS.toNanos(99) * 9 / 8);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), histogram.getMax());
+    }
+
+    @Test
+    public void testConcurrentRecording() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final int threads = 8;
+        final int perThread = 10000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int c = 1; c <= perThread; c++) {
+                        histogram.record(c + offset);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(threads * perThread, histogram.getCount());
+        assertEquals(perThread + threads - 1, histogram.getMax());
+        assertEquals(LatencyHistogram.upperBound(LatencyHistogram.index(perThread + threads - 1)),
+                     histogram.getValueAtPercentile(100));
+        histogram.reset();
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+}
@@ -27,12 +27,14 @@ import static org.mockito.Mockito.doThrow;
 
 import java.util.Dictionary;
 
+import javax.persistence.EntityGraph;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.PersistenceException;
 import javax.persistence.spi.PersistenceUnitTransactionType;
 
 import org.apache.aries.jpa.supplier.EmSupplier;
+import org.apache.aries.jpa.support.impl.ReplicaRouter;
 import org.apache.aries.jpa.support.osgi.impl.EMFTracker;
 import org.apache.aries.jpa.support.osgi.impl.EMFTracker.TrackedEmf;
 import org.junit.Assert;
@@ -81,6 +83,34 @@ public class EmfTrackerTest {
         verify(puContext, times(1)).ungetService(ref);
     }
     
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testMembersTrackedByMemberUnitName() {
+        BundleContext context = mock(BundleContext.class);
+        EMFTracker tracker = new EMFTracker(context, mock(Coordinator.class));
+        Bundle puBundle = mock(Bundle.class);
+        BundleContext puContext = mock(BundleContext.class);
+        when(puBundle.getBundleContext()).thenReturn(puContext);
+
+        ServiceReference<EntityManagerFactory> replicaRef = mock(ServiceReference.class);
+        when(replicaRef.getProperty(ReplicaRouter.MEMBER_UNIT_NAME)).thenReturn("testunit");
+        when(replicaRef.getProperty(ReplicaRouter.REPLICA)).thenReturn(Boolean.TRUE);
+        when(replicaRef.getBundle()).thenReturn(puBundle);
+        EntityManagerFactory emf = mock(EntityManagerFactory.class);
+        when(puContext.getService(replicaRef)).thenReturn(emf);
+
+        Object tracked = tracker.addingService(replicaRef);
+        Assert.assertTrue(tracked instanceof EMFTracker.TrackedReplica);
+        Assert.assertEquals(emf, ((EMFTracker.TrackedReplica)tracked).emf);
+
+        ServiceReference<EntityManagerFactory> plainRef = mock(ServiceReference.class);
+        when(plainRef.getProperty(ReplicaRouter.REPLICA)).thenReturn(Boolean.TRUE);
+        Assert.assertNull(tracker.addingService(plainRef));
+
+        tracker.removedService(replicaRef, tracked);
+        verify(puContext, times(1)).ungetService(replicaRef);
+    }
+
     @Test(expected=PersistenceException.class)
     public void testOriginalExceptionThrown() {
         EmSupplier emSupplier = mock(EmSupplier.class);
@@ -91,4 +121,42 @@ public class EmfTrackerTest {
         EntityManager emProxy = EMFTracker.createProxy(emSupplier);
         emProxy.flush();
     }
+
+    @Test
+    public void testProxyDelegatesDirectly() {
+        EmSupplier emSupplier = mock(EmSupplier.class);
+        EntityManager em = mock(EntityManager.class);
+        when(emSupplier.get()).thenReturn(em);
+        when(em.find(String.class, 1)).thenReturn("found");
+
+        Assert.assertTrue("EmDelegate must cover the JPA API on the test classpath", EmDelegate.isComplete());
+        EntityManager emProxy = EMFTracker.createProxy(emSupplier);
+        Assert.assertTrue(emProxy instanceof EmDelegate);
+        Assert.assertEquals("found", emProxy.find(String.class, 1));
+        verify(emSupplier, times(1)).get();
+    }
+
+    @Test
+    public void testProxyDelegatesJpa21Directly() throws Exception {
+        Assert.assertNotNull("The test classpath must have the JPA 2.1 API",
+                             EntityManager.class.getMethod("isJoinedToTransaction"));
+        EmSupplier emSupplier = mock(EmSupplier.class);
+        EntityManager em = mock(EntityManager.class);
+        when(emSupplier.get()).thenReturn(em);
+        when(em.isJoinedToTransaction()).thenReturn(true);
+        EntityGraph<?> graph = mock(EntityGraph.class);
+        Mockito.<EntityGraph<?>>when(em.getEntityGraph("graph")).thenReturn(graph);
+
+        EntityManager emProxy = EMFTracker.createProxy(emSupplier);
+        Assert.assertTrue(emProxy instanceof EmDelegate21);
+        Assert.assertTrue(emProxy.isJoinedToTransaction());
+        Assert.assertSame(graph, emProxy.getEntityGraph("graph"));
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testNoEntityManagerAvailable() {
+        EmSupplier emSupplier = mock(EmSupplier.class);
+        EntityManager emProxy = EMFTracker.createProxy(emSupplier);
+        emProxy.flush();
+    }
 }
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.watchdog.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimerWheelTest {
+    private TimerWheel timer;
+
+    @Before
+    public void setup() {
+        timer = new TimerWheel("test", 10, TimeUnit.MILLISECONDS, 4);
+    }
+
+    @After
+    public void stop() {
+        timer.stop();
+    }
+
+    @Test
+    public void testExpire() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        TimerWheel.Timeout timeout = timer.schedule(new CountDown(latch), 100, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        // Delay spans several rounds of the 4 bucket wheel
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException {
+        final AtomicInteger expired = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                expired.incrementAndGet();
+            }
+        };
+        for (int c = 0; c < 1000; c++) {
+            assertTrue(timer.schedule(task, 20, TimeUnit.MILLISECONDS).cancel());
+        }
+        CountDownLatch latch = new CountDownLatch(1);
+        timer.schedule(new CountDown(latch), 40, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, expired.get());
+    }
+
+    private static final class CountDown implements Runnable {
+        private final CountDownLatch latch;
+
+        CountDown(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public void run() {
+            latch.countDown();
+        }
+    }
+}
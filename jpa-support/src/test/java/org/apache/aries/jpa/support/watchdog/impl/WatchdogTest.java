@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIESOR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.jpa.support.watchdog.impl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class WatchdogTest {
+    private Watchdog watchdog;
+
+    @After
+    public void close() {
+        if (watchdog != null) {
+            watchdog.close();
+        }
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        assertNull(Watchdog.create("test", new HashMap<String, Object>()));
+        assertNull(Watchdog.create("test", props("0", null)));
+        assertNull(Watchdog.create("test", props("soon", null)));
+    }
+
+    @Test
+    public void testStackNotCapturedByDefault() {
+        watchdog = Watchdog.create("test", props("100", null));
+        assertNotNull(watchdog);
+        assertFalse(watchdog.isCaptureStack());
+    }
+
+    @Test
+    public void testCaptureStack() {
+        watchdog = Watchdog.create("test", props("100", "true"));
+        assertTrue(watchdog.isCaptureStack());
+    }
+
+    @Test
+    public void testWatchClosedBeforeAndAfterThreshold() throws InterruptedException {
+        watchdog = Watchdog.create("test", props("20", "true"));
+        watchdog.watch("EntityManager").close();
+        Watchdog.Watch late = watchdog.watch("Transaction");
+        Thread.sleep(200);
+        late.close();
+    }
+
+    private static Map<String, Object> props(String threshold, String captureStack) {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(Watchdog.THRESHOLD, threshold);
+        if (captureStack != null) {
+            props.put(Watchdog.CAPTURE_STACK, captureStack);
+        }
+        return props;
+    }
+}